@@ -0,0 +1,234 @@
+/*
+ * BigramCounts.java
+ *
+ * Bigram and unigram counts over a Corpus. A bigram is the pair of its word
+ * ids packed into one long, and is counted in a LongIntHashMap, so counting
+ * allocates nothing per bigram. The distinct bigrams are also numbered
+ * 0, 1, 2, ... in order of first appearance, which lets Wordifier keep
+ * per-bigram probabilities and scores in plain arrays
+ *
+ */
+
+import java.util.Arrays;
+
+public class BigramCounts {
+   private SymbolTable symbols;    // The words the ids refer to
+   private LongIntHashMap index;   // Packed bigram -> its number
+   private long[] bigrams;         // bigrams[i] is bigram number i, packed
+   private int[] counts;           // counts[i] is how often bigram i appears
+   private int[] unigramCounts;    // unigramCounts[id] is how often word id appears
+   private long total;             // Number of bigram occurrences
+
+   // BigramCounts
+   // Preconditions:
+   //    - symbols is the SymbolTable of the corpora that will be counted
+   // Postconditions:
+   //    - Empty counts are created
+   public BigramCounts(SymbolTable symbols) {
+      this.symbols = symbols;
+      index = new LongIntHashMap();
+      bigrams = new long[16];
+      counts = new int[16];
+      unigramCounts = new int[16];    // Grown to the largest id counted
+   }
+
+   // pack
+   // Returns the key of bigram (first, second)
+   static long pack(int first, int second) {
+      return ((long) first << 32) | (second & 0xffffffffL);
+   }
+
+   // add
+   // Preconditions:
+   //    - tokens[from .. to-1] are ids from the SymbolTable
+   // Postconditions:
+   //    - Every token in the range has been counted as a unigram, and every
+   //      adjacent pair in it as a bigram
+   public void add(int[] tokens, int from, int to) {
+      if (from >= to)
+         return;
+      countUnigram(tokens[from]);
+      for (int i = from + 1; i < to; i++) {
+         countUnigram(tokens[i]);
+         addBigram(pack(tokens[i-1], tokens[i]), 1);
+      }
+   }
+
+   // addShard
+   // Preconditions:
+   //    - 0 <= from <= to <= tokens.length
+   // Postconditions:
+   //    - The tokens in [from, to) have been counted as unigrams, and the
+   //      bigrams ending at them, including the one that starts just before
+   //      from, as bigrams. Shards that split a corpus into adjacent ranges
+   //      therefore overlap by one token and together count each unigram and
+   //      bigram exactly once
+   public void addShard(int[] tokens, int from, int to) {
+      for (int i = from; i < to; i++) {
+         countUnigram(tokens[i]);
+         if (i > 0)
+            addBigram(pack(tokens[i-1], tokens[i]), 1);
+      }
+   }
+
+   // addShardBigrams
+   // Preconditions:
+   //    - 0 <= from <= to <= tokens.length
+   // Postconditions:
+   //    - As addShard, but only the bigrams are counted, so a shard's counts
+   //      hold nothing per word id; countUnigramsFromBigrams fills the
+   //      unigrams in once all the shards are merged
+   void addShardBigrams(int[] tokens, int from, int to) {
+      for (int i = Math.max(from, 1); i < to; i++) {
+         addBigram(pack(tokens[i-1], tokens[i]), 1);
+      }
+   }
+
+   // countUnigramsFromBigrams
+   // Preconditions:
+   //    - The bigrams of a whole corpus have been counted, but no unigrams,
+   //      and firstToken is the corpus's first token
+   // Postconditions:
+   //    - The unigram counts are those of the corpus: every token but the
+   //      first is the second word of exactly one bigram
+   void countUnigramsFromBigrams(int firstToken) {
+      countUnigram(firstToken, 1);
+      for (int i = 0; i < size(); i++) {
+         countUnigram(second(i), counts[i]);
+      }
+   }
+
+   // merge
+   // Preconditions:
+   //    - other counts corpus text that comes after the text counted here
+   //      (as with adjacent shards), over the same SymbolTable
+   // Postconditions:
+   //    - other's counts have been added to these. Bigrams new to this
+   //      object are numbered in other's order, so merging the shards of a
+   //      corpus left to right numbers the bigrams just as counting the
+   //      whole corpus at once would
+   public void merge(BigramCounts other) {
+      for (int i = 0; i < other.size(); i++) {
+         addBigram(other.bigrams[i], other.counts[i]);
+      }
+      for (int id = 0; id < other.unigramCounts.length; id++) {
+         if (other.unigramCounts[id] != 0)
+            countUnigram(id, other.unigramCounts[id]);
+      }
+   }
+
+   // addBigram
+   // Preconditions:
+   //    - bigram was made by pack, and amount > 0
+   // Postconditions:
+   //    - bigram's count has gone up by amount
+   void addBigram(long bigram, int amount) {
+      int number = index.get(bigram, -1);
+      if (number < 0) {
+         number = index.size();
+         index.put(bigram, number);
+         if (number == bigrams.length) {
+            bigrams = Arrays.copyOf(bigrams, number * 2);
+            counts = Arrays.copyOf(counts, number * 2);
+         }
+         bigrams[number] = bigram;
+      }
+      counts[number] += amount;
+      total += amount;
+   }
+
+   // countUnigram
+   // Adds amount occurrences of word id
+   void countUnigram(int id, int amount) {
+      if (id >= unigramCounts.length)
+         unigramCounts = Arrays.copyOf(unigramCounts, Math.max(id + 1, unigramCounts.length * 2));
+      unigramCounts[id] += amount;
+   }
+
+   private void countUnigram(int id) {
+      countUnigram(id, 1);
+   }
+
+   // size
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns the number of distinct bigrams
+   public int size() {
+      return index.size();
+   }
+
+   // getTotal
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns the number of bigram occurrences counted
+   public long getTotal() {
+      return total;
+   }
+
+   // getSymbols
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns the SymbolTable the ids refer to
+   public SymbolTable getSymbols() {
+      return symbols;
+   }
+
+   // first
+   // Preconditions:
+   //    - 0 <= i < size()
+   // Postconditions:
+   //    - Returns the id of the first word of bigram number i
+   public int first(int i) {
+      return (int) (bigrams[i] >>> 32);
+   }
+
+   // second
+   // Preconditions:
+   //    - 0 <= i < size()
+   // Postconditions:
+   //    - Returns the id of the second word of bigram number i
+   public int second(int i) {
+      return (int) bigrams[i];
+   }
+
+   // count
+   // Preconditions:
+   //    - 0 <= i < size()
+   // Postconditions:
+   //    - Returns how often bigram number i appears
+   public int count(int i) {
+      return counts[i];
+   }
+
+   // getCount
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns how often the bigram (first, second) appears (0 if never)
+   public int getCount(int first, int second) {
+      int number = index.get(pack(first, second), -1);
+      return (number < 0) ? 0 : counts[number];
+   }
+
+   // unigramCount
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns how often word id appears
+   public int unigramCount(int id) {
+      return (id >= 0 && id < unigramCounts.length) ? unigramCounts[id] : 0;
+   }
+
+   // toString
+   // Preconditions:
+   //    - 0 <= i < size()
+   // Postconditions:
+   //    - Returns bigram number i as "first second", the form of the
+   //      String-keyed bigram maps
+   public String toString(int i) {
+      return symbols.word(first(i)) + " " + symbols.word(second(i));
+   }
+}
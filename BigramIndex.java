@@ -0,0 +1,507 @@
+/*
+ * BigramIndex.java
+ *
+ * Bigram and unigram counts over a corpus that is being resegmented, kept
+ * up to date merge by merge instead of being recounted every round. The
+ * corpus is held as a doubly linked list over the original token positions,
+ * and each bigram keeps the positions where it starts (in the spirit of
+ * fast BPE training), so a round of merges only visits the places where a
+ * merged pair occurs and only changes the counts of the bigrams around them.
+ *
+ * The candidates for new words are kept in an indexed max-heap on their
+ * bigram product score, holding only the bigrams that pass the count
+ * threshold. A merge only marks the bigrams and words it touched as stale,
+ * and the heap is brought up to date for just those before the next
+ * selection, which then visits only the part of the heap above the score
+ * threshold
+ *
+ */
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class BigramIndex {
+   private SymbolTable symbols;     // The words the ids refer to
+   private int[] tokens;            // tokens[p] is the word at position p, or -1 once merged away
+   private int[] prev, next;        // Live neighbours of each position, or -1
+   private int first;               // First live position, or -1
+   private int numTokens;           // Number of live positions
+   private int[] unigramCounts;     // unigramCounts[id] is how often word id appears
+
+   private LongIntHashMap numbers;  // Packed bigram (see BigramCounts) -> its number
+   private long[] bigrams;          // bigrams[i] is bigram number i, packed
+   private int[] counts;            // counts[i] is how often bigram i appears now
+   private int[][] sites;           // sites[i][0 .. numSites[i]-1] are positions where
+   private int[] numSites;          //   bigram i starts, or once started (checked on use)
+   private int[][] wordBigrams;     // wordBigrams[id][0 .. numWordBigrams[id]-1] are the
+   private int[] numWordBigrams;    //   numbers of the bigrams word id is part of
+
+   private static final double SLACK = 1e-9;   // Allowance for rounding in heap keys
+   private int heapThreshold = -1;  // Count threshold the heap was built for, or -1
+   private int[] heap;              // Bigram numbers, a max-heap on keys
+   private int heapSize;
+   private int[] heapPosition;      // heapPosition[i] is bigram i's index in heap, or -1
+   private double[] keys;           // keys[i] is bigram i's score when it was last updated
+   private int[] staleBigrams;      // Bigrams whose count changed since the heap was updated
+   private int numStaleBigrams;
+   private int[] staleWords;        // Words whose count changed since the heap was updated
+   private int numStaleWords;
+   private boolean[] bigramIsStale, wordIsStale;
+
+   // BigramIndex
+   // Preconditions:
+   //    - data is the Corpus representation of the data
+   // Postconditions:
+   //    - The index holds the tokens of data (copied, data is unchanged) and
+   //      the count and positions of every bigram, built in one pass
+   public BigramIndex(Corpus data) {
+      symbols = data.getSymbols();
+      numTokens = data.size();
+      tokens = Arrays.copyOf(data.tokens(), numTokens);
+      prev = new int[numTokens];
+      next = new int[numTokens];
+      for (int p = 0; p < numTokens; p++) {
+         prev[p] = p - 1;
+         next[p] = (p + 1 < numTokens) ? p + 1 : -1;
+      }
+      first = (numTokens > 0) ? 0 : -1;
+      unigramCounts = new int[Math.max(16, symbols.size())];
+      wordBigrams = new int[unigramCounts.length][];
+      numWordBigrams = new int[unigramCounts.length];
+      wordIsStale = new boolean[unigramCounts.length];
+      staleWords = new int[16];
+      numbers = new LongIntHashMap();
+      bigrams = new long[16];
+      counts = new int[16];
+      sites = new int[16][];
+      numSites = new int[16];
+      keys = new double[16];
+      heapPosition = new int[16];
+      bigramIsStale = new boolean[16];
+      staleBigrams = new int[16];
+      for (int p = 0; p < numTokens; p++) {
+         countUnigram(tokens[p], 1);
+         if (p > 0)
+            addBigram(p - 1);
+      }
+   }
+
+   // Accessors
+
+   // numTokens
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns the number of tokens in the corpus as it now stands
+   public int numTokens() {
+      return numTokens;
+   }
+
+   // getTotal
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns the number of bigram occurrences in the corpus
+   public long getTotal() {
+      return Math.max(0, numTokens - 1);
+   }
+
+   // getCount
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns how often the bigram (firstWord, secondWord) appears now
+   public int getCount(int firstWord, int secondWord) {
+      int number = numbers.get(BigramCounts.pack(firstWord, secondWord), -1);
+      return (number < 0) ? 0 : counts[number];
+   }
+
+   // unigramCount
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns how often word id appears now
+   public int unigramCount(int id) {
+      return (id >= 0 && id < unigramCounts.length) ? unigramCounts[id] : 0;
+   }
+
+   // getSymbols
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns the SymbolTable the ids refer to
+   public SymbolTable getSymbols() {
+      return symbols;
+   }
+
+   // findNewWords
+   // Preconditions:
+   //    - countThreshold and probabilityThreshold are as for Wordifier.findNewWords
+   // Postconditions:
+   //    - Returns the same new words Wordifier.findNewWords would find if the
+   //      corpus were counted from scratch, with the scores computed the same
+   //      way, looking only at the bigrams that still occur
+   //    - The first call, and any call with a new countThreshold, builds the
+   //      heap in time linear in the number of bigrams; later calls update only
+   //      the stale bigrams (O(log n) each) and then visit the k bigrams at or
+   //      above probabilityThreshold and the heap entries just below them
+   public HashSet<String> findNewWords(int countThreshold, double probabilityThreshold) {
+      if (heapThreshold != Math.max(1, countThreshold))
+         buildHeap(Math.max(1, countThreshold));
+      else
+         updateHeap();
+      HashSet<String> answer = new HashSet<String>();
+      if (heapSize > 0)
+         collect(0, probabilityThreshold, getTotal(), answer);
+      return answer;
+   }
+
+   // collect
+   // Adds the words of the bigrams in the heap below index at whose score
+   // is >= threshold, pruning every subtree whose root's key is well below it
+   private void collect(int index, double threshold, double total, HashSet<String> answer) {
+      int number = heap[index];
+      if (keys[number] < threshold - Math.abs(threshold) * SLACK)
+         return;
+      if (score(number, total) >= threshold)
+         answer.add(symbols.word(firstOf(number)) + symbols.word(secondOf(number)));
+      int child = 2 * index + 1;
+      if (child < heapSize)
+         collect(child, threshold, total, answer);
+      if (child + 1 < heapSize)
+         collect(child + 1, threshold, total, answer);
+   }
+
+   // score
+   // Returns the bigram product score of bigram i, as Wordifier.getScores
+   // computes it from probabilities over total bigrams
+   double score(int i, double total) {
+      double unigram1 = unigramCounts[firstOf(i)] / total;
+      double unigram2 = unigramCounts[secondOf(i)] / total;
+      return (counts[i] / total) / Math.sqrt(unigram1 * unigram2);
+   }
+
+   // key
+   // Returns the score of bigram i in a form that does not depend on the
+   // total, which changes with every merge: P(w1,w2)/sqrt(P(w1)P(w2)) is
+   // c(w1,w2)/sqrt(c(w1)c(w2)) whatever the total is
+   private double key(int i) {
+      return counts[i] / Math.sqrt((double) unigramCounts[firstOf(i)] * unigramCounts[secondOf(i)]);
+   }
+
+   // merge
+   // Preconditions:
+   //    - newWords is the HashSet containing the new words (after merging)
+   // Postconditions:
+   //    - The corpus has been resegmented exactly as Wordifier.resegment would
+   //      do it: every adjacent pair whose two words joined together are in
+   //      newWords is merged, from left to right
+   //    - Only the positions where such a pair starts are visited, and only
+   //      the counts of the merged pairs and their neighbours change, so the
+   //      work is proportional to the number of merge sites (plus the length
+   //      of the new words, to find the pairs that spell them)
+   //    - Returns the number of merges made
+   public int merge(HashSet<String> newWords) {
+      // Find the existing bigrams that spell each new word
+      LongIntHashMap merges = new LongIntHashMap(newWords.size());
+      int[] found = new int[16];
+      int numFound = 0, candidates = 0;
+      for (String word : newWords) {
+         for (int split = 1; split < word.length(); split++) {
+            int left = symbols.find(word.substring(0, split));
+            int right = (left < 0) ? -1 : symbols.find(word.substring(split));
+            int number = (right < 0) ? -1 : numbers.get(BigramCounts.pack(left, right), -1);
+            if (number < 0)
+               continue;
+            if (counts[number] == 0) {
+               numSites[number] = 0;    // Every site is stale
+               continue;
+            }
+            merges.put(bigrams[number], symbols.id(word));
+            if (numFound == found.length)
+               found = Arrays.copyOf(found, numFound * 2);
+            found[numFound++] = number;
+            candidates += numSites[number];
+         }
+      }
+      if (numFound == 0)
+         return 0;
+
+      // Collect their sites, in corpus order
+      int[] positions = new int[candidates];
+      int size = 0;
+      for (int i = 0; i < numFound; i++) {
+         int number = found[i];
+         System.arraycopy(sites[number], 0, positions, size, numSites[number]);
+         size += numSites[number];
+         numSites[number] = 0;
+      }
+      Arrays.sort(positions, 0, size);
+
+      // A site is merged if it still starts one of the pairs; a site whose
+      // first token was just merged into the pair to its left is skipped,
+      // just as the left-to-right scan in resegment skips it
+      int merged = 0;
+      for (int i = 0; i < size; i++) {
+         int p = positions[i];
+         if ((i > 0 && p == positions[i-1]) || tokens[p] < 0 || next[p] < 0)
+            continue;
+         int word = merges.get(BigramCounts.pack(tokens[p], tokens[next[p]]), -1);
+         if (word >= 0) {
+            mergeAt(p, word);
+            merged++;
+         }
+      }
+      return merged;
+   }
+
+   // mergeAt
+   // Pre-conditions:
+   //    - The tokens at p and next[p] join to make word
+   // Post-conditions:
+   //    - They have been replaced by word at position p, and the counts of
+   //      the bigrams they were part of have been moved to the new bigrams
+   private void mergeAt(int p, int word) {
+      int q = next[p];
+      int before = prev[p];
+      int after = next[q];
+      if (before >= 0)
+         removeBigram(before);
+      removeBigram(p);
+      if (after >= 0)
+         removeBigram(q);
+      countUnigram(tokens[p], -1);
+      countUnigram(tokens[q], -1);
+      countUnigram(word, 1);
+      markWord(tokens[p]);
+      markWord(tokens[q]);
+      markWord(word);
+
+      tokens[p] = word;
+      tokens[q] = -1;
+      next[p] = after;
+      if (after >= 0)
+         prev[after] = p;
+      numTokens--;
+
+      if (before >= 0)
+         addBigram(before);
+      if (after >= 0)
+         addBigram(p);
+   }
+
+   // toCorpus
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns a new Corpus holding the tokens as they now stand
+   public Corpus toCorpus() {
+      int[] result = new int[Math.max(16, numTokens)];
+      int size = 0;
+      for (int p = first; p >= 0; p = next[p]) {
+         result[size++] = tokens[p];
+      }
+      return new Corpus(symbols, result, size);
+   }
+
+   private int firstOf(int i) {
+      return (int) (bigrams[i] >>> 32);
+   }
+
+   private int secondOf(int i) {
+      return (int) bigrams[i];
+   }
+
+   // Counts the bigram starting at live position p and records p as a site
+   private void addBigram(int p) {
+      long bigram = BigramCounts.pack(tokens[p], tokens[next[p]]);
+      int number = numbers.get(bigram, -1);
+      if (number < 0) {
+         number = numbers.size();
+         numbers.put(bigram, number);
+         if (number == bigrams.length) {
+            bigrams = Arrays.copyOf(bigrams, number * 2);
+            counts = Arrays.copyOf(counts, number * 2);
+            sites = Arrays.copyOf(sites, number * 2);
+            numSites = Arrays.copyOf(numSites, number * 2);
+            keys = Arrays.copyOf(keys, number * 2);
+            heapPosition = Arrays.copyOf(heapPosition, number * 2);
+            bigramIsStale = Arrays.copyOf(bigramIsStale, number * 2);
+         }
+         bigrams[number] = bigram;
+         sites[number] = new int[2];
+         heapPosition[number] = -1;
+         addWordBigram(tokens[p], number);
+         if (tokens[next[p]] != tokens[p])
+            addWordBigram(tokens[next[p]], number);
+      }
+      counts[number]++;
+      markBigram(number);
+      if (numSites[number] == sites[number].length)
+         sites[number] = Arrays.copyOf(sites[number], numSites[number] * 2);
+      sites[number][numSites[number]++] = p;
+   }
+
+   // Uncounts the bigram starting at live position p (its site entry goes
+   // stale and is skipped when it is next looked at)
+   private void removeBigram(int p) {
+      int number = numbers.get(BigramCounts.pack(tokens[p], tokens[next[p]]), -1);
+      counts[number]--;
+      markBigram(number);
+   }
+
+   private void countUnigram(int id, int amount) {
+      if (id >= unigramCounts.length) {
+         int length = Math.max(id + 1, unigramCounts.length * 2);
+         unigramCounts = Arrays.copyOf(unigramCounts, length);
+         wordBigrams = Arrays.copyOf(wordBigrams, length);
+         numWordBigrams = Arrays.copyOf(numWordBigrams, length);
+         wordIsStale = Arrays.copyOf(wordIsStale, length);
+      }
+      unigramCounts[id] += amount;
+   }
+
+   private void addWordBigram(int id, int number) {
+      countUnigram(id, 0);     // Makes room for id
+      if (wordBigrams[id] == null)
+         wordBigrams[id] = new int[2];
+      else if (numWordBigrams[id] == wordBigrams[id].length)
+         wordBigrams[id] = Arrays.copyOf(wordBigrams[id], numWordBigrams[id] * 2);
+      wordBigrams[id][numWordBigrams[id]++] = number;
+   }
+
+   // Heap maintenance. Changes are only noted as they happen; the heap is
+   // brought up to date when the next selection needs it
+
+   private void markBigram(int number) {
+      if (heapThreshold < 0 || bigramIsStale[number])
+         return;
+      bigramIsStale[number] = true;
+      if (numStaleBigrams == staleBigrams.length)
+         staleBigrams = Arrays.copyOf(staleBigrams, numStaleBigrams * 2);
+      staleBigrams[numStaleBigrams++] = number;
+   }
+
+   private void markWord(int id) {
+      if (heapThreshold < 0 || wordIsStale[id])
+         return;
+      wordIsStale[id] = true;
+      if (numStaleWords == staleWords.length)
+         staleWords = Arrays.copyOf(staleWords, numStaleWords * 2);
+      staleWords[numStaleWords++] = id;
+   }
+
+   // buildHeap
+   // Puts every bigram whose count is >= countThreshold in the heap and
+   // heapifies it bottom up
+   private void buildHeap(int countThreshold) {
+      heapThreshold = countThreshold;
+      heap = new int[Math.max(16, numbers.size())];
+      heapSize = 0;
+      for (int i = 0; i < numbers.size(); i++) {
+         heapPosition[i] = -1;
+         bigramIsStale[i] = false;
+         if (counts[i] >= countThreshold) {
+            keys[i] = key(i);
+            heap[heapSize] = i;
+            heapPosition[i] = heapSize++;
+         }
+      }
+      for (int index = heapSize / 2 - 1; index >= 0; index--) {
+         siftDown(index);
+      }
+      for (int i = 0; i < numStaleWords; i++) {
+         wordIsStale[staleWords[i]] = false;
+      }
+      numStaleBigrams = numStaleWords = 0;
+   }
+
+   // updateHeap
+   // Re-keys, adds or removes every bigram that changed count or contains a
+   // word that did
+   private void updateHeap() {
+      for (int i = 0; i < numStaleWords; i++) {
+         int id = staleWords[i];
+         wordIsStale[id] = false;
+         for (int j = 0; j < numWordBigrams[id]; j++) {
+            markBigram(wordBigrams[id][j]);
+         }
+      }
+      numStaleWords = 0;
+      for (int i = 0; i < numStaleBigrams; i++) {
+         int number = staleBigrams[i];
+         bigramIsStale[number] = false;
+         if (counts[number] >= heapThreshold)
+            offer(number);
+         else if (heapPosition[number] >= 0)
+            remove(number);
+      }
+      numStaleBigrams = 0;
+   }
+
+   // Adds bigram number to the heap, or moves it to match its new key
+   private void offer(int number) {
+      double key = key(number);
+      int index = heapPosition[number];
+      if (index < 0) {
+         if (heapSize == heap.length)
+            heap = Arrays.copyOf(heap, heapSize * 2);
+         index = heapSize++;
+         heap[index] = number;
+         heapPosition[number] = index;
+         keys[number] = key;
+         siftUp(index);
+      } else {
+         double old = keys[number];
+         keys[number] = key;
+         if (key > old)
+            siftUp(index);
+         else if (key < old)
+            siftDown(index);
+      }
+   }
+
+   private void remove(int number) {
+      int index = heapPosition[number];
+      heapPosition[number] = -1;
+      int last = heap[--heapSize];
+      if (index == heapSize)
+         return;
+      heap[index] = last;
+      heapPosition[last] = index;
+      siftUp(index);
+      siftDown(heapPosition[last]);
+   }
+
+   private void siftUp(int index) {
+      int number = heap[index];
+      while (index > 0) {
+         int parent = (index - 1) / 2;
+         if (keys[heap[parent]] >= keys[number])
+            break;
+         heap[index] = heap[parent];
+         heapPosition[heap[index]] = index;
+         index = parent;
+      }
+      heap[index] = number;
+      heapPosition[number] = index;
+   }
+
+   private void siftDown(int index) {
+      int number = heap[index];
+      while (true) {
+         int child = 2 * index + 1;
+         if (child >= heapSize)
+            break;
+         if (child + 1 < heapSize && keys[heap[child + 1]] > keys[heap[child]])
+            child++;
+         if (keys[heap[child]] <= keys[number])
+            break;
+         heap[index] = heap[child];
+         heapPosition[heap[index]] = index;
+         index = child;
+      }
+      heap[index] = number;
+      heapPosition[number] = index;
+   }
+}
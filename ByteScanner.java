@@ -0,0 +1,226 @@
+/*
+* ByteScanner.java
+*
+* A whitespace tokenizer that reads a file through a FileChannel, one
+* memory-mapped window at a time. Each token is handed out as raw bytes in a
+* reusable buffer, so callers can parse numbers and intern words without
+* building an intermediate String for every token
+*
+*/
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class ByteScanner implements Closeable {
+   private static final int WINDOW_SIZE = 1 << 26;   // Bytes mapped at a time
+   private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+   };
+   
+   private final RandomAccessFile file;
+   private final FileChannel channel;
+   private final long fileSize;
+   private final int windowSize;
+   private long windowEnd;            // File offset just past the mapped window
+   private MappedByteBuffer window;   // The currently mapped part of the file
+   private byte[] token;              // Bytes of the current token
+   private int tokenLength;           // Number of bytes in token that are in use
+   
+   // ByteScanner
+   // Pre-conditions:
+   //    - filename is the path of a readable file
+   // Post-conditions:
+   //    - The scanner is positioned before the first token of the file
+   public ByteScanner(String filename) throws IOException {
+      this(filename, WINDOW_SIZE);
+   }
+   
+   // ByteScanner
+   // Pre-conditions:
+   //    - filename is the path of a readable file
+   //    - windowSize is the number of bytes to map at a time
+   // Post-conditions:
+   //    - The scanner is positioned before the first token of the file
+   //    - If setting up fails, the file is closed before the exception is
+   //      thrown; once constructed, the caller must close the scanner
+   public ByteScanner(String filename, int windowSize) throws IOException {
+      if (windowSize <= 0)
+         throw new IllegalArgumentException("windowSize must be positive: " + windowSize);
+      RandomAccessFile opened = new RandomAccessFile(filename, "r");
+      try {
+         this.channel = opened.getChannel();
+         this.fileSize = channel.size();
+      } catch (IOException | RuntimeException e) {
+         try {
+            opened.close();
+         } catch (IOException suppressed) {
+            e.addSuppressed(suppressed);
+         }
+         throw e;
+      }
+      this.file = opened;
+      this.windowSize = windowSize;
+      this.windowEnd = 0;
+      this.token = new byte[64];
+   }
+   
+   // next
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Advances to the next whitespace-delimited token and returns true,
+   //      or returns false if the end of the file has been reached
+   public boolean next() throws IOException {
+      int b = read();
+      while (b >= 0 && isWhitespace(b)) {
+         b = read();
+      }
+      if (b < 0)
+         return false;
+      tokenLength = 0;
+      while (b >= 0 && !isWhitespace(b)) {
+         if (tokenLength == token.length)
+            token = java.util.Arrays.copyOf(token, tokenLength * 2);
+         token[tokenLength++] = (byte) b;
+         b = read();
+      }
+      return true;
+   }
+   
+   // tokenIs
+   // Pre-conditions:
+   //    - next() has returned true
+   //    - ascii contains only ASCII characters
+   // Post-conditions:
+   //    - Returns true if the current token is exactly ascii
+   public boolean tokenIs(String ascii) {
+      if (ascii.length() != tokenLength)
+         return false;
+      for (int i = 0; i < tokenLength; i++) {
+         if (token[i] != ascii.charAt(i))
+            return false;
+      }
+      return true;
+   }
+   
+   // tokenString
+   // Pre-conditions:
+   //    - next() has returned true
+   // Post-conditions:
+   //    - Returns the current token decoded as UTF-8
+   public String tokenString() {
+      return new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+   }
+   
+   // tokenSymbol
+   // Pre-conditions:
+   //    - next() has returned true
+   // Post-conditions:
+   //    - Returns the id of the current token in table, adding it if needed
+   public int tokenSymbol(SymbolTable table) {
+      return table.id(token, 0, tokenLength);
+   }
+   
+   // tokenAsInt
+   // Pre-conditions:
+   //    - next() has returned true
+   // Post-conditions:
+   //    - Returns the current token parsed as a decimal int
+   //    - Throws NumberFormatException if it is not one, as Integer.parseInt would
+   public int tokenAsInt() {
+      int i = 0;
+      boolean negative = false;
+      if (tokenLength > 0 && (token[0] == '-' || token[0] == '+')) {
+         negative = token[0] == '-';
+         i++;
+      }
+      if (i == tokenLength)
+         throw new NumberFormatException("For input string: \"" + tokenString() + "\"");
+      long value = 0;
+      for (; i < tokenLength; i++) {
+         int digit = token[i] - '0';
+         if (digit < 0 || digit > 9)
+            throw new NumberFormatException("For input string: \"" + tokenString() + "\"");
+         value = value * 10 + digit;
+         if (value > (long) Integer.MAX_VALUE + 1)
+            throw new NumberFormatException("For input string: \"" + tokenString() + "\"");
+      }
+      value = negative ? -value : value;
+      if (value > Integer.MAX_VALUE)
+         throw new NumberFormatException("For input string: \"" + tokenString() + "\"");
+      return (int) value;
+   }
+   
+   // tokenAsDouble
+   // Pre-conditions:
+   //    - next() has returned true
+   // Post-conditions:
+   //    - Returns the current token parsed as a double, giving exactly the
+   //      value Double.parseDouble would
+   //    - Plain decimals with at most 15 significant digits (such as node
+   //      times) are parsed directly: the digits and the power of ten are
+   //      both exact doubles, so a single division rounds correctly.
+   //      Anything else falls back to Double.parseDouble
+   public double tokenAsDouble() {
+      int i = 0;
+      boolean negative = false;
+      if (tokenLength > 0 && (token[0] == '-' || token[0] == '+')) {
+         negative = token[0] == '-';
+         i++;
+      }
+      long mantissa = 0;
+      int digits = 0;
+      int fractionDigits = -1;
+      for (; i < tokenLength; i++) {
+         int b = token[i];
+         if (b == '.' && fractionDigits < 0) {
+            fractionDigits = 0;
+         } else if (b >= '0' && b <= '9' && digits < 15) {
+            mantissa = mantissa * 10 + (b - '0');
+            digits++;
+            if (fractionDigits >= 0)
+               fractionDigits++;
+         } else {
+            return Double.parseDouble(tokenString());
+         }
+      }
+      if (digits == 0)
+         return Double.parseDouble(tokenString());
+      double value = mantissa / POWERS_OF_TEN[Math.max(fractionDigits, 0)];
+      return negative ? -value : value;
+   }
+   
+   // close
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - The underlying file has been closed
+   public void close() throws IOException {
+      window = null;
+      file.close();
+   }
+   
+   // read
+   // Returns the next byte of the file, or -1 at the end of the file, mapping
+   // the next window when the current one is used up
+   private int read() throws IOException {
+      if (window == null || !window.hasRemaining()) {
+         if (windowEnd >= fileSize)
+            return -1;
+         long length = Math.min(windowSize, fileSize - windowEnd);
+         window = channel.map(FileChannel.MapMode.READ_ONLY, windowEnd, length);
+         windowEnd += length;
+      }
+      return window.get() & 0xff;
+   }
+   
+   // isWhitespace
+   // Matches the ASCII characters Character.isWhitespace accepts, which is
+   // what java.util.Scanner splits on by default
+   private static boolean isWhitespace(int b) {
+      return b == ' ' || (b >= '\t' && b <= '\r') || (b >= 0x1c && b <= 0x1f);
+   }
+}
@@ -0,0 +1,114 @@
+/*
+* ConfusionNetwork.java
+*
+* A confusion network (or "sausage"): a sequence of time slots, each holding
+* the competing words for that stretch of audio with their posterior
+* probabilities. Built by Lattice.confusionNetwork
+*
+*/
+
+import java.util.*;
+
+public class ConfusionNetwork {
+   public static final String EPSILON = "*DELETE*";   // "No word here" entry
+   
+   private double[] startTimes;        // startTimes[i] is when slot i begins
+   private double[] endTimes;          // endTimes[i] is when slot i ends
+   private String[][] words;           // words[i] are the candidates in slot i
+   private double[][] posteriors;      // posteriors[i][j] is the posterior of words[i][j]
+   
+   // ConfusionNetwork
+   // Pre-conditions:
+   //    - All four arrays have one entry per slot, and words[i] and
+   //      posteriors[i] have the same length
+   // Post-conditions:
+   //    - A network is created whose candidates in each slot are sorted by
+   //      decreasing posterior
+   public ConfusionNetwork(double[] startTimes, double[] endTimes, String[][] words, double[][] posteriors) {
+      this.startTimes = startTimes;
+      this.endTimes = endTimes;
+      this.words = words;
+      this.posteriors = posteriors;
+      for (int i = 0; i < words.length; i++) {
+         sortSlot(i);
+      }
+   }
+   
+   // getNumSlots
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the number of slots in the network
+   public int getNumSlots() {
+      return words.length;
+   }
+   
+   // getStartTime / getEndTime
+   // Pre-conditions:
+   //    - 0 <= slot < getNumSlots()
+   // Post-conditions:
+   //    - Returns the time the slot begins / ends
+   public double getStartTime(int slot) {
+      return startTimes[slot];
+   }
+   
+   public double getEndTime(int slot) {
+      return endTimes[slot];
+   }
+   
+   // getWords
+   // Pre-conditions:
+   //    - 0 <= slot < getNumSlots()
+   // Post-conditions:
+   //    - Returns a copy of the slot's candidate words, best first
+   public String[] getWords(int slot) {
+      return words[slot].clone();
+   }
+   
+   // getPosteriors
+   // Pre-conditions:
+   //    - 0 <= slot < getNumSlots()
+   // Post-conditions:
+   //    - Returns a copy of the posteriors matching getWords(slot)
+   public double[] getPosteriors(int slot) {
+      return posteriors[slot].clone();
+   }
+   
+   // toString
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns one line per slot: its start and end time followed by
+   //      each candidate word and its posterior
+   public String toString() {
+      StringBuilder answer = new StringBuilder();
+      for (int i = 0; i < words.length; i++) {
+         answer.append(String.format("%.2f %.2f", startTimes[i], endTimes[i]));
+         for (int j = 0; j < words[i].length; j++) {
+            answer.append(' ').append(words[i][j]).append(String.format(" %.4f", posteriors[i][j]));
+         }
+         answer.append('\n');
+      }
+      return answer.toString();
+   }
+   
+   // sortSlot
+   // Sorts the candidates in a slot by decreasing posterior (slots are small,
+   // so insertion sort is fine)
+   private void sortSlot(int slot) {
+      String[] w = words[slot];
+      double[] p = posteriors[slot];
+      for (int i = 1; i < w.length; i++) {
+         String word = w[i];
+         double posterior = p[i];
+         int j = i - 1;
+         while (j >= 0 && p[j] < posterior) {
+            w[j+1] = w[j];
+            p[j+1] = p[j];
+            j--;
+         }
+         w[j+1] = word;
+         p[j+1] = posterior;
+      }
+   }
+}
@@ -0,0 +1,151 @@
+/*
+ * Corpus.java
+ *
+ * A tokenized text stored as one packed int[] of word ids, with the words
+ * themselves kept once each in a SymbolTable. Compared with a
+ * LinkedList<String> this costs 4 bytes per token instead of a list node
+ * and a String, and scanning it is a sequential walk over an array
+ *
+ */
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+public class Corpus {
+   private SymbolTable symbols;   // Maps the corpus's words to ids and back
+   private int[] tokens;          // tokens[i] is the id of the i'th word
+   private int size;              // Number of tokens in use
+
+   // Corpus
+   // Preconditions:
+   //    - symbols is the table to give the words ids from (it may be shared
+   //      between corpora, so their ids agree)
+   // Postconditions:
+   //    - An empty corpus is created
+   public Corpus(SymbolTable symbols) {
+      this(symbols, new int[16], 0);
+   }
+
+   // Corpus
+   // Preconditions:
+   //    - tokens[0 .. size-1] are ids from symbols
+   // Postconditions:
+   //    - A corpus of those tokens is created (the array is not copied)
+   public Corpus(SymbolTable symbols, int[] tokens, int size) {
+      this.symbols = symbols;
+      this.tokens = tokens;
+      this.size = size;
+   }
+
+   // fromList
+   // Preconditions:
+   //    - words holds the corpus, one token per element
+   // Postconditions:
+   //    - A new Corpus with the same tokens is returned, using symbols
+   public static Corpus fromList(List<String> words, SymbolTable symbols) {
+      Corpus corpus = new Corpus(symbols, new int[Math.max(16, words.size())], 0);
+      for (String word : words) {
+         corpus.add(word);
+      }
+      return corpus;
+   }
+
+   // add
+   // Preconditions:
+   //    - id is an id from the corpus's SymbolTable
+   // Postconditions:
+   //    - id is appended to the corpus (the array doubles when it is full)
+   public void add(int id) {
+      if (size == tokens.length)
+         tokens = Arrays.copyOf(tokens, Math.max(16, size * 2));
+      tokens[size++] = id;
+   }
+
+   // add
+   // Preconditions:
+   //    - word is non-null
+   // Postconditions:
+   //    - word is appended to the corpus
+   public void add(String word) {
+      add(symbols.id(word));
+   }
+
+   // size
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns the number of tokens in the corpus
+   public int size() {
+      return size;
+   }
+
+   // get
+   // Preconditions:
+   //    - 0 <= i < size()
+   // Postconditions:
+   //    - Returns the id of the i'th token
+   public int get(int i) {
+      if (i < 0 || i >= size)
+         throw new IndexOutOfBoundsException("No token " + i + " in a corpus of " + size);
+      return tokens[i];
+   }
+
+   // word
+   // Preconditions:
+   //    - 0 <= i < size()
+   // Postconditions:
+   //    - Returns the i'th token as a String
+   public String word(int i) {
+      return symbols.word(get(i));
+   }
+
+   // getSymbols
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns the SymbolTable the token ids refer to
+   public SymbolTable getSymbols() {
+      return symbols;
+   }
+
+   // tokens
+   // Returns the backing array, whose first size() entries are the tokens,
+   // for the sequential scans in Wordifier (only Wordifier's in-place
+   // passes may change it)
+   int[] tokens() {
+      return tokens;
+   }
+
+   // truncate
+   // Drops every token from position size on, after Wordifier has
+   // compacted the array in place
+   void truncate(int size) {
+      if (size < 0 || size > this.size)
+         throw new IndexOutOfBoundsException("Cannot truncate a corpus of " + this.size + " to " + size);
+      this.size = size;
+   }
+
+   // copy
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns a new Corpus with its own copy of the tokens, sharing this
+   //      corpus's SymbolTable
+   public Corpus copy() {
+      return new Corpus(symbols, Arrays.copyOf(tokens, Math.max(16, size)), size);
+   }
+
+   // toList
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns a new LinkedList<String> with the tokens, in order
+   public LinkedList<String> toList() {
+      LinkedList<String> list = new LinkedList<String>();
+      for (int i = 0; i < size; i++) {
+         list.add(symbols.word(tokens[i]));
+      }
+      return list;
+   }
+}
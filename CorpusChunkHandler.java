@@ -0,0 +1,20 @@
+/*
+ * CorpusChunkHandler.java
+ *
+ * Receives a text file from Wordifier.streamCorpus a chunk of token ids at a
+ * time, so a corpus can be counted or copied without ever holding the whole
+ * file as Strings
+ *
+ */
+
+public interface CorpusChunkHandler {
+    // chunk
+    // Preconditions:
+    //    - tokens[from .. to-1] are the next ids of the file, in order, and
+    //      when from > 0, tokens[from-1] is the last id of the previous chunk
+    //      (so addShard-style counting sees every bigram exactly once)
+    // Postconditions:
+    //    - The chunk has been consumed; tokens is reused for the next chunk,
+    //      so it must not be kept
+   void chunk(int[] tokens, int from, int to);
+}
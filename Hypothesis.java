@@ -0,0 +1,70 @@
+/*
+* Hypothesis.java
+*
+* One recognition hypothesis: the words along a path through a Lattice, in
+* order, and the total score of the edges they came from. Lattice.decode
+* and the other path searches build one by adding the path's edges from
+* start to end
+*
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Hypothesis {
+   private List<String> words;    // The words on the path, in order
+   private double score;          // Sum of the scores of those words' edges
+
+   // Hypothesis
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - An empty hypothesis with score 0 has been created
+   public Hypothesis() {
+      words = new ArrayList<String>();
+      score = 0;
+   }
+
+   // addWord
+   // Pre-conditions:
+   //    - word is the label of the next edge on the path, score its weight
+   // Post-conditions:
+   //    - word has been appended and score added to the total
+   public void addWord(String word, double score) {
+      words.add(word);
+      this.score += score;
+   }
+
+   // getWords
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns a copy of the words on the path, in order
+   public List<String> getWords() {
+      return new ArrayList<String>(words);
+   }
+
+   // getScore
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the total score of the path
+   public double getScore() {
+      return score;
+   }
+
+   // toString
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the words separated by single spaces
+   public String toString() {
+      StringBuilder answer = new StringBuilder();
+      for (String word : words) {
+         if (answer.length() > 0)
+            answer.append(' ');
+         answer.append(word);
+      }
+      return answer.toString();
+   }
+}
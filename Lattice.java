@@ -14,16 +14,28 @@
 import java.util.*;
 import java.io.*;
 import java.lang.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 
 public class Lattice {
    private String utteranceID;       // A unique ID for the sentence
    private int startIdx, endIdx;     // Indices of the special start and end tokens
    private int numNodes, numEdges;   // The number of nodes and edges, respectively
-   private Edge[][] adjMatrix;       // Adjacency matrix representing the lattice
-   //   Two dimensional array of Edge objects
-   //   adjMatrix[i][j] == null means no edge (i,j)
-   private double[] nodeTimes;       // Stores the timestamp for each node
+   private IntBuffer outOffsets;     // Compressed sparse row (CSR) edge storage
+   private IntBuffer edgeTargets;    //   the edges leaving node i are stored at
+   private IntBuffer edgeWords;      //   indices outOffsets[i] .. outOffsets[i+1]-1 of
+   private IntBuffer edgeAmScores;   //   the parallel edge buffers, sorted by target node
+   private IntBuffer edgeLmScores;   //   so memory scales with numEdges, not numNodes^2
+   private int[] wordIds;            // Maps edgeWords entries to SymbolTable.shared() ids
+                                     //   (null when edgeWords holds shared ids directly)
+   private DoubleBuffer nodeTimes;   // Stores the timestamp for each node
    private int nonSilenceWords;
+   private volatile int[] topOrder;  // Cached topological order, built on first use
+   private volatile IntervalIndex timeIndex;          // Edge time spans, built on first use
+   private volatile HitIndex wordHits;                // Word id -> sorted hit midpoints
+   
+   private static final int SILENCE = SymbolTable.shared().id("-silence-");
    
    // Constructor
    
@@ -36,59 +48,397 @@ public class Lattice {
    //     - Field endIdx contains the node number for the end node
    //     - Field numNodes contains the number of nodes in the lattice
    //     - Field numEdges contains the number of edges in the lattice
-   //     - Field adjMatrix encodes the edges in the lattice:
-   //        If an edge exists from node i to node j, adjMatrix[i][j] contains
-   //        the address of an Edge object, which itself contains
-   //           1) The edge's label (word)
-   //           2) The edge's acoustic model score (amScore)
-   //           3) The edge's language model score (lmScore)
-   //        If no edge exists from node i to node j, adjMatrix[i][j] == null
+   //     - Fields outOffsets, edgeTargets, edgeWords, edgeAmScores and
+   //       edgeLmScores encode the edges in the lattice in CSR form:
+   //        For every edge k leaving node i (outOffsets[i] <= k < outOffsets[i+1])
+   //           1) edgeTargets[k] is the node the edge points to
+   //           2) edgeWords[k] is the SymbolTable.shared() id of the edge's label
+   //           3) edgeAmScores[k] is the edge's acoustic model score (amScore)
+   //           4) edgeLmScores[k] is the edge's language model score (lmScore)
+   //        If the file lists the same (i,j) edge twice, the last one wins
+   //     - Throws UncheckedIOException if the file cannot be read and
+   //       IllegalArgumentException if it is not a valid lattice file
    public Lattice(String latticeFilename) {
+      ByteScanner input = null;
+      try {
+         long started = LatticeMetrics.start();
+         input = new ByteScanner(latticeFilename);
+         parse(input);
+         LatticeMetrics.stop(LatticeMetrics.Phase.PARSE, started, utteranceID, numNodes, numEdges);
+      } catch (IOException e) {
+         throw new UncheckedIOException("Error: Unable to read file " + latticeFilename, e);
+      } catch (RuntimeException e) {
+         throw new IllegalArgumentException("Error: Not able to parse file " + latticeFilename
+                                            + ": " + e.getMessage(), e);
+      } finally {
+         if (input != null) {
+            try {
+               input.close();
+            } catch (IOException e) {
+               // Nothing useful to do; everything has already been read
+            }
+         }
+      }
+   }
+   
+   // parse
+   // Pre-conditions:
+   //    - input is positioned at the start of a lattice file
+   // Post-conditions:
+   //    - The fields are set as described for the constructor
+   //    - Edge labels are interned in SymbolTable.shared(), so every lattice
+   //      shares a single String per distinct word
+   //    - Throws an unchecked exception describing the first problem found
+   private void parse(ByteScanner input) throws IOException {
+      SymbolTable symbols = SymbolTable.shared();
+      expectKeyword(input, "id");
+      utteranceID = nextToken(input).tokenString();
+      expectKeyword(input, "start");
+      startIdx = nextToken(input).tokenAsInt();
+      expectKeyword(input, "end");
+      endIdx = nextToken(input).tokenAsInt();
+      expectKeyword(input, "numNodes");
+      numNodes = nextToken(input).tokenAsInt();
+      expectKeyword(input, "numEdges");
+      numEdges = nextToken(input).tokenAsInt();
+      if (numNodes <= 0 || numEdges < 0)
+         throw new IllegalArgumentException("bad lattice size " + numNodes + " nodes, " + numEdges + " edges");
+      checkNode(startIdx);
+      checkNode(endIdx);
       
-      Scanner input = null;
+      double[] times = new double[numNodes];
+      nonSilenceWords = 0;
+      int count = 0;
+      int[] sources = new int[numEdges];
+      int[] targets = new int[numEdges];
+      int[] labels = new int[numEdges];
+      int[] amScores = new int[numEdges];
+      int[] lmScores = new int[numEdges];
+      while (input.next()) {
+         if (input.tokenIs("node")) {
+            int aNode = checkNode(nextToken(input).tokenAsInt());
+            times[aNode] = nextToken(input).tokenAsDouble();
+         } else if (input.tokenIs("edge")) {
+            int node1 = checkNode(nextToken(input).tokenAsInt());
+            int node2 = checkNode(nextToken(input).tokenAsInt());
+            int label = nextToken(input).tokenSymbol(symbols);
+            if (label != SILENCE)
+               nonSilenceWords++;
+            int amScore = nextToken(input).tokenAsInt();
+            int lmScore = nextToken(input).tokenAsInt();
+            if (count == sources.length) {
+               int capacity = Math.max(16, count * 2);
+               sources = Arrays.copyOf(sources, capacity);
+               targets = Arrays.copyOf(targets, capacity);
+               labels = Arrays.copyOf(labels, capacity);
+               amScores = Arrays.copyOf(amScores, capacity);
+               lmScores = Arrays.copyOf(lmScores, capacity);
+            }
+            sources[count] = node1;
+            targets[count] = node2;
+            labels[count] = label;
+            amScores[count] = amScore;
+            lmScores[count] = lmScore;
+            count++;
+         } else {
+            throw new IllegalArgumentException("unexpected token \"" + input.tokenString() + "\"");
+         }
+      }
+      nodeTimes = DoubleBuffer.wrap(times);
+      buildCsr(sources, targets, labels, amScores, lmScores, count);
+   }
+   
+   // nextToken
+   // Advances input to the next token, which must exist
+   private static ByteScanner nextToken(ByteScanner input) throws IOException {
+      if (!input.next())
+         throw new IllegalArgumentException("unexpected end of file");
+      return input;
+   }
+   
+   // expectKeyword
+   // Advances input to the next token, which must be keyword
+   private static void expectKeyword(ByteScanner input, String keyword) throws IOException {
+      if (!nextToken(input).tokenIs(keyword))
+         throw new IllegalArgumentException("expected \"" + keyword + "\" but found \""
+                                            + input.tokenString() + "\"");
+   }
+   
+   // checkNode
+   // Returns node if it is a valid node number for this lattice
+   private int checkNode(int node) {
+      if (node < 0 || node >= numNodes)
+         throw new IllegalArgumentException("node " + node + " is out of range");
+      return node;
+   }
+   
+   // buildCsr
+   // Pre-conditions:
+   //    - The first count entries of sources, targets, words, amScores and
+   //      lmScores describe the edges of the lattice, in file order
+   //    - words holds SymbolTable.shared() ids
+   //    - numNodes has been set
+   // Post-conditions:
+   //    - The CSR fields hold the edges grouped by source node and sorted by
+   //      target node within each group, with duplicate (i,j) edges collapsed
+   //      to the last one listed
+   //    - Runs in O(V+E) using two stable counting sorts
+   private void buildCsr(int[] sources, int[] targets, int[] words,
+                         int[] amScores, int[] lmScores, int count) {
+      int[] byTarget = countingSort(targets, null, count);
+      int[] order = countingSort(sources, byTarget, count);
+      
+      int[] offsets = new int[numNodes + 1];
+      int[] csrTargets = new int[count];
+      int[] csrWords = new int[count];
+      int[] csrAmScores = new int[count];
+      int[] csrLmScores = new int[count];
+      int size = 0;
+      for (int k = 0; k < count; k++) {
+         int e = order[k];
+         // Stable ordering means a duplicate (i,j) edge directly follows the
+         // one it replaces
+         if (size > 0 && sources[order[k-1]] == sources[e] && csrTargets[size-1] == targets[e]) {
+            size--;
+         } else {
+            offsets[sources[e] + 1]++;
+         }
+         csrTargets[size] = targets[e];
+         csrWords[size] = words[e];
+         csrAmScores[size] = amScores[e];
+         csrLmScores[size] = lmScores[e];
+         size++;
+      }
+      for (int i = 0; i < numNodes; i++) {
+         offsets[i+1] += offsets[i];
+      }
+      outOffsets = IntBuffer.wrap(offsets);
+      edgeTargets = IntBuffer.wrap(csrTargets, 0, size).slice();
+      edgeWords = IntBuffer.wrap(csrWords, 0, size).slice();
+      edgeAmScores = IntBuffer.wrap(csrAmScores, 0, size).slice();
+      edgeLmScores = IntBuffer.wrap(csrLmScores, 0, size).slice();
+      wordIds = null;
+   }
+   
+   // countingSort
+   // Pre-conditions:
+   //    - keys holds node numbers in the range [0, numNodes)
+   //    - order is a permutation of the first count edge indices, or null
+   //      for the identity permutation
+   // Post-conditions:
+   //    - Returns a new permutation of the edge indices, stably sorted by key
+   private int[] countingSort(int[] keys, int[] order, int count) {
+      int[] starts = new int[numNodes + 1];
+      for (int k = 0; k < count; k++) {
+         starts[keys[k] + 1]++;
+      }
+      for (int i = 0; i < numNodes; i++) {
+         starts[i+1] += starts[i];
+      }
+      int[] sorted = new int[count];
+      for (int k = 0; k < count; k++) {
+         int e = (order == null) ? k : order[k];
+         sorted[starts[keys[e]]++] = e;
+      }
+      return sorted;
+   }
+   
+   // openMapped
+   // Pre-conditions:
+   //    - binaryFilename contains the path of a file written by saveAsBinary
+   // Post-conditions:
+   //    - A new Lattice is returned whose node times and CSR edge arrays are
+   //      views of the memory-mapped file rather than copies on the heap;
+   //      only the label string table is read and interned
+   //    - Throws UncheckedIOException if the file cannot be read and
+   //      IllegalArgumentException if it is not a valid binary lattice
+   public static Lattice openMapped(String binaryFilename) {
+      RandomAccessFile file = null;
       try {
-         input = new Scanner(new File(latticeFilename));
-      } catch( FileNotFoundException e ) {
-         System.err.println("Error: Unable to open file " + latticeFilename);
-         System.exit(1);
-      }
-      try {        
-         if (input.next().equals("id"))
-            utteranceID = input.next();
-         if (input.next().equals("start"))
-            startIdx = Integer.parseInt(input.next());
-         if (input.next().equals("end"))
-            endIdx = Integer.parseInt(input.next());
-         if (input.next().equals("numNodes"))
-            numNodes = Integer.parseInt(input.next());
-         if (input.next().equals("numEdges"))
-            numEdges = Integer.parseInt(input.next());
-      } catch (NoSuchElementException e){
-         System.err.println("Error: Not able to parse file " + latticeFilename);
-         System.exit(1);
-      }
-      nodeTimes = new double[numNodes];
-       nonSilenceWords = 0;
-      adjMatrix = new Edge[numNodes][numNodes];
-      while (input.hasNext()) {
-         String type = input.next();
-         if (type.equals("node")) {
-            int aNode = Integer.parseInt(input.next());
-            nodeTimes[aNode]= Double.parseDouble(input.next());
-         }
-         if (type.equals("edge")) {
-            int node1 = Integer.parseInt(input.next());
-            int node2 = Integer.parseInt(input.next());
-            String label = input.next();
-            if(!label.equals("-silence-"))
-                  nonSilenceWords++;
-            int amScore = Integer.parseInt(input.next());
-            int lmScore = Integer.parseInt(input.next());
-            adjMatrix[node1][node2] = new Edge(label, amScore, lmScore);
+         file = new RandomAccessFile(binaryFilename, "r");
+         if (file.length() > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("file is larger than 2GB");
+         // The mapping stays valid after the file is closed
+         ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+         Lattice lattice = new Lattice();
+         long started = LatticeMetrics.start();
+         lattice.loadBinary(buffer.order(ByteOrder.LITTLE_ENDIAN));
+         LatticeMetrics.stop(LatticeMetrics.Phase.PARSE, started, lattice.utteranceID,
+                             lattice.numNodes, lattice.numEdges);
+         return lattice;
+      } catch (IOException e) {
+         throw new UncheckedIOException("Error: Unable to read file " + binaryFilename, e);
+      } catch (RuntimeException e) {
+         throw new IllegalArgumentException("Error: Not able to parse file " + binaryFilename
+                                            + ": " + e.getMessage(), e);
+      } finally {
+         if (file != null) {
+            try {
+               file.close();
+            } catch (IOException e) {
+               // Nothing useful to do; the mapping does not need the file open
+            }
          }
       }
    }
    
+   // Lattice
+   // Used by openMapped, which fills in the fields itself
+   private Lattice() {
+   }
+   
+   // Lattice
+   // Pre-conditions:
+   //    - nodeTimes has one entry per node, and startIdx and endIdx are
+   //      valid node numbers
+   //    - The first count entries of sources, targets, words, amScores and
+   //      lmScores describe the edges, with words holding SymbolTable.shared() ids
+   // Post-conditions:
+   //    - A lattice with exactly those nodes and edges has been created
+   //      (the arrays are not copied, so the caller must not change them)
+   //    - numEdges and nonSilenceWords are computed from the edges
+   Lattice(String utteranceID, int startIdx, int endIdx, double[] nodeTimes,
+           int[] sources, int[] targets, int[] words, int[] amScores, int[] lmScores, int count) {
+      this.utteranceID = utteranceID;
+      this.numNodes = nodeTimes.length;
+      if (numNodes == 0)
+         throw new IllegalArgumentException("a lattice needs at least one node");
+      this.startIdx = checkNode(startIdx);
+      this.endIdx = checkNode(endIdx);
+      for (int k = 0; k < count; k++) {
+         checkNode(sources[k]);
+         checkNode(targets[k]);
+      }
+      this.nodeTimes = DoubleBuffer.wrap(nodeTimes);
+      buildCsr(sources, targets, words, amScores, lmScores, count);
+      numEdges = outOffsets.get(numNodes);
+      for (int k = 0; k < numEdges; k++) {
+         if (wordId(k) != SILENCE)
+            nonSilenceWords++;
+      }
+   }
+   
+   // Binary lattice format (all values little-endian)
+   //    Header, 12 ints:
+   //       BINARY_MAGIC, BINARY_VERSION, numNodes, numEdges, number of CSR
+   //       edges E, startIdx, endIdx, nonSilenceWords, number of labels W,
+   //       utteranceID length in bytes, total label length in bytes, 0
+   //    int[W]             byte length of each label
+   //    byte[]             utteranceID, then every label, in UTF-8
+   //    (zero padding to a multiple of 8 bytes)
+   //    double[numNodes]   node times
+   //    int[numNodes+1]    CSR row offsets
+   //    int[E]             edge targets
+   //    int[E]             edge labels, as indices into the label list
+   //    int[E]             edge amScores
+   //    int[E]             edge lmScores
+   private static final int BINARY_MAGIC = 0x4254414c;   // "LATB"
+   private static final int BINARY_VERSION = 1;
+   private static final int BINARY_HEADER_BYTES = 48;
+   
+   // loadBinary
+   // Pre-conditions:
+   //    - buffer holds a whole binary lattice file and is little-endian
+   // Post-conditions:
+   //    - The fields are set to views of buffer, and every label has been
+   //      mapped to its SymbolTable.shared() id through wordIds
+   private void loadBinary(ByteBuffer buffer) {
+      if (buffer.getInt(0) != BINARY_MAGIC)
+         throw new IllegalArgumentException("not a binary lattice file");
+      if (buffer.getInt(4) != BINARY_VERSION)
+         throw new IllegalArgumentException("unsupported version " + buffer.getInt(4));
+      numNodes = buffer.getInt(8);
+      numEdges = buffer.getInt(12);
+      int edges = buffer.getInt(16);
+      startIdx = buffer.getInt(20);
+      endIdx = buffer.getInt(24);
+      nonSilenceWords = buffer.getInt(28);
+      int numWords = buffer.getInt(32);
+      int idBytes = buffer.getInt(36);
+      int labelBytes = buffer.getInt(40);
+      if (numNodes <= 0 || numEdges < 0 || edges < 0 || numWords < 0 || idBytes < 0 || labelBytes < 0)
+         throw new IllegalArgumentException("corrupt header");
+      checkNode(startIdx);
+      checkNode(endIdx);
+      
+      long timesOffset = align8((long) BINARY_HEADER_BYTES + 4L * numWords + idBytes + labelBytes);
+      long offsetsOffset = timesOffset + 8L * numNodes;
+      long targetsOffset = offsetsOffset + 4L * (numNodes + 1);
+      long size = targetsOffset + 16L * edges;
+      if (size != buffer.capacity())
+         throw new IllegalArgumentException("expected " + size + " bytes but file has " + buffer.capacity());
+      
+      int position = BINARY_HEADER_BYTES + 4 * numWords;
+      byte[] bytes = new byte[Math.max(idBytes, 64)];
+      buffer.position(position);
+      buffer.get(bytes, 0, idBytes);
+      utteranceID = new String(bytes, 0, idBytes, StandardCharsets.UTF_8);
+      SymbolTable symbols = SymbolTable.shared();
+      wordIds = new int[numWords];
+      long remaining = labelBytes;
+      for (int w = 0; w < numWords; w++) {
+         int length = buffer.getInt(BINARY_HEADER_BYTES + 4 * w);
+         if (length < 0 || length > remaining)
+            throw new IllegalArgumentException("corrupt length for label " + w);
+         remaining -= length;
+         if (length > bytes.length)
+            bytes = new byte[length];
+         buffer.get(bytes, 0, length);
+         wordIds[w] = symbols.id(bytes, 0, length);
+      }
+      
+      nodeTimes = section(buffer, timesOffset, 8L * numNodes).asDoubleBuffer();
+      outOffsets = section(buffer, offsetsOffset, 4L * (numNodes + 1)).asIntBuffer();
+      edgeTargets = section(buffer, targetsOffset, 4L * edges).asIntBuffer();
+      edgeWords = section(buffer, targetsOffset + 4L * edges, 4L * edges).asIntBuffer();
+      edgeAmScores = section(buffer, targetsOffset + 8L * edges, 4L * edges).asIntBuffer();
+      edgeLmScores = section(buffer, targetsOffset + 12L * edges, 4L * edges).asIntBuffer();
+      if (remaining != 0)
+         throw new IllegalArgumentException("label lengths do not add up to " + labelBytes + " bytes");
+      checkBinaryEdges(edges, numWords);
+   }
+
+   // checkBinaryEdges
+   // Pre-conditions:
+   //    - loadBinary has set the CSR fields to views of a file claiming to
+   //      hold edges edges and numWords labels
+   // Post-conditions:
+   //    - Throws IllegalArgumentException unless the row offsets start at 0,
+   //      never decrease and end at edges, every edge target is a node and
+   //      every label index is below numWords, so a corrupt file fails here
+   //      rather than with an index error in a later query
+   private void checkBinaryEdges(int edges, int numWords) {
+      if (outOffsets.get(0) != 0 || outOffsets.get(numNodes) != edges)
+         throw new IllegalArgumentException("corrupt edge offsets");
+      for (int i = 0; i < numNodes; i++) {
+         if (outOffsets.get(i+1) < outOffsets.get(i))
+            throw new IllegalArgumentException("edge offsets of node " + (i+1) + " go backwards");
+      }
+      for (int k = 0; k < edges; k++) {
+         int target = edgeTargets.get(k);
+         if (target < 0 || target >= numNodes)
+            throw new IllegalArgumentException("edge " + k + " points to node " + target
+                                               + ", which is out of range");
+         int label = edgeWords.get(k);
+         if (label < 0 || label >= numWords)
+            throw new IllegalArgumentException("edge " + k + " has label " + label
+                                               + ", but there are only " + numWords);
+      }
+   }
+   
+   // section
+   // Returns a little-endian view of bytes [offset, offset+length) of buffer
+   private static ByteBuffer section(ByteBuffer buffer, long offset, long length) {
+      ByteBuffer view = buffer.duplicate();
+      view.position((int) offset);
+      view.limit((int) (offset + length));
+      return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+   }
+   
+   private static long align8(long offset) {
+      return (offset + 7) & ~7L;
+   }
+   
    // Accessors
    
    // getUtteranceID
@@ -129,24 +479,218 @@ public class Lattice {
    //      from the class's fields
    //    - toString simply returns a string, it should not print anything itself
    public String toString() {
-      StringBuilder answer = new StringBuilder(numNodes*2);
-       answer.append("id " + utteranceID + "\n" + "start " + startIdx + "\n" + "end " + endIdx + "\n"
-      + "numNodes " + numNodes + "\n" + "numEdges " + numEdges + "\n");
-      
+      StringBuilder answer = new StringBuilder(16 * numNodes + 32 * outOffsets.get(numNodes) + 64);
+      try {
+         writeTo(answer);
+      } catch (IOException e) {
+         throw new AssertionError(e);     // StringBuilder never throws
+      }
+      return answer.toString();
+   }
+   
+   // writeTo
+   // Pre-conditions:
+   //    - out is where the lattice should be written
+   // Post-conditions:
+   //    - The same text toString returns has been appended to out, through
+   //      a fixed-size buffer, so no copy of the whole text is built
+   public void writeTo(Appendable out) throws IOException {
+      long started = LatticeMetrics.start();
+      TextWriter writer = new TextWriter(out);
+      writeText(writer);
+      writer.flush();
+      LatticeMetrics.stop(LatticeMetrics.Phase.OUTPUT, started, utteranceID, numNodes, numEdges);
+   }
+   
+   // writeTo
+   // Pre-conditions:
+   //    - out is where the lattice should be written
+   // Post-conditions:
+   //    - The same text toString returns has been written to out as UTF-8,
+   //      through fixed-size buffers, so memory use does not grow with the
+   //      size of the lattice
+   public void writeTo(java.nio.channels.WritableByteChannel out) throws IOException {
+      long started = LatticeMetrics.start();
+      TextWriter writer = new TextWriter(out, StandardCharsets.UTF_8);
+      writeText(writer);
+      writer.flush();
+      LatticeMetrics.stop(LatticeMetrics.Phase.OUTPUT, started, utteranceID, numNodes, numEdges);
+   }
+   
+   // writeText
+   // Writes the lattice file format (see toString) to writer
+   private void writeText(TextWriter writer) throws IOException {
+      writer.write("id ").write(utteranceID).write('\n');
+      writer.write("start ").writeInt(startIdx).write('\n');
+      writer.write("end ").writeInt(endIdx).write('\n');
+      writer.write("numNodes ").writeInt(numNodes).write('\n');
+      writer.write("numEdges ").writeInt(numEdges).write('\n');
       for (int i=0; i < numNodes; i++) {
-         String nodeTime = String.format("%.2f", nodeTimes[i]);
-         answer.append("node " + i + " " + nodeTime + "\n");
+         writer.write("node ").writeInt(i).write(' ').writeFixed2(nodeTimes.get(i)).write('\n');
       }
-      
       for (int i=0; i < numNodes; i++){
-         for (int j=0; j < numNodes; j++){
-            Edge anEdge = adjMatrix[i][j];
-            if (anEdge != null){           
-               answer.append("edge " + i + " " + j + " " + anEdge.getLabel() + " " + anEdge.getAmScore() + " " + anEdge.getLmScore() + "\n");
+         for (int k = outOffsets.get(i); k < outOffsets.get(i+1); k++){
+            writer.write("edge ").writeInt(i).write(' ').writeInt(edgeTargets.get(k)).write(' ')
+                  .write(label(k)).write(' ').writeInt(edgeAmScores.get(k)).write(' ')
+                  .writeInt(edgeLmScores.get(k)).write('\n');
+         }
+      }
+   }
+   
+   // writeDot
+   // Writes the lattice in dot format (see writeAsDot) to writer, ending each
+   // line with newline
+   private void writeDot(TextWriter writer, String newline) throws IOException {
+      writer.write("digraph g {\n   rankdir=\"LR\"").write(newline);
+      for (int i=0; i < numNodes; i++){
+         for (int k = outOffsets.get(i); k < outOffsets.get(i+1); k++){
+            writer.write("   ").writeInt(i).write(" -> ").writeInt(edgeTargets.get(k))
+                  .write(" [label = \"").write(label(k)).write("\"]").write(newline);
+         }
+      }
+      writer.write("}").write(newline);
+   }
+   
+   // TextWriter
+   // Collects text in a reusable char buffer and hands it to an Appendable, or
+   // encodes it into a reusable byte buffer for a channel, whenever it fills
+   private static final class TextWriter {
+      private final char[] buffer = new char[8192];
+      private int size;
+      private final Appendable appendable;                  // Set when writing text
+      private final java.nio.channels.WritableByteChannel channel;   // Set when writing bytes
+      private final java.nio.charset.CharsetEncoder encoder;
+      private final ByteBuffer bytes;
+      private final char decimalSeparator;    // What String.format("%.2f") writes for '.'
+      private final boolean asciiDigits;      // Whether it writes the digits 0-9
+      
+      TextWriter(Appendable out) {
+         this.appendable = out;
+         this.channel = null;
+         this.encoder = null;
+         this.bytes = null;
+         java.text.DecimalFormatSymbols symbols = formatSymbols();
+         this.decimalSeparator = symbols.getDecimalSeparator();
+         this.asciiDigits = symbols.getZeroDigit() == '0';
+      }
+      
+      TextWriter(java.nio.channels.WritableByteChannel out, java.nio.charset.Charset charset) {
+         this.appendable = null;
+         this.channel = out;
+         // Like the PrintStream saveAsFile used to write through, replace what
+         // the charset cannot encode rather than fail
+         this.encoder = charset.newEncoder()
+                               .onMalformedInput(java.nio.charset.CodingErrorAction.REPLACE)
+                               .onUnmappableCharacter(java.nio.charset.CodingErrorAction.REPLACE);
+         this.bytes = ByteBuffer.allocate(4 * buffer.length);
+         java.text.DecimalFormatSymbols symbols = formatSymbols();
+         this.decimalSeparator = symbols.getDecimalSeparator();
+         this.asciiDigits = symbols.getZeroDigit() == '0';
+      }
+      
+      // The symbols String.format uses, those of the default FORMAT locale
+      private static java.text.DecimalFormatSymbols formatSymbols() {
+         return java.text.DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+      }
+      
+      TextWriter write(char c) throws IOException {
+         if (size == buffer.length)
+            drain(false);
+         buffer[size++] = c;
+         return this;
+      }
+      
+      TextWriter write(String text) throws IOException {
+         for (int i = 0; i < text.length(); ) {
+            if (size == buffer.length)
+               drain(false);
+            int length = Math.min(buffer.length - size, text.length() - i);
+            text.getChars(i, i + length, buffer, size);
+            size += length;
+            i += length;
+         }
+         return this;
+      }
+      
+      TextWriter writeInt(long value) throws IOException {
+         if (buffer.length - size < 20)
+            drain(false);
+         if (value < 0) {
+            buffer[size++] = '-';
+         } else {
+            value = -value;      // Work with negatives so Long.MIN_VALUE fits
+         }
+         int start = size;
+         do {
+            buffer[size++] = (char) ('0' - (value % 10));
+            value /= 10;
+         } while (value != 0);
+         for (int i = start, j = size - 1; i < j; i++, j--) {
+            char c = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = c;
+         }
+         return this;
+      }
+      
+      // writeFixed2
+      // Writes value exactly as String.format("%.2f", value) would, in the
+      // default locale, decimal separator included. Values that are (to
+      // within rounding error) a whole number of hundredths, which covers
+      // lattice node times, are written directly; anything else, or any
+      // locale whose digits are not 0-9, is passed to String.format
+      TextWriter writeFixed2(double value) throws IOException {
+         double scaled = value * 100;
+         // The sign bit test sends -0.0 to String.format, which prints "-0.00"
+         if (asciiDigits && Double.doubleToRawLongBits(value) >= 0 && scaled < 1e15) {
+            long hundredths = Math.round(scaled);
+            if (Math.abs(scaled - hundredths) < 1e-6) {
+               writeInt(hundredths / 100).write(decimalSeparator);
+               long fraction = hundredths % 100;
+               return write((char) ('0' + fraction / 10)).write((char) ('0' + fraction % 10));
             }
          }
+         return write(String.format("%.2f", value));
+      }
+      
+      void flush() throws IOException {
+         drain(true);
+      }
+      
+      // Passes the buffered text on; at endOfInput the encoder is also flushed
+      private void drain(boolean endOfInput) throws IOException {
+         if (appendable != null) {
+            appendable.append(CharBuffer.wrap(buffer, 0, size));
+            size = 0;
+            return;
+         }
+         CharBuffer chars = CharBuffer.wrap(buffer, 0, size);
+         while (true) {
+            java.nio.charset.CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isError())
+               result.throwException();
+            writeBytes();
+            if (result.isUnderflow())
+               break;
+         }
+         // Keep the first half of a surrogate pair split across two drains
+         int left = chars.remaining();
+         System.arraycopy(buffer, chars.position(), buffer, 0, left);
+         size = left;
+         if (endOfInput) {
+            encoder.flush(bytes);
+            writeBytes();
+            encoder.reset();
+         }
+      }
+      
+      private void writeBytes() throws IOException {
+         bytes.flip();
+         while (bytes.hasRemaining()) {
+            channel.write(bytes);
+         }
+         bytes.clear();
       }
-      return answer.toString();
    }
    
    // decode
@@ -157,48 +701,610 @@ public class Lattice {
    //    - A new Hypothesis object is returned that contains the shortest path
    //      (aka most probable path) from the startIdx to the endIdx
    public Hypothesis decode(double lmScale) {
-      Hypothesis answer = new Hypothesis();
+      long started = LatticeMetrics.start();
       double[] cost = new double[numNodes];
-      int[] parent = new int[numNodes];
-      LinkedList<Integer> results = new LinkedList<Integer>();
+      int[] parentEdge = new int[numNodes];
       
       for (int i=0; i<numNodes; i++) {
          cost[i] = Double.POSITIVE_INFINITY;
       }
       cost[startIdx] = 0;
-      int[] topSorted = this.topologicalSort();
-      
-      for (int N: topSorted) {
-         for (int I: topSorted) {
-            if( adjMatrix[I][N] != null) {   
-               Edge anEdge = adjMatrix[I][N];      
-               double score = anEdge.getAmScore() + (anEdge.getLmScore() * lmScale);
-               if ( (score + cost[I]) < cost[N]) {
-                  cost[N] = score + cost[I];
-                  parent[N] = I;
-               }        
+      
+      // Relaxing the outgoing edges of each node in topological order visits
+      // every edge exactly once, so the whole decode is O(V+E)
+      for (int I: topologicalOrder()) {
+         double base = cost[I];
+         if (base == Double.POSITIVE_INFINITY)
+            continue;
+         for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+            int N = edgeTargets.get(k);
+            double score = edgeAmScores.get(k) + (edgeLmScores.get(k) * lmScale);
+            if ( (score + base) < cost[N]) {
+               cost[N] = score + base;
+               parentEdge[N] = k;
+            }
+         }
+      }
+      Hypothesis answer = tracePath(parentEdge, 1, 0, cost[endIdx] != Double.POSITIVE_INFINITY, lmScale);
+      LatticeMetrics.stop(LatticeMetrics.Phase.DECODE, started, utteranceID, numNodes, numEdges);
+      return answer;
+   }
+   
+   // decodeSweep
+   // Pre-conditions:
+   //    - lmScales holds the lmScale values to decode under (see decode)
+   // Post-conditions:
+   //    - A new Hypothesis[] is returned where element s is the same
+   //      Hypothesis decode(lmScales[s]) would return
+   //    - The edges are walked once for all scales: the costs for node n are
+   //      stored contiguously at cost[n*S] .. cost[n*S + S-1], so the inner
+   //      loop over scales is a straight-line loop the JIT can vectorize
+   public Hypothesis[] decodeSweep(double[] lmScales) {
+      int S = lmScales.length;
+      double[] cost = new double[numNodes * S];
+      int[] parentEdge = new int[numNodes * S];
+      
+      Arrays.fill(cost, Double.POSITIVE_INFINITY);
+      Arrays.fill(cost, startIdx * S, startIdx * S + S, 0.0);
+      
+      for (int I: topologicalOrder()) {
+         int from = I * S;
+         for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+            int to = edgeTargets.get(k) * S;
+            double am = edgeAmScores.get(k);
+            double lm = edgeLmScores.get(k);
+            for (int s = 0; s < S; s++) {
+               double score = am + (lm * lmScales[s]);
+               if ( (score + cost[from + s]) < cost[to + s]) {
+                  cost[to + s] = score + cost[from + s];
+                  parentEdge[to + s] = k;
+               }
             }
          }
       }
-      int node = endIdx;
-      while (node != startIdx) {
-         results.addFirst(node);
-         node = parent[node]; 
-      } 
-      results.addFirst(startIdx);  
-      int previous = -1;
-      for (int i: results) {    
-         int current = i;
-         if (previous != -1) {
-            Edge anEdge = adjMatrix[previous][current];
-            String word = anEdge.getLabel();
-            double score = anEdge.getAmScore() + (anEdge.getLmScore() * lmScale);
-            answer.addWord(word, score);
+      Hypothesis[] answer = new Hypothesis[S];
+      for (int s = 0; s < S; s++) {
+         boolean reachable = cost[endIdx * S + s] != Double.POSITIVE_INFINITY;
+         answer[s] = tracePath(parentEdge, S, s, reachable, lmScales[s]);
+      }
+      return answer;
+   }
+   
+   // tracePath
+   // Pre-conditions:
+   //    - parentEdge[n*stride + offset] holds the index of the best edge into
+   //      node n for every node on the best path from startIdx to endIdx
+   //    - reachable is false if no path from startIdx to endIdx exists
+   // Post-conditions:
+   //    - A new Hypothesis is returned with the words on that path, in order
+   //      (an empty Hypothesis if endIdx is not reachable)
+   private Hypothesis tracePath(int[] parentEdge, int stride, int offset, boolean reachable, double lmScale) {
+      Hypothesis answer = new Hypothesis();
+      if (!reachable)
+         return answer;
+      int[] path = new int[numNodes];
+      int length = 0;
+      for (int node = endIdx; node != startIdx; node = sourceOf(path[length-1])) {
+         path[length++] = parentEdge[node * stride + offset];
+      }
+      for (int i = length - 1; i >= 0; i--) {
+         int k = path[i];
+         answer.addWord(label(k), edgeAmScores.get(k) + (edgeLmScores.get(k) * lmScale));
+      }
+      return answer;
+   }
+   
+   // nBest
+   // Pre-conditions:
+   //    - n is the maximum number of hypotheses wanted
+   //    - lmScale weights the edges as in decode
+   // Post-conditions:
+   //    - An Iterator is returned that yields up to n Hypothesis objects for
+   //      distinct start-to-end paths, in order of increasing total score
+   //      (the first one is the decode(lmScale) path, up to ties)
+   //    - Paths are enumerated lazily: each call to next() only expands the
+   //      partial paths needed to find the next one, so callers can stop at
+   //      any point without paying for the paths they did not ask for
+   public Iterator<Hypothesis> nBest(int n, double lmScale) {
+      return new NBestIterator(n, lmScale);
+   }
+   
+   // rescore
+   // Pre-conditions:
+   //    - lm scores words with an n-gram language model (see NgramCache)
+   //    - lmScale weights the new language model costs as in decode
+   //    - beam >= 0 limits the search: at each node, states costing more
+   //      than beam above the node's best state are not expanded
+   // Post-conditions:
+   //    - A new Hypothesis object is returned with the best start-to-end path
+   //      when every edge's lmScore is replaced by lm's cost for its word
+   //      given the words before it on the path (and ending the sentence
+   //      costs lm.endCost), or an empty Hypothesis if no path survives
+   //      the beam. Each word's score is its amScore plus its scaled new cost
+   //    - The lattice is expanded into (node, history) states lazily: a
+   //      state is only created when a state within the beam at an earlier
+   //      node reaches it, and states with the same node and history are
+   //      merged, so the work is bounded by the beam rather than by the
+   //      size of the full composition
+   public Hypothesis rescore(NgramCache lm, double lmScale, double beam) {
+      long started = LatticeMetrics.start();
+      StateList states = new StateList(numNodes);
+      states.reach(startIdx, lm.startHistory(), 0, -1, -1);
+      
+      for (int I : topologicalOrder()) {
+         double best = Double.POSITIVE_INFINITY;
+         for (int s = states.head[I]; s >= 0; s = states.next[s]) {
+            best = Math.min(best, states.costs[s]);
+         }
+         double limit = best + beam;
+         int end = outOffsets.get(I+1);
+         for (int s = states.head[I]; s >= 0; s = states.next[s]) {
+            double base = states.costs[s];
+            if (base > limit || I == endIdx)
+               continue;
+            long history = states.histories[s];
+            for (int k = outOffsets.get(I); k < end; k++) {
+               int word = wordId(k);
+               double score = edgeAmScores.get(k) + (lm.cost(history, word) * lmScale);
+               states.reach(edgeTargets.get(k), lm.next(history, word), base + score, s, k);
+            }
+         }
+      }
+      
+      int bestState = -1;
+      double bestCost = Double.POSITIVE_INFINITY;
+      for (int s = states.head[endIdx]; s >= 0; s = states.next[s]) {
+         double cost = states.costs[s] + (lm.endCost(states.histories[s]) * lmScale);
+         if (cost < bestCost) {
+            bestCost = cost;
+            bestState = s;
          }
-         previous = current;
       }
+      Hypothesis answer = new Hypothesis();
+      if (bestState >= 0)
+         traceStates(states, bestState, answer);
+      LatticeMetrics.stop(LatticeMetrics.Phase.RESCORE, started, utteranceID, numNodes, numEdges);
       return answer;
    }
+   
+   // traceStates
+   // Adds the words on the path into state to answer, in order
+   private void traceStates(StateList states, int state, Hypothesis answer) {
+      int length = 0;
+      for (int s = state; states.edges[s] >= 0; s = states.parents[s]) {
+         length++;
+      }
+      int[] path = new int[length];
+      for (int s = state; states.edges[s] >= 0; s = states.parents[s]) {
+         path[--length] = s;
+      }
+      for (int s : path) {
+         answer.addWord(label(states.edges[s]), states.costs[s] - states.costs[states.parents[s]]);
+      }
+   }
+   
+   // StateList
+   // The (node, language model history) states of rescore. The states of a
+   // node are linked through head and next, and byKey finds a state from
+   // its node and the dense number given to its history
+   private static class StateList {
+      long[] histories = new long[16];
+      double[] costs = new double[16];
+      int[] parents = new int[16];       // The state this one was reached from
+      int[] edges = new int[16];         //   and the edge taken, or -1 for the first
+      int[] next = new int[16];
+      int[] head;
+      int size;
+      LongIntHashMap historyNumbers = new LongIntHashMap();
+      LongIntHashMap byKey = new LongIntHashMap();
+      
+      StateList(int numNodes) {
+         head = new int[numNodes];
+         Arrays.fill(head, -1);
+      }
+      
+      // Records that (node, history) can be reached at cost through edge
+      // from state parent, keeping only the cheapest way to reach it
+      void reach(int node, long history, double cost, int parent, int edge) {
+         int number = historyNumbers.get(history, -1);
+         if (number < 0) {
+            number = historyNumbers.size();
+            historyNumbers.put(history, number);
+         }
+         long key = ((long) node << 32) | number;
+         int s = byKey.get(key, -1);
+         if (s >= 0) {
+            if (cost < costs[s]) {
+               costs[s] = cost;
+               parents[s] = parent;
+               edges[s] = edge;
+            }
+            return;
+         }
+         if (size == costs.length) {
+            int capacity = size * 2;
+            histories = Arrays.copyOf(histories, capacity);
+            costs = Arrays.copyOf(costs, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            edges = Arrays.copyOf(edges, capacity);
+            next = Arrays.copyOf(next, capacity);
+         }
+         s = size++;
+         histories[s] = history;
+         costs[s] = cost;
+         parents[s] = parent;
+         edges[s] = edge;
+         next[s] = head[node];
+         head[node] = s;
+         byKey.put(key, s);
+      }
+   }
+   
+   // costsFromStart
+   // Pre-conditions:
+   //    - lmScale weights the edges as in decode
+   // Post-conditions:
+   //    - Returns the cost of the best path from startIdx to each node
+   //      (POSITIVE_INFINITY where the node cannot be reached)
+   private double[] costsFromStart(double lmScale) {
+      double[] cost = new double[numNodes];
+      Arrays.fill(cost, Double.POSITIVE_INFINITY);
+      cost[startIdx] = 0;
+      for (int I : topologicalOrder()) {
+         if (cost[I] == Double.POSITIVE_INFINITY)
+            continue;
+         for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+            double score = edgeAmScores.get(k) + (edgeLmScores.get(k) * lmScale);
+            if ( (score + cost[I]) < cost[edgeTargets.get(k)]) {
+               cost[edgeTargets.get(k)] = score + cost[I];
+            }
+         }
+      }
+      return cost;
+   }
+   
+   // costsToEnd
+   // Pre-conditions:
+   //    - lmScale weights the edges as in decode
+   // Post-conditions:
+   //    - Returns the cost of the best path from each node to endIdx
+   //      (POSITIVE_INFINITY where endIdx cannot be reached), computed with
+   //      one pass over the edges in reverse topological order
+   private double[] costsToEnd(double lmScale) {
+      double[] cost = new double[numNodes];
+      Arrays.fill(cost, Double.POSITIVE_INFINITY);
+      cost[endIdx] = 0;
+      int[] order = topologicalOrder();
+      for (int i = order.length - 1; i >= 0; i--) {
+         int I = order[i];
+         if (I == endIdx)
+            continue;
+         for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+            double score = edgeAmScores.get(k) + (edgeLmScores.get(k) * lmScale);
+            if ( (score + cost[edgeTargets.get(k)]) < cost[I]) {
+               cost[I] = score + cost[edgeTargets.get(k)];
+            }
+         }
+      }
+      return cost;
+   }
+   
+   // PartialPath
+   // A path from startIdx stored as a linked list running backwards, so all
+   // the extensions of a path share its prefix
+   private static class PartialPath implements Comparable<PartialPath> {
+      final PartialPath previous;   // The path without its last edge (null at startIdx)
+      final int node;               // The node this path ends at
+      final int edge;               // The last edge on the path (-1 at startIdx)
+      final int length;             // The number of edges on the path
+      final double cost;            // The cost so far
+      final double estimate;        // cost plus the best cost from node to endIdx
+      
+      PartialPath(PartialPath previous, int node, int edge, double cost, double estimate) {
+         this.previous = previous;
+         this.node = node;
+         this.edge = edge;
+         this.length = (previous == null) ? 0 : previous.length + 1;
+         this.cost = cost;
+         this.estimate = estimate;
+      }
+      
+      public int compareTo(PartialPath other) {
+         return Double.compare(estimate, other.estimate);
+      }
+   }
+   
+   // NBestIterator
+   // Best-first search over partial paths ordered by cost so far plus the exact
+   // cost to the end. Because that estimate is exact, complete paths come off
+   // the queue in cost order, and only partial paths that can still reach
+   // endIdx are ever queued
+   private class NBestIterator implements Iterator<Hypothesis> {
+      private final double lmScale;
+      private final double[] toEnd;
+      private final PriorityQueue<PartialPath> queue = new PriorityQueue<PartialPath>();
+      private int remaining;
+      private PartialPath nextPath;
+      
+      NBestIterator(int n, double lmScale) {
+         this.lmScale = lmScale;
+         this.toEnd = costsToEnd(lmScale);
+         this.remaining = n;
+         if (n > 0 && toEnd[startIdx] != Double.POSITIVE_INFINITY)
+            queue.add(new PartialPath(null, startIdx, -1, 0, toEnd[startIdx]));
+      }
+      
+      public boolean hasNext() {
+         if (nextPath == null && remaining > 0)
+            nextPath = advance();
+         return nextPath != null;
+      }
+      
+      public Hypothesis next() {
+         if (!hasNext())
+            throw new NoSuchElementException();
+         PartialPath path = nextPath;
+         nextPath = null;
+         remaining--;
+         int[] edges = new int[path.length];
+         for (PartialPath p = path; p.previous != null; p = p.previous) {
+            edges[p.length - 1] = p.edge;
+         }
+         Hypothesis answer = new Hypothesis();
+         for (int k : edges) {
+            answer.addWord(label(k), edgeAmScores.get(k) + (edgeLmScores.get(k) * lmScale));
+         }
+         return answer;
+      }
+      
+      // Expands partial paths until the next complete one is found, or
+      // returns null once every path has been produced
+      private PartialPath advance() {
+         while (!queue.isEmpty()) {
+            PartialPath path = queue.poll();
+            int I = path.node;
+            if (I == endIdx)
+               return path;
+            for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+               int N = edgeTargets.get(k);
+               if (toEnd[N] == Double.POSITIVE_INFINITY)
+                  continue;
+               double score = edgeAmScores.get(k) + (edgeLmScores.get(k) * lmScale);
+               double cost = path.cost + score;
+               queue.add(new PartialPath(path, N, k, cost, cost + toEnd[N]));
+            }
+         }
+         return null;
+      }
+   }
+   
+   // edgePosteriors
+   // Pre-conditions:
+   //    - lmScale weights the edges as in decode
+   //    - acousticScale > 0 converts an edge's score into a log probability:
+   //        log P(edge) = -acousticScale * (amScore + lmScale * lmScore)
+   // Post-conditions:
+   //    - Returns the posterior probability of every edge, i.e. the share of
+   //      the total start-to-end path probability that passes through it,
+   //      in the order toString lists the edges
+   //    - Computed with one forward and one backward pass in the log
+   //      semiring, so it runs in O(V+E) without underflow
+   public double[] edgePosteriors(double lmScale, double acousticScale) {
+      int edges = outOffsets.get(numNodes);
+      double[] logWeight = new double[edges];
+      for (int k = 0; k < edges; k++) {
+         logWeight[k] = -acousticScale * (edgeAmScores.get(k) + (edgeLmScores.get(k) * lmScale));
+      }
+      int[] order = topologicalOrder();
+      
+      double[] alpha = new double[numNodes];
+      Arrays.fill(alpha, Double.NEGATIVE_INFINITY);
+      alpha[startIdx] = 0;
+      for (int I : order) {
+         if (alpha[I] == Double.NEGATIVE_INFINITY)
+            continue;
+         for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+            int N = edgeTargets.get(k);
+            alpha[N] = logAdd(alpha[N], alpha[I] + logWeight[k]);
+         }
+      }
+      
+      double[] beta = new double[numNodes];
+      Arrays.fill(beta, Double.NEGATIVE_INFINITY);
+      beta[endIdx] = 0;
+      for (int i = order.length - 1; i >= 0; i--) {
+         int I = order[i];
+         if (I == endIdx)
+            continue;
+         for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+            beta[I] = logAdd(beta[I], logWeight[k] + beta[edgeTargets.get(k)]);
+         }
+      }
+      
+      double[] posteriors = new double[edges];
+      double total = alpha[endIdx];
+      if (total == Double.NEGATIVE_INFINITY)
+         return posteriors;
+      for (int I = 0; I < numNodes; I++) {
+         for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+            double logPosterior = alpha[I] + logWeight[k] + beta[edgeTargets.get(k)] - total;
+            posteriors[k] = Math.min(1.0, Math.exp(logPosterior));
+         }
+      }
+      return posteriors;
+   }
+   
+   // logAdd
+   // Returns log(exp(a) + exp(b)) without overflowing or underflowing
+   private static double logAdd(double a, double b) {
+      if (a < b) {
+         double t = a;
+         a = b;
+         b = t;
+      }
+      if (b == Double.NEGATIVE_INFINITY)
+         return a;
+      return a + Math.log1p(Math.exp(b - a));
+   }
+   
+   // confusionNetwork
+   // Pre-conditions:
+   //    - lmScale and acousticScale are as for edgePosteriors
+   // Post-conditions:
+   //    - Returns a confusion network ("sausage") built by the pivot method:
+   //      each edge of the decode(lmScale) path becomes a time slot, every
+   //      edge is added to the slot its time span overlaps the most, and the
+   //      posteriors of edges with the same word in a slot are summed
+   //      (a slot whose posteriors add up to more than one is renormalized;
+   //      one that adds up to less gets a ConfusionNetwork.EPSILON entry)
+   //    - Runs in O(V+E) plus the number of slots each edge spans
+   public ConfusionNetwork confusionNetwork(double lmScale, double acousticScale) {
+      double[] posteriors = edgePosteriors(lmScale, acousticScale);
+      int edges = posteriors.length;
+      
+      // The pivot slots, from the best path; consecutive slots share a boundary
+      double[] cost = new double[numNodes];
+      int[] parentEdge = new int[numNodes];
+      Arrays.fill(cost, Double.POSITIVE_INFINITY);
+      cost[startIdx] = 0;
+      for (int I : topologicalOrder()) {
+         for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+            int N = edgeTargets.get(k);
+            double score = edgeAmScores.get(k) + (edgeLmScores.get(k) * lmScale);
+            if ( (score + cost[I]) < cost[N]) {
+               cost[N] = score + cost[I];
+               parentEdge[N] = k;
+            }
+         }
+      }
+      if (cost[endIdx] == Double.POSITIVE_INFINITY || startIdx == endIdx)
+         return new ConfusionNetwork(new double[0], new double[0], new String[0][], new double[0][]);
+      int slots = 0;
+      for (int node = endIdx; node != startIdx; node = sourceOf(parentEdge[node])) {
+         slots++;
+      }
+      double[] slotStarts = new double[slots];
+      double[] slotEnds = new double[slots];
+      int s = slots;
+      for (int node = endIdx; node != startIdx; node = sourceOf(parentEdge[node])) {
+         s--;
+         slotEnds[s] = nodeTimes.get(node);
+         slotStarts[s] = nodeTimes.get(sourceOf(parentEdge[node]));
+      }
+      
+      // Assign each edge to the slot it overlaps the most
+      int[] slotOf = new int[edges];
+      int[] slotSizes = new int[slots + 1];
+      for (int I = 0; I < numNodes; I++) {
+         for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+            double start = nodeTimes.get(I);
+            double end = nodeTimes.get(edgeTargets.get(k));
+            int first = Math.max(0, upperBound(slotEnds, start) - 1);
+            int best = first;
+            double bestOverlap = Double.NEGATIVE_INFINITY;
+            for (int t = first; t < slots && (t == first || slotStarts[t] < end); t++) {
+               double overlap = Math.min(end, slotEnds[t]) - Math.max(start, slotStarts[t]);
+               if (overlap > bestOverlap) {
+                  bestOverlap = overlap;
+                  best = t;
+               }
+            }
+            slotOf[k] = best;
+            slotSizes[best + 1]++;
+         }
+      }
+      
+      // Group the edges by slot and sum the posteriors of each word
+      for (int t = 0; t < slots; t++) {
+         slotSizes[t+1] += slotSizes[t];
+      }
+      int[] bySlot = new int[edges];
+      int[] fill = slotSizes.clone();
+      for (int k = 0; k < edges; k++) {
+         bySlot[fill[slotOf[k]]++] = k;
+      }
+      String[][] words = new String[slots][];
+      double[][] probabilities = new double[slots][];
+      HashMap<Integer,Integer> positions = new HashMap<Integer,Integer>();
+      for (int t = 0; t < slots; t++) {
+         positions.clear();
+         List<String> slotWords = new ArrayList<String>();
+         double[] sums = new double[slotSizes[t+1] - slotSizes[t] + 1];
+         for (int i = slotSizes[t]; i < slotSizes[t+1]; i++) {
+            int k = bySlot[i];
+            Integer position = positions.get(wordId(k));
+            if (position == null) {
+               position = slotWords.size();
+               positions.put(wordId(k), position);
+               slotWords.add(label(k));
+            }
+            sums[position] += posteriors[k];
+         }
+         double total = 0;
+         for (int w = 0; w < slotWords.size(); w++) {
+            total += sums[w];
+         }
+         if (total < 1.0 - 1e-6) {
+            sums[slotWords.size()] = 1.0 - total;
+            slotWords.add(ConfusionNetwork.EPSILON);
+         } else if (total > 1.0) {
+            // Several edges of one path can land in a single slot
+            for (int w = 0; w < slotWords.size(); w++) {
+               sums[w] /= total;
+            }
+         }
+         words[t] = slotWords.toArray(new String[slotWords.size()]);
+         probabilities[t] = Arrays.copyOf(sums, slotWords.size());
+      }
+      return new ConfusionNetwork(slotStarts, slotEnds, words, probabilities);
+   }
+   
+   // upperBound
+   // Returns the number of entries of the sorted array values that are <= key
+   private static int upperBound(double[] values, double key) {
+      int lo = 0;
+      int hi = values.length;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (values[mid] <= key)
+            lo = mid + 1;
+         else
+            hi = mid;
+      }
+      return lo;
+   }
+   
+   // wordId
+   // Returns the SymbolTable.shared() id of the label on edge k
+   private int wordId(int k) {
+      int word = edgeWords.get(k);
+      return (wordIds == null) ? word : wordIds[word];
+   }
+   
+   // label
+   // Returns the label (word) on edge k
+   private String label(int k) {
+      return SymbolTable.shared().word(wordId(k));
+   }
+   
+   // sourceOf
+   // Pre-conditions:
+   //    - edge is a valid CSR edge index
+   // Post-conditions:
+   //    - Returns the node the edge leaves from, found by binary search
+   //      over outOffsets in O(log V)
+   private int sourceOf(int edge) {
+      int lo = 0;
+      int hi = numNodes - 1;
+      while (lo < hi) {
+         int mid = (lo + hi + 1) >>> 1;
+         if (outOffsets.get(mid) <= edge)
+            lo = mid;
+         else
+            hi = mid - 1;
+      }
+      return lo;
+   }
     
    
    // topologicalSort
@@ -210,42 +1316,57 @@ public class Lattice {
    //      incoming edges.  More generally, the node in the i'th element
    //      has no incoming edges from nodes in the i+1'th or later elements
    public int[] topologicalSort() {
+      return topologicalOrder().clone();
+   }
+   
+   // topologicalOrder
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the lattice's topological order, computing it on the first
+   //      call and caching it afterwards (callers must not modify the array)
+   private int[] topologicalOrder() {
+      int[] order = topOrder;
+      if (order == null) {
+         long started = LatticeMetrics.start();
+         order = kahnSort();
+         LatticeMetrics.stop(LatticeMetrics.Phase.TOPOLOGICAL_SORT, started, utteranceID, numNodes, numEdges);
+         topOrder = order;
+      }
+      return order;
+   }
+   
+   // kahnSort
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns a new topological order computed with Kahn's algorithm,
+   //      using the result array itself as the FIFO queue, without looking
+   //      at or filling the cache (the JMH benchmarks time the sort with it)
+   int[] kahnSort() {
       int[] results = new int[numNodes];
       int[] inDegree = inDegreeMaker();
-      Queue<Integer> s = new LinkedList<Integer>();
-      queueMaker(inDegree, s);
-      int count = 0;
-      while(!s.isEmpty()) {
-         int n = s.remove();
-         results[count] = n;
-         for(int i = 0; i < numNodes; i++) {
-            if(adjMatrix[n][i] != null) {
-               inDegree[i]--;
-               if(inDegree[i] == 0)
-                  s.add(i);
-            }
+      int tail = 0;
+      for(int i = 0; i < numNodes; i++) {
+         if(inDegree[i] == 0)
+            results[tail++] = i;
+      }
+      for(int head = 0; head < tail; head++) {
+         int n = results[head];
+         for(int k = outOffsets.get(n); k < outOffsets.get(n+1); k++) {
+            int i = edgeTargets.get(k);
+            inDegree[i]--;
+            if(inDegree[i] == 0)
+               results[tail++] = i;
          }
-         count++;
       }
       return results;
    }
-   
-   private Queue<Integer> queueMaker(int[] inDegree, Queue<Integer> s) {
-      for(int i = 0; i < inDegree.length; i++) {
-         if(inDegree[i] == 0) 
-            s.add(i); 
-      }
-      return s;
-   }
          
    private int[] inDegreeMaker() {
       int[] answer = new int[numNodes];
-      for(int i = 0; i < numNodes; i++) {
-         for(int j = 0; j < numNodes; j++) {
-            if(adjMatrix[i][j] != null) {
-               answer[j]++;
-            }
-         }
+      for(int k = 0; k < outOffsets.get(numNodes); k++) {
+         answer[edgeTargets.get(k)]++;
       }
       return answer;
    }
@@ -255,21 +1376,459 @@ public class Lattice {
    //    - None
    // Post-conditions:
    //    - Returns the total number of distinct paths from startIdx to endIdx
+   //    - Counts are propagated along the edges in topological order using
+   //      long arithmetic; only a node whose count overflows a long switches
+   //      to BigInteger, so lattices with fewer than 2^63 paths allocate
+   //      nothing but the counts array
    public java.math.BigInteger countAllPaths() {
-     java.math.BigInteger[] numParents = new java.math.BigInteger[numNodes]; 
-      int[] topSorted = this.topologicalSort();
-      for (int i = 0; i < numNodes; i++) 
+      long[] counts = new long[numNodes];
+      java.math.BigInteger[] big = null;     // big[n] != null once n's count overflowed
+      counts[startIdx] = 1;
+      for (int N : topologicalOrder()) {
+         long count = counts[N];
+         java.math.BigInteger bigCount = (big == null) ? null : big[N];
+         if (count == 0 && bigCount == null)
+            continue;
+         for (int k = outOffsets.get(N); k < outOffsets.get(N+1); k++) {
+            int I = edgeTargets.get(k);
+            if (bigCount == null && (big == null || big[I] == null)) {
+               long sum = counts[I] + count;
+               // Both counts are non-negative, so overflow shows up as a sign flip
+               if (sum >= 0) {
+                  counts[I] = sum;
+                  continue;
+               }
+            }
+            if (big == null)
+               big = new java.math.BigInteger[numNodes];
+            java.math.BigInteger from = (bigCount != null) ? bigCount : java.math.BigInteger.valueOf(count);
+            java.math.BigInteger to = (big[I] != null) ? big[I] : java.math.BigInteger.valueOf(counts[I]);
+            big[I] = to.add(from);
+         }
+      }
+      if (big != null && big[endIdx] != null)
+         return big[endIdx];
+      return java.math.BigInteger.valueOf(counts[endIdx]);
+   }
+
+   // countAllPathsExact
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns what countAllPaths returns, counted the way countAllPaths
+   //      used to be, with a BigInteger for every node; kept as the reference
+   //      the tests and benchmarks compare countAllPaths against
+   java.math.BigInteger countAllPathsExact() {
+      java.math.BigInteger[] numParents = new java.math.BigInteger[numNodes];
+      for (int i = 0; i < numNodes; i++)
          numParents[i] = java.math.BigInteger.ZERO;
       numParents[startIdx] = java.math.BigInteger.ONE;
-      for (int N : topSorted) {
-         for (int I : topSorted) {
-            if( adjMatrix[N][I] != null) {
-               numParents[I] = numParents[I].add(numParents[N]);                             
-            }
+      for (int N : topologicalOrder()) {
+         for (int k = outOffsets.get(N); k < outOffsets.get(N+1); k++) {
+            int I = edgeTargets.get(k);
+            numParents[I] = numParents[I].add(numParents[N]);
          }
       }
       return numParents[endIdx];
    }
+
+   // countAllPathsLog
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the natural log of the number of distinct paths from
+   //      startIdx to endIdx (NEGATIVE_INFINITY if there are none), for
+   //      callers who only need its magnitude; runs in O(V+E) on doubles
+   public double countAllPathsLog() {
+      double[] logCounts = new double[numNodes];
+      Arrays.fill(logCounts, Double.NEGATIVE_INFINITY);
+      logCounts[startIdx] = 0;
+      for (int N : topologicalOrder()) {
+         if (logCounts[N] == Double.NEGATIVE_INFINITY)
+            continue;
+         for (int k = outOffsets.get(N); k < outOffsets.get(N+1); k++) {
+            int I = edgeTargets.get(k);
+            logCounts[I] = logAdd(logCounts[I], logCounts[N]);
+         }
+      }
+      return logCounts[endIdx];
+   }
+   
+   // countAllPathsMod
+   // Pre-conditions:
+   //    - 0 < modulus <= 2^62
+   // Post-conditions:
+   //    - Returns the number of distinct paths from startIdx to endIdx
+   //      modulo modulus, for callers who only need a hash of the count;
+   //      runs in O(V+E) on longs
+   public long countAllPathsMod(long modulus) {
+      if (modulus <= 0 || modulus > (1L << 62))
+         throw new IllegalArgumentException("modulus must be in (0, 2^62]");
+      long[] counts = new long[numNodes];
+      counts[startIdx] = 1 % modulus;
+      for (int N : topologicalOrder()) {
+         long count = counts[N];
+         if (count == 0)
+            continue;
+         for (int k = outOffsets.get(N); k < outOffsets.get(N+1); k++) {
+            int I = edgeTargets.get(k);
+            long sum = counts[I] + count;     // Both < 2^62, so this cannot overflow
+            counts[I] = (sum >= modulus) ? sum - modulus : sum;
+         }
+      }
+      return counts[endIdx];
+   }
+       
+   // prune
+   // Pre-conditions:
+   //    - lmScale weights the edges as in decode
+   //    - beam >= 0 is how much worse than the best path a path may be
+   // Post-conditions:
+   //    - Returns a new, smaller lattice produced by pruneBeam, then
+   //      removeSilence, then minimize; decode(lmScale) on it finds a path
+   //      with the same total score as on this lattice, minus its -silence-
+   //      words
+   public Lattice prune(double lmScale, double beam) {
+      return pruneBeam(lmScale, beam).removeSilence(lmScale).minimize();
+   }
+   
+   // pruneBeam
+   // Pre-conditions:
+   //    - lmScale weights the edges as in decode
+   //    - beam >= 0
+   // Post-conditions:
+   //    - Returns a new lattice keeping only the edges that lie on some
+   //      start-to-end path scoring within beam of the best path, and the
+   //      nodes they touch (renumbered in the same relative order)
+   //    - A beam of POSITIVE_INFINITY just removes the edges that are on no
+   //      start-to-end path at all
+   public Lattice pruneBeam(double lmScale, double beam) {
+      double[] fromStart = costsFromStart(lmScale);
+      double[] toEnd = costsToEnd(lmScale);
+      double limit = fromStart[endIdx] + beam;
+      EdgeList kept = new EdgeList(numNodes);
+      for (int I = 0; I < numNodes; I++) {
+         for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+            int N = edgeTargets.get(k);
+            double score = edgeAmScores.get(k) + (edgeLmScores.get(k) * lmScale);
+            double total = fromStart[I] + score + toEnd[N];
+            if (total <= limit && total != Double.POSITIVE_INFINITY)
+               kept.add(I, N, wordId(k), edgeAmScores.get(k), edgeLmScores.get(k));
+         }
+      }
+      return compact(kept);
+   }
+   
+   // removeSilence
+   // Pre-conditions:
+   //    - lmScale weights the edges as in decode
+   // Post-conditions:
+   //    - Returns a new lattice without -silence- edges (except those into
+   //      endIdx, which cannot be bypassed). Each silence edge (u,v) is
+   //      replaced by an edge (u,w) for every edge (v,w), carrying the
+   //      label of (v,w) and the sum of both edges' scores, so path scores
+   //      and node times are unchanged
+   //    - When that creates two edges between the same nodes, the one with
+   //      the lower score under lmScale is kept
+   public Lattice removeSilence(double lmScale) {
+      EdgeList edges = new EdgeList(numNodes);
+      int[] order = topologicalOrder();
+      // In reverse topological order, every successor's edges are already
+      // silence-free when a silence edge into it is bypassed
+      for (int i = order.length - 1; i >= 0; i--) {
+         int u = order[i];
+         for (int k = outOffsets.get(u); k < outOffsets.get(u+1); k++) {
+            int v = edgeTargets.get(k);
+            int am = edgeAmScores.get(k);
+            int lm = edgeLmScores.get(k);
+            if (wordId(k) != SILENCE || v == endIdx) {
+               edges.addBest(u, v, wordId(k), am, lm, lmScale);
+               continue;
+            }
+            for (int e = edges.head[v]; e >= 0; e = edges.next[e]) {
+               edges.addBest(u, edges.targets[e], edges.words[e],
+                             am + edges.amScores[e], lm + edges.lmScores[e], lmScale);
+            }
+         }
+      }
+      // Nodes only reachable through a bypassed silence edge are now dead
+      return compact(edges).pruneBeam(lmScale, Double.POSITIVE_INFINITY);
+   }
+   
+   // minimize
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns a new lattice in which nodes with the same time and the
+   //      same outgoing edges (label, scores and equivalent target), and
+   //      then nodes with the same time and the same incoming edges, have
+   //      been merged into one. The set of paths and their scores is
+   //      unchanged
+   //    - Two nodes are not merged if some node has edges to (or from) both
+   //      of them that differ, since a lattice holds at most one edge
+   //      between any two nodes
+   public Lattice minimize() {
+      return mergeEquivalent(false).mergeEquivalent(true);
+   }
+   
+   // mergeEquivalent
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns a new lattice with suffix-equivalent nodes merged (or
+   //      prefix-equivalent ones, if forward is true); see minimize
+   private Lattice mergeEquivalent(boolean forward) {
+      int edges = outOffsets.get(numNodes);
+      int[] sources = new int[edges];
+      for (int I = 0; I < numNodes; I++) {
+         for (int k = outOffsets.get(I); k < outOffsets.get(I+1); k++) {
+            sources[k] = I;
+         }
+      }
+      // Incoming edges of each node (CSC), as indices into the CSR arrays
+      int[] inOffsets = new int[numNodes + 1];
+      for (int k = 0; k < edges; k++) {
+         inOffsets[edgeTargets.get(k) + 1]++;
+      }
+      for (int i = 0; i < numNodes; i++) {
+         inOffsets[i+1] += inOffsets[i];
+      }
+      int[] inEdges = new int[edges];
+      int[] fill = inOffsets.clone();
+      for (int k = 0; k < edges; k++) {
+         inEdges[fill[edgeTargets.get(k)]++] = k;
+      }
+      
+      // For a suffix merge a node is described by its outgoing edges, whose
+      // targets must be classified first, so nodes are visited in reverse
+      // topological order; a prefix merge is the mirror image
+      int[] order = topologicalOrder();
+      int[] classOf = new int[numNodes];
+      int classes = 0;
+      int[] classNode = new int[numNodes];           // One member of each class
+      HashMap<Signature,Integer> signatures = new HashMap<Signature,Integer>();
+      for (int i = 0; i < numNodes; i++) {
+         int u = forward ? order[i] : order[numNodes - 1 - i];
+         int c = -1;
+         if (u != startIdx && u != endIdx) {
+            Signature signature = signature(u, forward, sources, inOffsets, inEdges, classOf);
+            Integer existing = signatures.get(signature);
+            if (existing != null && !conflicts(u, existing, forward, sources, inOffsets, inEdges, classOf)) {
+               c = existing;
+            } else if (existing == null) {
+               signatures.put(signature, classes);
+            }
+         }
+         if (c < 0) {
+            c = classes++;
+            classNode[c] = u;
+         }
+         classOf[u] = c;
+      }
+      
+      // Number the merged nodes in the order of their lowest original node
+      int[] renumber = new int[classes];
+      Arrays.fill(renumber, -1);
+      int next = 0;
+      for (int u = 0; u < numNodes; u++) {
+         if (renumber[classOf[u]] < 0)
+            renumber[classOf[u]] = next++;
+      }
+      double[] times = new double[classes];
+      for (int c = 0; c < classes; c++) {
+         times[renumber[c]] = nodeTimes.get(classNode[c]);
+      }
+      for (int u = 0; u < numNodes; u++) {
+         classOf[u] = renumber[classOf[u]];
+      }
+      int[] targets = new int[edges];
+      int[] words = new int[edges];
+      int[] amScores = new int[edges];
+      int[] lmScores = new int[edges];
+      for (int k = 0; k < edges; k++) {
+         // Edges between merged nodes are exact duplicates, which buildCsr collapses
+         sources[k] = classOf[sources[k]];
+         targets[k] = classOf[edgeTargets.get(k)];
+         words[k] = wordId(k);
+         amScores[k] = edgeAmScores.get(k);
+         lmScores[k] = edgeLmScores.get(k);
+      }
+      return new Lattice(utteranceID, classOf[startIdx], classOf[endIdx], times,
+                         sources, targets, words, amScores, lmScores, edges);
+   }
+   
+   // signature
+   // Returns the time of node u together with the sorted, de-duplicated set of
+   // (class of the node at the other end, word, amScore, lmScore) for its
+   // outgoing edges (incoming edges if forward is true)
+   private Signature signature(int u, boolean forward, int[] sources,
+                               int[] inOffsets, int[] inEdges, int[] classOf) {
+      int from = forward ? inOffsets[u] : outOffsets.get(u);
+      int to = forward ? inOffsets[u+1] : outOffsets.get(u+1);
+      int[][] tuples = new int[to - from][];
+      for (int i = from; i < to; i++) {
+         int k = forward ? inEdges[i] : i;
+         int other = forward ? sources[k] : edgeTargets.get(k);
+         tuples[i - from] = new int[] { classOf[other], wordId(k), edgeAmScores.get(k), edgeLmScores.get(k) };
+      }
+      Arrays.sort(tuples, new Comparator<int[]>() {
+         public int compare(int[] a, int[] b) {
+            for (int i = 0; i < a.length; i++) {
+               if (a[i] != b[i])
+                  return (a[i] < b[i]) ? -1 : 1;
+            }
+            return 0;
+         }
+      });
+      long time = Double.doubleToLongBits(nodeTimes.get(u));
+      int[] values = new int[2 + 4 * tuples.length];
+      values[0] = (int) (time >>> 32);
+      values[1] = (int) time;
+      int size = 2;
+      for (int i = 0; i < tuples.length; i++) {
+         if (i > 0 && Arrays.equals(tuples[i], tuples[i-1]))
+            continue;
+         System.arraycopy(tuples[i], 0, values, size, 4);
+         size += 4;
+      }
+      return new Signature(Arrays.copyOf(values, size));
+   }
+   
+   // conflicts
+   // Returns true if merging node u into class c would leave some neighbour
+   // with two different edges to (or from) the merged node: for a suffix
+   // merge, a predecessor of u that already has a different edge into a
+   // member of c; for a prefix merge, the mirror image
+   private boolean conflicts(int u, int c, boolean forward, int[] sources,
+                             int[] inOffsets, int[] inEdges, int[] classOf) {
+      int from = forward ? outOffsets.get(u) : inOffsets[u];
+      int to = forward ? outOffsets.get(u+1) : inOffsets[u+1];
+      for (int i = from; i < to; i++) {
+         int k = forward ? i : inEdges[i];
+         int neighbour = forward ? edgeTargets.get(k) : sources[k];
+         int otherFrom = forward ? inOffsets[neighbour] : outOffsets.get(neighbour);
+         int otherTo = forward ? inOffsets[neighbour+1] : outOffsets.get(neighbour+1);
+         for (int j = otherFrom; j < otherTo; j++) {
+            int other = forward ? inEdges[j] : j;
+            int member = forward ? sources[other] : edgeTargets.get(other);
+            if (member != u && classOf[member] == c
+                && (wordId(other) != wordId(k)
+                    || edgeAmScores.get(other) != edgeAmScores.get(k)
+                    || edgeLmScores.get(other) != edgeLmScores.get(k)))
+               return true;
+         }
+      }
+      return false;
+   }
+   
+   // Signature
+   // An int[] with value equality, used as a HashMap key by mergeEquivalent
+   private static final class Signature {
+      private final int[] values;
+      private final int hash;
+      
+      Signature(int[] values) {
+         this.values = values;
+         this.hash = Arrays.hashCode(values);
+      }
+      
+      public int hashCode() {
+         return hash;
+      }
+      
+      public boolean equals(Object other) {
+         return other instanceof Signature && Arrays.equals(values, ((Signature) other).values);
+      }
+   }
+   
+   // EdgeList
+   // A growable list of edges in parallel arrays, with a linked list of the
+   // edges leaving each node (head[node], then next[edge], ending at -1)
+   private static class EdgeList {
+      int[] sources = new int[16];
+      int[] targets = new int[16];
+      int[] words = new int[16];
+      int[] amScores = new int[16];
+      int[] lmScores = new int[16];
+      int[] next = new int[16];
+      int[] head;
+      int size;
+      
+      EdgeList(int numNodes) {
+         head = new int[numNodes];
+         Arrays.fill(head, -1);
+      }
+      
+      void add(int source, int target, int word, int amScore, int lmScore) {
+         if (size == sources.length) {
+            int capacity = size * 2;
+            sources = Arrays.copyOf(sources, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            words = Arrays.copyOf(words, capacity);
+            amScores = Arrays.copyOf(amScores, capacity);
+            lmScores = Arrays.copyOf(lmScores, capacity);
+            next = Arrays.copyOf(next, capacity);
+         }
+         sources[size] = source;
+         targets[size] = target;
+         words[size] = word;
+         amScores[size] = amScore;
+         lmScores[size] = lmScore;
+         next[size] = head[source];
+         head[source] = size;
+         size++;
+      }
+      
+      // Adds the edge, or replaces an existing edge between the same nodes
+      // if the new one scores lower under lmScale
+      void addBest(int source, int target, int word, int amScore, int lmScore, double lmScale) {
+         for (int e = head[source]; e >= 0; e = next[e]) {
+            if (targets[e] == target) {
+               if (amScore + (lmScore * lmScale) < amScores[e] + (lmScores[e] * lmScale)) {
+                  words[e] = word;
+                  amScores[e] = amScore;
+                  lmScores[e] = lmScore;
+               }
+               return;
+            }
+         }
+         add(source, target, word, amScore, lmScore);
+      }
+   }
+   
+   // compact
+   // Pre-conditions:
+   //    - edges holds edges between nodes of this lattice
+   // Post-conditions:
+   //    - Returns a new lattice with those edges and only the nodes they
+   //      touch (plus startIdx and endIdx), renumbered in the same order
+   private Lattice compact(EdgeList edges) {
+      boolean[] used = new boolean[numNodes];
+      used[startIdx] = true;
+      used[endIdx] = true;
+      for (int e = 0; e < edges.size; e++) {
+         used[edges.sources[e]] = true;
+         used[edges.targets[e]] = true;
+      }
+      int[] newIndex = new int[numNodes];
+      int nodes = 0;
+      for (int i = 0; i < numNodes; i++) {
+         newIndex[i] = used[i] ? nodes++ : -1;
+      }
+      double[] times = new double[nodes];
+      for (int i = 0; i < numNodes; i++) {
+         if (newIndex[i] >= 0)
+            times[newIndex[i]] = nodeTimes.get(i);
+      }
+      int[] sources = new int[edges.size];
+      int[] targets = new int[edges.size];
+      for (int e = 0; e < edges.size; e++) {
+         sources[e] = newIndex[edges.sources[e]];
+         targets[e] = newIndex[edges.targets[e]];
+      }
+      return new Lattice(utteranceID, newIndex[startIdx], newIndex[endIdx], times, sources, targets,
+                         edges.words, edges.amScores, edges.lmScores, edges.size);
+   }
        
    // getLatticeDensity
    // Pre-conditions:
@@ -279,7 +1838,7 @@ public class Lattice {
    //      (# of non -silence- words) / (# seconds from start to end index)
    //      Note that multiwords (e.g. to_the) count as a single non-silence word
    public double getLatticeDensity() {
-      double answer = nonSilenceWords / nodeTimes[endIdx];
+      double answer = nonSilenceWords / nodeTimes.get(endIdx);
       return answer;
    }
    
@@ -288,24 +1847,26 @@ public class Lattice {
    //    - dotFilename is the name of the intended output file
    // Post-conditions:
    //    - The lattice is written in the specified dot format to dotFilename
+   //    - Throws UncheckedIOException if writing fails part way through
    public void writeAsDot(String dotFilename) {
-      java.io.PrintStream output = null;
+      FileOutputStream output = null;
         try {
-            output = new java.io.PrintStream(dotFilename);
+            output = new FileOutputStream(dotFilename);
         } catch( java.io.FileNotFoundException e ) {
             System.err.println("Error: Unable to open file " + dotFilename + " for writing");
             System.exit(1);
         }
-        output.println("digraph g {" + "\n"+ "   " + "rankdir=\"LR\"");
-        for (int i=0; i < numNodes; i++){
-          for (int j=0; j < numNodes; j++){
-            Edge anEdge = adjMatrix[i][j];
-            if (anEdge != null){
-               output.println("   " + i + " -> " + j + " [label = \"" + anEdge.getLabel() + "\"]");    
-            }
-          }
-        }   
-        output.println("}");
+        try {
+            long started = LatticeMetrics.start();
+            TextWriter writer = new TextWriter(output.getChannel(), java.nio.charset.Charset.defaultCharset());
+            writeDot(writer, System.lineSeparator());
+            writer.flush();
+            LatticeMetrics.stop(LatticeMetrics.Phase.OUTPUT, started, utteranceID, numNodes, numEdges);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error: Unable to write file " + dotFilename, e);
+        } finally {
+            closeQuietly(output);
+        }
    }
    
    // saveAsFile - write in the simplified lattice format (same as input format)
@@ -313,38 +1874,239 @@ public class Lattice {
    //    - latticeOutputFilename is the name of the intended output file
    // Post-conditions:
    //    - The lattice's toString() representation is written to the output file
+   //    - The text is streamed to the file, never built as one String
+   //    - Throws UncheckedIOException if writing fails part way through
    public void saveAsFile(String latticeOutputFilename) {
-        java.io.PrintStream output = null;
+        FileOutputStream output = null;
         try {
-            output = new java.io.PrintStream(latticeOutputFilename);
+            output = new FileOutputStream(latticeOutputFilename);
         } catch( java.io.FileNotFoundException e ) {
             System.err.println("Error: Unable to open file " + latticeOutputFilename + " for writing");
             System.exit(1);
         }
-        output.println(this.toString());    
-   }  
+        try {
+            long started = LatticeMetrics.start();
+            TextWriter writer = new TextWriter(output.getChannel(), java.nio.charset.Charset.defaultCharset());
+            writeText(writer);
+            writer.write(System.lineSeparator());
+            writer.flush();
+            LatticeMetrics.stop(LatticeMetrics.Phase.OUTPUT, started, utteranceID, numNodes, numEdges);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error: Unable to write file " + latticeOutputFilename, e);
+        } finally {
+            closeQuietly(output);
+        }
+   }
+   
+   private static void closeQuietly(Closeable closeable) {
+      try {
+         closeable.close();
+      } catch (IOException e) {
+         // Everything has been flushed already, or the write failed above
+      }
+   }
+   
+   // saveAsBinary - write in the binary lattice format read by openMapped
+   // Pre-conditions:
+   //    - binaryFilename is the name of the intended output file
+   // Post-conditions:
+   //    - The lattice is written to binaryFilename in the format described
+   //      above loadBinary
+   //    - Throws UncheckedIOException if the file cannot be written
+   public void saveAsBinary(String binaryFilename) {
+      long started = LatticeMetrics.start();
+      int edges = outOffsets.get(numNodes);
+      
+      // Number the distinct labels in order of first use
+      HashMap<Integer,Integer> localIds = new HashMap<Integer,Integer>();
+      List<byte[]> labels = new ArrayList<byte[]>();
+      int labelBytes = 0;
+      int[] localWords = new int[edges];
+      for (int k = 0; k < edges; k++) {
+         Integer local = localIds.get(wordId(k));
+         if (local == null) {
+            local = labels.size();
+            localIds.put(wordId(k), local);
+            byte[] bytes = label(k).getBytes(StandardCharsets.UTF_8);
+            labels.add(bytes);
+            labelBytes += bytes.length;
+         }
+         localWords[k] = local;
+      }
+      byte[] id = utteranceID.getBytes(StandardCharsets.UTF_8);
+      
+      FileOutputStream output = null;
+      try {
+         output = new FileOutputStream(binaryFilename);
+         BinaryWriter out = new BinaryWriter(output.getChannel());
+         int[] header = { BINARY_MAGIC, BINARY_VERSION, numNodes, numEdges, edges, startIdx, endIdx,
+                          nonSilenceWords, labels.size(), id.length, labelBytes, 0 };
+         for (int value : header) {
+            out.putInt(value);
+         }
+         for (byte[] label : labels) {
+            out.putInt(label.length);
+         }
+         out.put(id);
+         for (byte[] label : labels) {
+            out.put(label);
+         }
+         out.padTo8();
+         for (int i = 0; i < numNodes; i++) {
+            out.putDouble(nodeTimes.get(i));
+         }
+         for (int i = 0; i <= numNodes; i++) {
+            out.putInt(outOffsets.get(i));
+         }
+         for (int k = 0; k < edges; k++) {
+            out.putInt(edgeTargets.get(k));
+         }
+         for (int k = 0; k < edges; k++) {
+            out.putInt(localWords[k]);
+         }
+         for (int k = 0; k < edges; k++) {
+            out.putInt(edgeAmScores.get(k));
+         }
+         for (int k = 0; k < edges; k++) {
+            out.putInt(edgeLmScores.get(k));
+         }
+         out.flush();
+         LatticeMetrics.stop(LatticeMetrics.Phase.OUTPUT, started, utteranceID, numNodes, numEdges);
+      } catch (IOException e) {
+         throw new UncheckedIOException("Error: Unable to write file " + binaryFilename, e);
+      } finally {
+         if (output != null) {
+            try {
+               output.close();
+            } catch (IOException e) {
+               // The data has already been flushed, or the write failed above
+            }
+         }
+      }
+   }
+   
+   // BinaryWriter
+   // Writes little-endian values to a channel through a fixed-size buffer
+   private static class BinaryWriter {
+      private final FileChannel channel;
+      private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+      private long written;      // Bytes already flushed to the channel
+      
+      BinaryWriter(FileChannel channel) {
+         this.channel = channel;
+      }
+      
+      void putInt(int value) throws IOException {
+         reserve(4);
+         buffer.putInt(value);
+      }
+      
+      void putDouble(double value) throws IOException {
+         reserve(8);
+         buffer.putDouble(value);
+      }
+      
+      void put(byte[] bytes) throws IOException {
+         for (int i = 0; i < bytes.length; ) {
+            reserve(1);
+            int length = Math.min(buffer.remaining(), bytes.length - i);
+            buffer.put(bytes, i, length);
+            i += length;
+         }
+      }
+      
+      void padTo8() throws IOException {
+         while (((written + buffer.position()) & 7) != 0) {
+            reserve(1);
+            buffer.put((byte) 0);
+         }
+      }
+      
+      void flush() throws IOException {
+         buffer.flip();
+         while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+         }
+         buffer.clear();
+      }
+      
+      private void reserve(int bytes) throws IOException {
+         if (buffer.remaining() < bytes)
+            flush();
+      }
+   }
    
    // uniqueWordsAtTime - find all words at a certain point in time
    // Pre-conditions:
    //    - time is the time you want to query
    // Post-conditions:
    //    - A HashSet is returned containing all unique words that overlap
-   //      with the specified time
+   //      with the specified time, i.e. the labels of every edge (i,j) with
+   //      nodeTimes[i] <= time <= nodeTimes[j]
    //     (If the time is not within the time range of the lattice, the Hashset should be empty)
+   //    - Answered from the interval index, in O(log E) plus the work to
+   //      report the overlapping edges
    public java.util.HashSet<String> uniqueWordsAtTime(double time) {
       HashSet<String> words = new HashSet<String>();
-      for (int i=0; nodeTimes[i] <= time; i++) {
-         for (int j=0; j < numNodes; j++) {
-            if (adjMatrix[i][j] != null  &&  nodeTimes[j] >= time) {
-               Edge anEdge = adjMatrix[i][j];
-               String aWord = anEdge.getLabel();
-               words.add(aWord);
-            }  
-         }    
-      }      
+      for (int word : uniqueWordIdsAtTime(time)) {
+         words.add(SymbolTable.shared().word(word));
+      }
       return words;
    }
    
+   // uniqueWordIdsAtTime
+   // Pre-conditions:
+   //    - time is the time you want to query
+   // Post-conditions:
+   //    - Returns the SymbolTable.shared() ids of the words uniqueWordsAtTime
+   //      would return, in ascending order and without duplicates
+   public int[] uniqueWordIdsAtTime(double time) {
+      IntervalIndex index = intervalIndex();
+      int[] found = new int[16];
+      int count = index.stab(time, 0, index.edges.length, found, 0);
+      if (count > found.length) {
+         found = new int[count];
+         index.stab(time, 0, index.edges.length, found, 0);
+      }
+      for (int i = 0; i < count; i++) {
+         found[i] = wordId(found[i]);
+      }
+      Arrays.sort(found, 0, count);
+      int unique = 0;
+      for (int i = 0; i < count; i++) {
+         if (unique == 0 || found[i] != found[unique-1])
+            found[unique++] = found[i];
+      }
+      return Arrays.copyOf(found, unique);
+   }
+   
+   // sortedHitTimes
+   // Pre-conditions:
+   //    - word is the word (or multiword) that you want to find in the lattice
+   // Post-conditions:
+   //    - Returns sortedHitTimes for word's SymbolTable.shared() id (an empty
+   //      array if no lattice has that word)
+   public double[] sortedHitTimes(String word) {
+      return sortedHitTimes(SymbolTable.shared().find(word));
+   }
+   
+   // sortedHitTimes
+   // Pre-conditions:
+   //    - wordId is a SymbolTable.shared() id (any other value finds nothing)
+   // Post-conditions:
+   //    - Returns a new array with the midpoint (halfway between start and
+   //      end time) of every edge labelled with that word, in ascending order
+   //      (an empty array if the word does not appear)
+   //    - Answered from the inverted word index in O(log W), for W distinct
+   //      words, plus the copy
+   public double[] sortedHitTimes(int wordId) {
+      HitIndex index = hitIndex();
+      int w = Arrays.binarySearch(index.words, wordId);
+      if (w < 0)
+         return new double[0];
+      return Arrays.copyOfRange(index.times, index.offsets[w], index.offsets[w+1]);
+   }
+   
    // printSortedHits - print in sorted order all times where a given token appears
    // Pre-conditions:
    //    - word is the word (or multiword) that you want to find in the lattice
@@ -353,26 +2115,198 @@ public class Lattice {
    //      in the lattice is printed to two decimal places in sorted (ascending) order
    //      All times should be printed on the same line, separated by a single space character
    //      (If no instances appear, nothing is printed)
+   //    - As always, the formatted times are sorted as strings, so "10.00"
+   //      comes before "9.00"; sortedHitTimes gives the numeric order
    public void printSortedHits(String word) {
-      List<String> times = new ArrayList<String>();
-      
-      for (int i=0; i<numNodes;i++ ) {
-         for (int j=0; j<numNodes; j++) {
-            if (adjMatrix[i][j] != null) {
-               Edge anEdge = adjMatrix[i][j];
-               String aWord = anEdge.getLabel();
-                  if (aWord.equals(word)){
-                     double start = nodeTimes[i];
-                     double end = nodeTimes[j];
-                     String num = String.format("%.2f", (start+end)/2);
-                     times.add(num);
-                  }        
+      double[] hits = sortedHitTimes(word);
+      String[] times = new String[hits.length];
+      for (int i = 0; i < hits.length; i++) {
+         times[i] = String.format("%.2f", hits[i]);
+      }
+      Arrays.sort(times);
+      StringBuilder line = new StringBuilder();
+      for (String t : times) {
+         line.append(t).append(' ');
+      }
+      System.out.print(line);
+   }
+   
+   // IntervalIndex
+   // The edges sorted by start time, viewed as an implicit balanced binary
+   // tree: the root of the range [lo,hi) is its midpoint, and maxEnd[mid] is
+   // the latest end time of any edge in that range
+   private static class IntervalIndex {
+      final int[] edges;        // Edge indices, sorted by start time
+      final double[] starts;    // starts[i] is the start time of edges[i]
+      final double[] ends;      // ends[i] is the end time of edges[i]
+      final double[] maxEnd;    // Latest end time in the subtree rooted at i
+      
+      IntervalIndex(int[] edges, double[] starts, double[] ends) {
+         this.edges = edges;
+         this.starts = starts;
+         this.ends = ends;
+         this.maxEnd = new double[edges.length];
+         fillMaxEnd(0, edges.length);
+      }
+      
+      private double fillMaxEnd(int lo, int hi) {
+         if (lo >= hi)
+            return Double.NEGATIVE_INFINITY;
+         int mid = (lo + hi) >>> 1;
+         double max = Math.max(ends[mid], Math.max(fillMaxEnd(lo, mid), fillMaxEnd(mid + 1, hi)));
+         maxEnd[mid] = max;
+         return max;
+      }
+      
+      // stab
+      // Stores into found (from position count on) every edge in [lo,hi) that
+      // overlaps time, skipping the stores that do not fit, and returns the
+      // new count. Subtrees are pruned when they end before time or, for the
+      // right half, start after it
+      int stab(double time, int lo, int hi, int[] found, int count) {
+         if (lo >= hi)
+            return count;
+         int mid = (lo + hi) >>> 1;
+         if (maxEnd[mid] < time)
+            return count;
+         count = stab(time, lo, mid, found, count);
+         if (starts[mid] > time)
+            return count;
+         if (ends[mid] >= time) {
+            if (count < found.length)
+               found[count] = edges[mid];
+            count++;
+         }
+         return stab(time, mid + 1, hi, found, count);
+      }
+   }
+   
+   // intervalIndex
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the interval index over the edges' time spans, building it
+   //      on the first call (O(E log E)) and caching it afterwards
+   private IntervalIndex intervalIndex() {
+      IntervalIndex index = timeIndex;
+      if (index == null) {
+         int edges = outOffsets.get(numNodes);
+         int[] nodes = nodesByTime();
+         int[] sorted = new int[edges];
+         double[] starts = new double[edges];
+         double[] ends = new double[edges];
+         int size = 0;
+         for (int i : nodes) {
+            for (int k = outOffsets.get(i); k < outOffsets.get(i+1); k++) {
+               sorted[size] = k;
+               starts[size] = nodeTimes.get(i);
+               ends[size] = nodeTimes.get(edgeTargets.get(k));
+               size++;
             }
-         }      
+         }
+         index = new IntervalIndex(sorted, starts, ends);
+         timeIndex = index;
+      }
+      return index;
+   }
+   
+   // nodesByTime
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the nodes sorted by time (ties in node order), so their out
+   //      edges come out sorted by start time. The sort is on primitive longs:
+   //      each time is turned into a long that orders as Double.compare does,
+   //      ranked among the sorted times, and packed with its node
+   private int[] nodesByTime() {
+      long[] times = new long[numNodes];
+      boolean inOrder = true;
+      for (int i = 0; i < numNodes; i++) {
+         long bits = Double.doubleToLongBits(nodeTimes.get(i));
+         times[i] = bits ^ ((bits >> 63) & Long.MAX_VALUE);
+         inOrder &= i == 0 || times[i-1] <= times[i];
+      }
+      int[] nodes = new int[numNodes];
+      if (inOrder) {
+         // Nodes are usually numbered in time order already
+         for (int i = 0; i < numNodes; i++) {
+            nodes[i] = i;
+         }
+         return nodes;
+      }
+      long[] sortedTimes = times.clone();
+      Arrays.sort(sortedTimes);
+      long[] byTime = new long[numNodes];
+      for (int i = 0; i < numNodes; i++) {
+         byTime[i] = ((long) Arrays.binarySearch(sortedTimes, times[i]) << 32) | i;
+      }
+      Arrays.sort(byTime);
+      for (int i = 0; i < numNodes; i++) {
+         nodes[i] = (int) byTime[i];
       }
-      Collections.sort(times);
-      for (String t: times) {
-         System.out.print(t + " ");
+      return nodes;
+   }
+   
+   // HitIndex
+   // The edge midpoints grouped by word: the hits of words[w] are
+   // times[offsets[w]] .. times[offsets[w+1]-1], in ascending order, and
+   // words is sorted so a word is found by binary search
+   private static class HitIndex {
+      final int[] words;
+      final int[] offsets;
+      final double[] times;
+      
+      HitIndex(int[] words, int[] offsets, double[] times) {
+         this.words = words;
+         this.offsets = offsets;
+         this.times = times;
+      }
+   }
+   
+   // hitIndex
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the index from SymbolTable.shared() word id to the sorted
+   //      midpoints of that word's edges, building it on the first call
+   //      (O(E log E)) and caching it afterwards
+   private HitIndex hitIndex() {
+      HitIndex index = wordHits;
+      if (index == null) {
+         int edges = outOffsets.get(numNodes);
+         // Sort (word, edge) pairs packed into longs, so edges with the same
+         // label end up next to each other
+         long[] byWord = new long[edges];
+         for (int k = 0; k < edges; k++) {
+            byWord[k] = ((long) wordId(k) << 32) | k;
+         }
+         Arrays.sort(byWord);
+         double[] midpoints = new double[edges];
+         for (int i = 0; i < numNodes; i++) {
+            for (int k = outOffsets.get(i); k < outOffsets.get(i+1); k++) {
+               midpoints[k] = (nodeTimes.get(i) + nodeTimes.get(edgeTargets.get(k))) / 2;
+            }
+         }
+         int[] words = new int[edges];
+         int[] offsets = new int[edges + 1];
+         double[] times = new double[edges];
+         int distinct = 0;
+         for (int i = 0; i < edges; i++) {
+            int word = (int) (byWord[i] >>> 32);
+            int k = (int) byWord[i];
+            if (distinct == 0 || words[distinct-1] != word) {
+               words[distinct] = word;
+               offsets[distinct++] = i;
+            }
+            times[i] = midpoints[k];
+         }
+         offsets[distinct] = edges;
+         for (int w = 0; w < distinct; w++) {
+            Arrays.sort(times, offsets[w], offsets[w+1]);
+         }
+         index = new HitIndex(Arrays.copyOf(words, distinct), Arrays.copyOf(offsets, distinct + 1), times);
+         wordHits = index;
       }
+      return index;
    }
 }
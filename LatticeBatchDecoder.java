@@ -0,0 +1,183 @@
+/*
+* LatticeBatchDecoder.java
+*
+* Decodes a whole corpus of lattice files in parallel. Each file is parsed
+* and decoded as its own task on a work-stealing ForkJoinPool; a semaphore
+* caps how many lattices are in memory at once, and the results are written
+* out in utterance-ID order once every file has been decoded
+*
+* Usage: java LatticeBatchDecoder lmScale outputFile input1 [input2 ...]
+*    where each input is a directory of lattice files, @listFile (a file with
+*    one lattice path per line) or a single lattice file
+*
+* Run with -Dlattice.metrics=true to print per-phase latencies when done;
+* the metrics are also published over JMX (see LatticeMetrics)
+*
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LatticeBatchDecoder {
+   private final double lmScale;          // lmScale passed to Lattice.decode
+   private final ForkJoinPool pool;       // Runs one task per lattice file
+   private final int maxInFlight;         // Most lattices parsed but not yet decoded
+   
+   // LatticeBatchDecoder
+   // Pre-conditions:
+   //    - lmScale is the lmScale to decode with
+   //    - threads > 0 is the number of worker threads
+   //    - maxInFlight > 0 bounds how many lattices may be in memory at once
+   // Post-conditions:
+   //    - A decoder with its own worker pool has been created
+   public LatticeBatchDecoder(double lmScale, int threads, int maxInFlight) {
+      if (threads <= 0 || maxInFlight <= 0)
+         throw new IllegalArgumentException("threads and maxInFlight must be positive");
+      this.lmScale = lmScale;
+      this.pool = new ForkJoinPool(threads);
+      this.maxInFlight = maxInFlight;
+   }
+   
+   // Stats
+   // Counters for one call to decodeAll
+   public static class Stats {
+      public final long lattices;       // Lattices decoded successfully
+      public final long edges;          // Edges in those lattices
+      public final long failures;       // Files that could not be decoded
+      public final long elapsedNanos;   // Wall-clock time for the whole batch
+      
+      Stats(long lattices, long edges, long failures, long elapsedNanos) {
+         this.lattices = lattices;
+         this.edges = edges;
+         this.failures = failures;
+         this.elapsedNanos = elapsedNanos;
+      }
+      
+      public String toString() {
+         double seconds = elapsedNanos / 1e9;
+         return String.format("%d lattices (%d failed) in %.2f s: %.1f lattices/sec, %.0f edges/sec",
+                              lattices, failures, seconds, lattices / seconds, edges / seconds);
+      }
+   }
+   
+   // decodeAll
+   // Pre-conditions:
+   //    - filenames lists the lattice files to decode
+   //    - output is where the results should be written
+   // Post-conditions:
+   //    - Every file has been parsed and decoded, and one line
+   //      "utteranceID hypothesis" per lattice has been written to output,
+   //      sorted by utterance ID
+   //    - Files that fail to load are reported on System.err and skipped
+   //    - Returns the throughput counters for the batch
+   public Stats decodeAll(List<String> filenames, PrintStream output) throws InterruptedException {
+      final Semaphore permits = new Semaphore(maxInFlight);
+      final ConcurrentSkipListMap<String, String> results = new ConcurrentSkipListMap<String, String>();
+      final AtomicLong edges = new AtomicLong();
+      final AtomicLong failures = new AtomicLong();
+      final CountDownLatch done = new CountDownLatch(filenames.size());
+      long start = System.nanoTime();
+      
+      for (final String filename : filenames) {
+         // Blocks once maxInFlight lattices are loaded, so a slow decode
+         // cannot let parsed lattices pile up in memory
+         permits.acquire();
+         pool.execute(new Runnable() {
+            public void run() {
+               try {
+                  Lattice lattice = new Lattice(filename);
+                  Hypothesis best = lattice.decode(lmScale);
+                  edges.addAndGet(lattice.getNumEdges());
+                  if (results.put(lattice.getUtteranceID(), String.valueOf(best)) != null)
+                     System.err.println("Warning: duplicate utterance ID " + lattice.getUtteranceID()
+                                        + " in " + filename);
+               } catch (RuntimeException e) {
+                  failures.incrementAndGet();
+                  System.err.println(e.getMessage());
+               } finally {
+                  permits.release();
+                  done.countDown();
+               }
+            }
+         });
+      }
+      done.await();
+      long elapsed = System.nanoTime() - start;
+      
+      for (Map.Entry<String, String> entry : results.entrySet()) {
+         output.println(entry.getKey() + " " + entry.getValue());
+      }
+      output.flush();
+      return new Stats(results.size(), edges.get(), failures.get(), elapsed);
+   }
+   
+   // shutdown
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - The worker pool has been shut down
+   public void shutdown() {
+      pool.shutdown();
+   }
+   
+   // listInputs
+   // Pre-conditions:
+   //    - Each input is a directory, @listFile or lattice file (see Usage)
+   // Post-conditions:
+   //    - Returns the lattice files named by the inputs; directory contents
+   //      are listed in name order
+   public static List<String> listInputs(String[] inputs) throws IOException {
+      List<String> filenames = new ArrayList<String>();
+      for (String input : inputs) {
+         File file = new File(input);
+         if (input.startsWith("@")) {
+            BufferedReader reader = new BufferedReader(new FileReader(input.substring(1)));
+            try {
+               String line;
+               while ((line = reader.readLine()) != null) {
+                  line = line.trim();
+                  if (!line.isEmpty())
+                     filenames.add(line);
+               }
+            } finally {
+               reader.close();
+            }
+         } else if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null)
+               throw new IOException("Unable to list directory " + input);
+            Arrays.sort(children);
+            for (File child : children) {
+               if (child.isFile())
+                  filenames.add(child.getPath());
+            }
+         } else {
+            filenames.add(input);
+         }
+      }
+      return filenames;
+   }
+   
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java LatticeBatchDecoder lmScale outputFile input1 [input2 ...]");
+         System.exit(1);
+      }
+      double lmScale = Double.parseDouble(args[0]);
+      List<String> filenames = listInputs(Arrays.copyOfRange(args, 2, args.length));
+      int threads = Runtime.getRuntime().availableProcessors();
+      LatticeBatchDecoder decoder = new LatticeBatchDecoder(lmScale, threads, 4 * threads);
+      LatticeMetrics.registerMBean();
+      PrintStream output = new PrintStream(new BufferedOutputStream(new FileOutputStream(args[1])));
+      try {
+         System.err.println(decoder.decodeAll(filenames, output));
+         if (LatticeMetrics.get().isEnabled())
+            System.err.print(LatticeMetrics.get());
+      } finally {
+         output.close();
+         decoder.shutdown();
+      }
+   }
+}
@@ -0,0 +1,88 @@
+/*
+* LatticeBenchmark.java
+*
+* Writes the synthetic lattices that the JMH benchmarks in src/jmh/java
+* (run with mvn -Pjmh verify) and the tests work on: any size, density and
+* label distribution, always the same lattice for the same arguments. The
+* timing itself is left to JMH
+*
+* Usage: java LatticeBenchmark filename nodes density vocabulary zipf [seed]
+*
+*/
+
+import java.util.*;
+import java.io.*;
+
+public class LatticeBenchmark {
+   
+   public static void main(String[] args) throws IOException {
+      if (args.length < 5 || args.length > 6) {
+         System.err.println("Usage: java LatticeBenchmark filename nodes density vocabulary zipf [seed]");
+         System.exit(1);
+      }
+      long seed = (args.length > 5) ? Long.parseLong(args[5]) : 1;
+      writeSynthetic(args[0], "synthetic", Integer.parseInt(args[1]), Double.parseDouble(args[2]),
+                     Integer.parseInt(args[3]), Double.parseDouble(args[4]), seed);
+   }
+   
+   // writeSynthetic
+   // Pre-conditions:
+   //    - numNodes >= 2, density >= 1 and vocabulary >= 1
+   // Post-conditions:
+   //    - A lattice file has been written to filename with numNodes nodes
+   //      10ms apart and, leaving each node but the last, an edge to the
+   //      next node plus on average density-1 more edges to one of the next
+   //      few nodes (so every node is on a start-to-end path)
+   //    - Labels are drawn from a vocabulary of the given size with Zipf
+   //      frequencies (the word of rank r has weight 1/r^zipf, and rank 1 is
+   //      -silence-); scores are uniform
+   //    - The output depends only on the arguments, seed included
+   public static void writeSynthetic(String filename, String utteranceID, int numNodes, double density,
+                                     int vocabulary, double zipf, long seed) throws IOException {
+      Random random = new Random(seed);
+      double[] cumulative = new double[vocabulary];
+      double total = 0;
+      for (int r = 0; r < vocabulary; r++) {
+         total += 1 / Math.pow(r + 1, zipf);
+         cumulative[r] = total;
+      }
+      
+      StringBuilder edges = new StringBuilder();
+      int numEdges = 0;
+      int span = Math.max(2, (int) Math.ceil(2 * density));
+      boolean[] used = new boolean[span + 1];
+      for (int i = 0; i < numNodes - 1; i++) {
+         int reach = Math.min(span, numNodes - 1 - i);
+         int extra = (int) (density - 1);
+         if (random.nextDouble() < density - 1 - extra)
+            extra++;
+         Arrays.fill(used, false);
+         used[1] = true;
+         for (int e = 0; e < extra && reach > 1; e++) {
+            used[1 + random.nextInt(reach)] = true;
+         }
+         for (int d = 1; d <= reach; d++) {
+            if (!used[d])
+               continue;
+            int r = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            r = (r < 0) ? Math.min(-r - 1, vocabulary - 1) : r;
+            edges.append("edge ").append(i).append(' ').append(i + d).append(' ')
+                 .append((r == 0) ? "-silence-" : "w" + r).append(' ')
+                 .append(random.nextInt(2000)).append(' ').append(random.nextInt(100)).append('\n');
+            numEdges++;
+         }
+      }
+      
+      Writer out = new BufferedWriter(new FileWriter(filename));
+      try {
+         out.write("id " + utteranceID + "\nstart 0\nend " + (numNodes - 1) + "\nnumNodes " + numNodes
+                   + "\nnumEdges " + numEdges + "\n");
+         for (int i = 0; i < numNodes; i++) {
+            out.write("node " + i + " " + String.format("%.2f", i * 0.01) + "\n");
+         }
+         out.write(edges.toString());
+      } finally {
+         out.close();
+      }
+   }
+}
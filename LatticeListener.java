@@ -0,0 +1,19 @@
+/*
+* LatticeListener.java
+*
+* Receives a callback each time a Lattice finishes an instrumented phase
+* (see LatticeMetrics). Listeners run on the thread that did the work, so
+* they should return quickly and must be thread-safe
+*
+*/
+
+public interface LatticeListener {
+   // phaseCompleted
+   // Pre-conditions:
+   //    - Metrics are enabled and the listener was added with
+   //      LatticeMetrics.addListener
+   // Post-conditions:
+   //    - Called once per completed phase with the lattice's utterance ID,
+   //      the wall-clock time the phase took and the size of the lattice
+   void phaseCompleted(LatticeMetrics.Phase phase, String utteranceID, long nanos, int numNodes, int numEdges);
+}
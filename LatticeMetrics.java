@@ -0,0 +1,307 @@
+/*
+* LatticeMetrics.java
+*
+* Process-wide counters and latency histograms for the phases of a
+* Lattice's life: parsing, topological sorting, decoding, rescoring and
+* output. Each phase keeps its operation count, the nodes and edges it
+* processed, the slowest lattice seen, and a log-linear histogram of its
+* latencies (16 buckets per power of two, so percentiles are within about
+* 6% of the true value) that is updated without locks.
+*
+* Metrics are off by default (or on with -Dlattice.metrics=true). When off,
+* an instrumented phase costs one volatile read. The numbers can be read
+* here, over JMX after registerMBean(), or pushed to LatticeListeners
+*
+*/
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+public class LatticeMetrics implements LatticeMetricsMBean {
+   public enum Phase { PARSE, TOPOLOGICAL_SORT, DECODE, RESCORE, OUTPUT }
+
+   public static final long OFF = Long.MIN_VALUE;   // start() result when disabled
+   public static final String OBJECT_NAME = "Lattice:type=LatticeMetrics";
+   private static final LatticeMetrics INSTANCE = new LatticeMetrics();
+
+   private static volatile boolean enabled = Boolean.getBoolean("lattice.metrics");
+   private static final CopyOnWriteArrayList<LatticeListener> listeners =
+      new CopyOnWriteArrayList<LatticeListener>();
+   private final PhaseStats[] stats;
+
+   private LatticeMetrics() {
+      Phase[] phases = Phase.values();
+      stats = new PhaseStats[phases.length];
+      for (int i = 0; i < phases.length; i++) {
+         stats[i] = new PhaseStats();
+      }
+   }
+
+   // get
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the process-wide metrics
+   public static LatticeMetrics get() {
+      return INSTANCE;
+   }
+
+   // registerMBean
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - The metrics are registered with the platform MBean server under
+   //      OBJECT_NAME (doing nothing if they already are)
+   //    - Throws IllegalStateException if JMX refuses the registration
+   public static void registerMBean() {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = new ObjectName(OBJECT_NAME);
+         if (!server.isRegistered(name))
+            server.registerMBean(INSTANCE, name);
+      } catch (InstanceAlreadyExistsException e) {
+         // Another thread registered it first
+      } catch (JMException e) {
+         throw new IllegalStateException("Error: Unable to register " + OBJECT_NAME, e);
+      }
+   }
+
+   // addListener
+   // Pre-conditions:
+   //    - listener is non-null
+   // Post-conditions:
+   //    - listener is called for every phase completed while metrics are on
+   public static void addListener(LatticeListener listener) {
+      listeners.add(listener);
+   }
+
+   // removeListener
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - listener is no longer called
+   public static void removeListener(LatticeListener listener) {
+      listeners.remove(listener);
+   }
+
+   // start
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the current System.nanoTime() if metrics are on, or OFF,
+   //      to be handed to stop when the phase is over
+   static long start() {
+      return enabled ? System.nanoTime() : OFF;
+   }
+
+   // stop
+   // Pre-conditions:
+   //    - started was returned by start at the beginning of the phase
+   // Post-conditions:
+   //    - Unless started is OFF, the phase's time and the lattice's size
+   //      have been recorded and passed to every listener
+   static void stop(Phase phase, long started, String utteranceID, int numNodes, int numEdges) {
+      if (started == OFF)
+         return;
+      long nanos = System.nanoTime() - started;
+      INSTANCE.stats[phase.ordinal()].record(nanos, utteranceID, numNodes, numEdges);
+      for (LatticeListener listener : listeners) {
+         listener.phaseCompleted(phase, utteranceID, nanos, numNodes, numEdges);
+      }
+   }
+
+   // MBean attributes and operations; see LatticeMetricsMBean
+
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   public void setEnabled(boolean on) {
+      enabled = on;
+   }
+
+   public String[] getPhases() {
+      Phase[] phases = Phase.values();
+      String[] names = new String[phases.length];
+      for (int i = 0; i < phases.length; i++) {
+         names[i] = phases[i].name();
+      }
+      return names;
+   }
+
+   public long getDecodeCount() {
+      return getCount(Phase.DECODE);
+   }
+
+   public double getDecodeP99Micros() {
+      return getPercentileMicros(Phase.DECODE, 99);
+   }
+
+   public long getCount(String phase) {
+      return getCount(Phase.valueOf(phase));
+   }
+
+   public double getMeanMicros(String phase) {
+      return getMeanMicros(Phase.valueOf(phase));
+   }
+
+   public double getPercentileMicros(String phase, double percentile) {
+      return getPercentileMicros(Phase.valueOf(phase), percentile);
+   }
+
+   public double getMaxMicros(String phase) {
+      return stats[Phase.valueOf(phase).ordinal()].maxNanos.get() / 1000.0;
+   }
+
+   public String getSlowestUtterance(String phase) {
+      return stats[Phase.valueOf(phase).ordinal()].slowest;
+   }
+
+   public long getNodesProcessed(String phase) {
+      return stats[Phase.valueOf(phase).ordinal()].nodes.sum();
+   }
+
+   public long getEdgesProcessed(String phase) {
+      return stats[Phase.valueOf(phase).ordinal()].edges.sum();
+   }
+
+   public void reset() {
+      for (int i = 0; i < stats.length; i++) {
+         stats[i] = new PhaseStats();
+      }
+   }
+
+   // getCount
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns how many times phase has completed while metrics were on
+   public long getCount(Phase phase) {
+      return stats[phase.ordinal()].count.sum();
+   }
+
+   // getMeanMicros
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the mean time of phase in microseconds (0 if never timed)
+   public double getMeanMicros(Phase phase) {
+      PhaseStats phaseStats = stats[phase.ordinal()];
+      long count = phaseStats.count.sum();
+      return (count == 0) ? 0 : phaseStats.nanos.sum() / 1000.0 / count;
+   }
+
+   // getPercentileMicros
+   // Pre-conditions:
+   //    - 0 <= percentile <= 100
+   // Post-conditions:
+   //    - Returns the time in microseconds that percentile percent of the
+   //      timed runs of phase did not exceed, to the histogram's resolution
+   //      (0 if never timed), but never more than the slowest run
+   public double getPercentileMicros(Phase phase, double percentile) {
+      PhaseStats phaseStats = stats[phase.ordinal()];
+      return Math.min(phaseStats.histogram.percentile(percentile), phaseStats.maxNanos.get()) / 1000.0;
+   }
+
+   // toString
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns one line per phase that has been timed, with its count,
+   //      mean, p50, p99 and max in microseconds and its slowest lattice
+   public String toString() {
+      StringBuilder text = new StringBuilder();
+      for (Phase phase : Phase.values()) {
+         if (getCount(phase) == 0)
+            continue;
+         PhaseStats phaseStats = stats[phase.ordinal()];
+         text.append(String.format("%-16s n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus (%s) nodes=%d edges=%d%n",
+                                   phase, getCount(phase), getMeanMicros(phase),
+                                   getPercentileMicros(phase, 50), getPercentileMicros(phase, 99),
+                                   phaseStats.maxNanos.get() / 1000.0, phaseStats.slowest,
+                                   phaseStats.nodes.sum(), phaseStats.edges.sum()));
+      }
+      return text.toString();
+   }
+
+   // PhaseStats
+   // Everything recorded for one phase
+   private static class PhaseStats {
+      final LongAdder count = new LongAdder();
+      final LongAdder nanos = new LongAdder();
+      final LongAdder nodes = new LongAdder();
+      final LongAdder edges = new LongAdder();
+      final AtomicLong maxNanos = new AtomicLong();
+      final Histogram histogram = new Histogram();
+      volatile String slowest;        // Utterance ID of the maxNanos run
+
+      void record(long time, String utteranceID, int numNodes, int numEdges) {
+         count.increment();
+         nanos.add(time);
+         nodes.add(numNodes);
+         edges.add(numEdges);
+         histogram.record(time);
+         long max = maxNanos.get();
+         while (time > max) {
+            if (maxNanos.compareAndSet(max, time)) {
+               slowest = utteranceID;
+               break;
+            }
+            max = maxNanos.get();
+         }
+      }
+   }
+
+   // Histogram
+   // Counts of non-negative values in log-linear buckets: values below 16
+   // get a bucket each, and every range [2^e, 2^(e+1)) above that is split
+   // into 16 equal buckets
+   private static class Histogram {
+      private static final int SUB_BITS = 4;
+      private static final int SUB_BUCKETS = 1 << SUB_BITS;
+      final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB_BUCKETS);
+
+      void record(long value) {
+         counts.incrementAndGet(bucket(Math.max(0, value)));
+      }
+
+      // Returns the largest value in the bucket that holds the given
+      // percentile of the recorded values, or 0 if there are none
+      long percentile(double percentile) {
+         long total = 0;
+         for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+         }
+         if (total == 0)
+            return 0;
+         long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+         long seen = 0;
+         for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+               return highestValue(i);
+         }
+         return highestValue(counts.length() - 1);
+      }
+
+      static int bucket(long value) {
+         if (value < SUB_BUCKETS)
+            return (int) value;
+         int exponent = 63 - Long.numberOfLeadingZeros(value);
+         int shift = exponent - SUB_BITS;
+         return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+      }
+
+      static long highestValue(int bucket) {
+         if (bucket < SUB_BUCKETS)
+            return bucket;
+         int shift = bucket / SUB_BUCKETS - 1;
+         long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+         return lowest + (1L << shift) - 1;
+      }
+   }
+}
@@ -0,0 +1,23 @@
+/*
+* LatticeMetricsMBean.java
+*
+* The JMX view of LatticeMetrics. Phase names are those of
+* LatticeMetrics.Phase, e.g. "DECODE"; times are in microseconds
+*
+*/
+
+public interface LatticeMetricsMBean {
+   boolean isEnabled();
+   void setEnabled(boolean enabled);
+   String[] getPhases();
+   long getDecodeCount();
+   double getDecodeP99Micros();
+   long getCount(String phase);
+   double getMeanMicros(String phase);
+   double getPercentileMicros(String phase, double percentile);
+   double getMaxMicros(String phase);
+   String getSlowestUtterance(String phase);
+   long getNodesProcessed(String phase);
+   long getEdgesProcessed(String phase);
+   void reset();
+}
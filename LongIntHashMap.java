@@ -0,0 +1,188 @@
+/*
+* LongIntHashMap.java
+*
+* A hash map from long keys to int values that stores both in plain arrays
+* (open addressing with linear probing), so looking up or adding an entry
+* never allocates a boxed Long or Integer. Not thread-safe
+*
+*/
+
+import java.util.Arrays;
+
+public class LongIntHashMap {
+   private static final long FREE = Long.MIN_VALUE;   // Marks an empty slot
+
+   private long[] keys;          // keys[slot] is the key stored there, or FREE
+   private int[] values;         // values[slot] is the value for keys[slot]
+   private boolean hasFreeKey;   // FREE itself is a legal key, kept aside
+   private int freeValue;        //   with its value here
+   private int size;             // Number of entries
+
+   // LongIntHashMap
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - An empty map has been created
+   public LongIntHashMap() {
+      this(16);
+   }
+
+   // LongIntHashMap
+   // Pre-conditions:
+   //    - expected is the number of entries the map should hold without
+   //      growing
+   // Post-conditions:
+   //    - An empty map has been created
+   public LongIntHashMap(int expected) {
+      int capacity = 16;
+      while (capacity < expected * 2) {
+         capacity *= 2;
+      }
+      keys = new long[capacity];
+      values = new int[capacity];
+      Arrays.fill(keys, FREE);
+   }
+
+   // size
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the number of entries in the map
+   public int size() {
+      return size;
+   }
+
+   // get
+   // Pre-conditions:
+   //    - missing is the value to return if key is not in the map
+   // Post-conditions:
+   //    - Returns the value stored for key, or missing
+   public int get(long key, int missing) {
+      if (key == FREE)
+         return hasFreeKey ? freeValue : missing;
+      int mask = keys.length - 1;
+      for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+         if (keys[slot] == key)
+            return values[slot];
+         if (keys[slot] == FREE)
+            return missing;
+      }
+   }
+
+   // containsKey
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns true if the map has an entry for key
+   public boolean containsKey(long key) {
+      if (key == FREE)
+         return hasFreeKey;
+      int mask = keys.length - 1;
+      for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+         if (keys[slot] == key)
+            return true;
+         if (keys[slot] == FREE)
+            return false;
+      }
+   }
+
+   // put
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - The value for key is now value
+   public void put(long key, int value) {
+      if (key == FREE) {
+         if (!hasFreeKey)
+            size++;
+         hasFreeKey = true;
+         freeValue = value;
+         return;
+      }
+      int slot = slotFor(key);
+      if (keys[slot] == FREE) {
+         keys[slot] = key;
+         size++;
+         values[slot] = value;
+         if (size * 2 > keys.length)
+            grow();
+      } else {
+         values[slot] = value;
+      }
+   }
+
+   // add
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - delta has been added to the value for key (a missing key counts
+   //      as 0) and the new value is returned
+   public int add(long key, int delta) {
+      if (key == FREE) {
+         put(key, (hasFreeKey ? freeValue : 0) + delta);
+         return freeValue;
+      }
+      int slot = slotFor(key);
+      if (keys[slot] == FREE) {
+         keys[slot] = key;
+         values[slot] = delta;
+         size++;
+         if (size * 2 > keys.length)
+            grow();
+         return delta;
+      }
+      values[slot] += delta;
+      return values[slot];
+   }
+
+   // clear
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - The map is empty (its capacity is kept for reuse)
+   public void clear() {
+      Arrays.fill(keys, FREE);
+      hasFreeKey = false;
+      size = 0;
+   }
+
+   // The slot holding key, or the free slot where it belongs
+   private int slotFor(long key) {
+      int mask = keys.length - 1;
+      int slot = hash(key) & mask;
+      while (keys[slot] != key && keys[slot] != FREE) {
+         slot = (slot + 1) & mask;
+      }
+      return slot;
+   }
+
+   private void grow() {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new long[oldKeys.length * 2];
+      values = new int[oldValues.length * 2];
+      Arrays.fill(keys, FREE);
+      int mask = keys.length - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+         if (oldKeys[i] == FREE)
+            continue;
+         int slot = hash(oldKeys[i]) & mask;
+         while (keys[slot] != FREE) {
+            slot = (slot + 1) & mask;
+         }
+         keys[slot] = oldKeys[i];
+         values[slot] = oldValues[i];
+      }
+   }
+
+   // The finalizer of MurmurHash3, so keys that differ only in their high
+   // bits still land in different slots
+   static int hash(long key) {
+      key ^= key >>> 33;
+      key *= 0xff51afd7ed558ccdL;
+      key ^= key >>> 33;
+      key *= 0xc4ceb9fe1a85ec53L;
+      key ^= key >>> 33;
+      return (int) key;
+   }
+}
@@ -0,0 +1,161 @@
+/*
+* NgramCache.java
+*
+* Scores lattice labels with an NgramModel for Lattice.rescore. Labels are
+* mapped from SymbolTable.shared() ids to model words once, and every
+* (history, word) probability goes through a fixed-size direct-mapped cache
+* of primitive keys: a lookup is one array probe, and a new entry simply
+* evicts whatever was in its slot, so memory stays bounded however long the
+* cache is used. Not thread-safe; give each thread its own cache over a
+* shared model
+*
+*/
+
+import java.util.Arrays;
+
+public class NgramCache {
+   private static final String SILENCE = "-silence-";
+   private static final int[] NO_WORDS = new int[0];
+
+   private NgramModel model;
+   private double costPerLog10;   // Lattice lmScore units per log10 of probability
+   private long[] keys;           // keys[slot] is the packed (history, word) held there, or -1
+   private float[] values;        // values[slot] is log10 P(word | history) for keys[slot]
+   private int mask;              // keys.length - 1
+   private int[][] labelWords;    // Model words of each shared label id, built on first use
+   private long hits, misses;     // Lookups answered from / missing the cache
+
+   // NgramCache
+   // Pre-conditions:
+   //    - model is the language model to rescore with
+   //    - costPerLog10 converts probabilities to the units of the lattice's
+   //      lmScores: a word of probability p costs -costPerLog10 * log10(p)
+   //    - capacity > 0 is the number of probabilities to cache
+   // Post-conditions:
+   //    - An empty cache has been created, holding capacity rounded up to a
+   //      power of two entries
+   public NgramCache(NgramModel model, double costPerLog10, int capacity) {
+      if (capacity <= 0)
+         throw new IllegalArgumentException("capacity must be positive: " + capacity);
+      this.model = model;
+      this.costPerLog10 = costPerLog10;
+      int size = Integer.highestOneBit(capacity);
+      if (size < capacity)
+         size *= 2;
+      keys = new long[size];
+      values = new float[size];
+      mask = size - 1;
+      Arrays.fill(keys, -1);
+      labelWords = new int[0][];
+   }
+
+   // Accessors
+
+   // getHits
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the number of probabilities that were found in the cache
+   public long getHits() {
+      return hits;
+   }
+
+   // getMisses
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the number of probabilities that had to be computed
+   public long getMisses() {
+      return misses;
+   }
+
+   // startHistory
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the history a sentence starts in (see NgramModel)
+   public long startHistory() {
+      return model.startHistory();
+   }
+
+   // cost
+   // Pre-conditions:
+   //    - history was returned by startHistory or next
+   //    - label is a SymbolTable.shared() id
+   // Post-conditions:
+   //    - Returns the language model cost of label after history. A multiword
+   //      label ("to_the") the model lacks is scored word by word, and
+   //      -silence- costs nothing
+   public double cost(long history, int label) {
+      double logProb = 0;
+      for (int word : words(label)) {
+         logProb += logProb(history, word);
+         history = model.extend(history, word);
+      }
+      return -costPerLog10 * logProb;
+   }
+
+   // endCost
+   // Pre-conditions:
+   //    - history was returned by startHistory or next
+   // Post-conditions:
+   //    - Returns the cost of ending the sentence after history
+   public double endCost(long history) {
+      return -costPerLog10 * model.endLogProb(history);
+   }
+
+   // next
+   // Pre-conditions:
+   //    - history was returned by startHistory or next
+   //    - label is a SymbolTable.shared() id
+   // Post-conditions:
+   //    - Returns the history after label (-silence- leaves it unchanged)
+   public long next(long history, int label) {
+      for (int word : words(label)) {
+         history = model.extend(history, word);
+      }
+      return history;
+   }
+
+   // logProb
+   // Returns log10 P(word | history) from the cache, computing it and
+   // evicting the slot's previous entry on a miss. A history holds at most
+   // two 21-bit words, so history and word pack into a non-negative key
+   private float logProb(long history, int word) {
+      long key = (history << 21) | (word + 1);
+      int slot = LongIntHashMap.hash(key) & mask;
+      if (keys[slot] == key) {
+         hits++;
+         return values[slot];
+      }
+      misses++;
+      float value = model.logProb(history, word);
+      keys[slot] = key;
+      values[slot] = value;
+      return value;
+   }
+
+   // words
+   // Returns the model words of a shared label id, mapping it on first use
+   private int[] words(int label) {
+      if (label >= labelWords.length)
+         labelWords = Arrays.copyOf(labelWords, Math.max(label + 1, labelWords.length * 2));
+      int[] words = labelWords[label];
+      if (words == null) {
+         String text = SymbolTable.shared().word(label);
+         if (text.equals(SILENCE)) {
+            words = NO_WORDS;
+         } else if (model.contains(text) || text.indexOf('_') < 0) {
+            words = new int[] { model.find(text) };
+         } else {
+            String[] parts = text.split("_");
+            words = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+               words[i] = model.find(parts[i]);
+            }
+         }
+         labelWords[label] = words;
+      }
+      return words;
+   }
+}
@@ -0,0 +1,256 @@
+/*
+* NgramModel.java
+*
+* A backoff n-gram language model (up to trigrams) read from an ARPA file.
+* Words get dense ids from the model's own SymbolTable, and an n-gram is
+* stored under a single long that packs its word ids 21 bits apiece, so
+* lookups are a probe in a LongIntHashMap rather than a String comparison.
+* Once loaded the model is never modified, so threads can share it
+*
+*/
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+public class NgramModel {
+   public static final int MAX_ORDER = 3;            // Longest n-gram that fits in a key
+   public static final float UNKNOWN_LOGPROB = -99;  // log10 P of a word the model lacks
+   private static final int BITS = 21;               // Bits per word in a packed key
+   private static final long WORD_MASK = (1L << BITS) - 1;
+
+   private int order;                   // Length of the longest n-grams
+   private SymbolTable vocabulary;      // The model's words
+   private LongIntHashMap ngrams;       // Packed n-gram -> index into the arrays below
+   private float[] logProbs;            // log10 P(last word | the others)
+   private float[] backoffs;            // log10 backoff weight of the n-gram as a context
+   private int count;                   // Number of n-grams loaded
+   private int startId, endId, unknownId;   // Ids of <s>, </s> and <unk>, or -1
+
+   // NgramModel
+   // Pre-conditions:
+   //    - arpaFilename contains the path of an ARPA language model of order
+   //      at most MAX_ORDER
+   // Post-conditions:
+   //    - All n-grams and backoff weights in the file have been loaded
+   //    - Throws UncheckedIOException if the file cannot be read and
+   //      IllegalArgumentException if it is not a valid ARPA file
+   public NgramModel(String arpaFilename) {
+      vocabulary = new SymbolTable();
+      BufferedReader input = null;
+      try {
+         input = new BufferedReader(new InputStreamReader(new FileInputStream(arpaFilename),
+                                                          StandardCharsets.UTF_8));
+         load(input);
+      } catch (IOException e) {
+         throw new UncheckedIOException("Error: Unable to read file " + arpaFilename, e);
+      } catch (RuntimeException e) {
+         throw new IllegalArgumentException("Error: Not able to parse file " + arpaFilename
+                                            + ": " + e.getMessage(), e);
+      } finally {
+         if (input != null) {
+            try {
+               input.close();
+            } catch (IOException e) {
+               // Already read everything we need
+            }
+         }
+      }
+      startId = vocabulary.find("<s>");
+      endId = vocabulary.find("</s>");
+      unknownId = vocabulary.find("<unk>");
+   }
+
+   // load
+   // Pre-conditions:
+   //    - input is positioned at the start of an ARPA file
+   // Post-conditions:
+   //    - The fields are set as described for the constructor
+   //    - Throws an unchecked exception describing the first problem found
+   private void load(BufferedReader input) throws IOException {
+      String line = input.readLine();
+      while (line != null && !line.trim().equals("\\data\\")) {
+         line = input.readLine();
+      }
+      if (line == null)
+         throw new IllegalArgumentException("missing \\data\\ section");
+
+      int total = 0;
+      for (line = input.readLine(); line != null && !line.trim().startsWith("\\"); line = input.readLine()) {
+         line = line.trim();
+         if (line.length() == 0)
+            continue;
+         if (!line.startsWith("ngram "))
+            throw new IllegalArgumentException("unexpected line in \\data\\: " + line);
+         int equals = line.indexOf('=');
+         int n = Integer.parseInt(line.substring(6, equals).trim());
+         if (n < 1 || n > MAX_ORDER)
+            throw new IllegalArgumentException("only orders 1 to " + MAX_ORDER + " are supported, found " + n);
+         order = Math.max(order, n);
+         total += Integer.parseInt(line.substring(equals + 1).trim());
+      }
+      if (order == 0)
+         throw new IllegalArgumentException("no ngram counts in \\data\\");
+      ngrams = new LongIntHashMap(total);
+      logProbs = new float[total];
+      backoffs = new float[total];
+
+      int[] words = new int[MAX_ORDER];
+      while (line != null) {
+         line = line.trim();
+         if (line.equals("\\end\\"))
+            return;
+         if (!line.endsWith("-grams:"))
+            throw new IllegalArgumentException("unexpected line: " + line);
+         int n = Integer.parseInt(line.substring(1, line.indexOf('-')));
+         if (n < 1 || n > order)
+            throw new IllegalArgumentException("unexpected section: " + line);
+         for (line = input.readLine(); line != null && !line.trim().startsWith("\\"); line = input.readLine()) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length == 1 && fields[0].length() == 0)
+               continue;
+            if (fields.length != n + 1 && fields.length != n + 2)
+               throw new IllegalArgumentException("expected " + n + "-gram: " + line);
+            for (int i = 0; i < n; i++) {
+               words[i] = vocabulary.id(fields[i + 1]);
+               if (words[i] >= WORD_MASK)
+                  throw new IllegalArgumentException("vocabulary is larger than " + WORD_MASK + " words");
+            }
+            if (count == logProbs.length)
+               throw new IllegalArgumentException("more n-grams than \\data\\ announced");
+            ngrams.put(pack(words, n), count);
+            logProbs[count] = Float.parseFloat(fields[0]);
+            backoffs[count] = (fields.length == n + 2) ? Float.parseFloat(fields[n + 1]) : 0;
+            count++;
+         }
+      }
+      throw new IllegalArgumentException("missing \\end\\");
+   }
+
+   // Accessors
+
+   // getOrder
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the length of the model's longest n-grams
+   public int getOrder() {
+      return order;
+   }
+
+   // getNumNgrams
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the number of n-grams in the model, of all orders
+   public int getNumNgrams() {
+      return count;
+   }
+
+   // find
+   // Pre-conditions:
+   //    - word is non-null
+   // Post-conditions:
+   //    - Returns the model's id for word, the id of <unk> if the model does
+   //      not have word, or -1 if it has neither
+   public int find(String word) {
+      int id = vocabulary.find(word);
+      return (id >= 0) ? id : unknownId;
+   }
+
+   // contains
+   // Pre-conditions:
+   //    - word is non-null
+   // Post-conditions:
+   //    - Returns true if word itself (not <unk>) is in the model
+   public boolean contains(String word) {
+      return vocabulary.find(word) >= 0;
+   }
+
+   // startHistory
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the history a sentence starts in: <s> if the model has it,
+   //      otherwise the empty history
+   public long startHistory() {
+      return (startId < 0) ? 0 : extend(0, startId);
+   }
+
+   // logProb
+   // Pre-conditions:
+   //    - history was returned by startHistory or extend
+   //    - word is a model id, or -1 for a word the model does not know
+   // Post-conditions:
+   //    - Returns log10 P(word | history), backing off to shorter histories
+   //      as the ARPA format prescribes, or UNKNOWN_LOGPROB for word -1
+   //    - The search starts from the history's own length, which may be
+   //      less than order-1, so each context's backoff is added only once
+   public float logProb(long history, int word) {
+      if (word < 0)
+         return UNKNOWN_LOGPROB;
+      float backoff = 0;
+      for (int n = Math.min(order - 1, length(history)); n >= 0; n--) {
+         long context = truncate(history, n);
+         int entry = ngrams.get((context << BITS) | (word + 1), -1);
+         if (entry >= 0)
+            return backoff + logProbs[entry];
+         if (n > 0) {
+            int contextEntry = ngrams.get(context, -1);
+            if (contextEntry >= 0)
+               backoff += backoffs[contextEntry];
+         }
+      }
+      return UNKNOWN_LOGPROB;
+   }
+
+   // endLogProb
+   // Pre-conditions:
+   //    - history was returned by startHistory or extend
+   // Post-conditions:
+   //    - Returns log10 P(</s> | history), or 0 if the model has no </s>
+   public float endLogProb(long history) {
+      return (endId < 0) ? 0 : logProb(history, endId);
+   }
+
+   // extend
+   // Pre-conditions:
+   //    - history was returned by startHistory or extend
+   //    - word is a model id, or -1 for a word the model does not know
+   // Post-conditions:
+   //    - Returns the history after word: the last order-1 words, shortened
+   //      to the longest suffix that is itself an n-gram of the model (no
+   //      longer n-gram can start with any other, so the two histories give
+   //      the same probabilities and need not be told apart)
+   //    - An unknown word resets the history to the empty one
+   public long extend(long history, int word) {
+      if (word < 0)
+         return 0;
+      for (int n = order - 1; n > 0; n--) {
+         long suffix = (truncate(history, n - 1) << BITS) | (word + 1);
+         if (ngrams.containsKey(suffix))
+            return suffix;
+      }
+      return 0;
+   }
+
+   // Returns the number of words in a packed history; every stored id is
+   // at least 1, so each word occupies at least the lowest bit of its field
+   private static int length(long history) {
+      return (Long.SIZE - Long.numberOfLeadingZeros(history) + BITS - 1) / BITS;
+   }
+
+   // Keeps the last n words of a packed history
+   private static long truncate(long history, int n) {
+      return (n == 0) ? 0 : history & ((1L << (BITS * n)) - 1);
+   }
+
+   // Packs words[0..n-1] into a key, oldest word in the highest bits; each
+   // id is stored plus one so that 0 means "no word"
+   private static long pack(int[] words, int n) {
+      long key = 0;
+      for (int i = 0; i < n; i++) {
+         key = (key << BITS) | (words[i] + 1);
+      }
+      return key;
+   }
+}
@@ -0,0 +1,491 @@
+/*
+* OnlineLattice.java
+*
+* A lattice that is built a node and an edge at a time, as a streaming
+* recognizer produces them. The topological order and the best path cost
+* into every node are kept up to date after each addition, so a partial
+* decode is available at any moment without re-decoding the whole lattice.
+* toLattice() freezes the current state into an ordinary Lattice
+*
+*/
+
+import java.util.*;
+
+public class OnlineLattice {
+   private String utteranceID;       // A unique ID for the sentence
+   private double lmScale;           // Weight of lmScore in an edge's score
+   private int numNodes, numEdges;   // The number of nodes and edges, respectively
+   private double[] nodeTimes;       // nodeTimes[n] is the time of node n
+   private int[] order;              // order[n] is node n's position in the topological order
+   private int[] nodeAt;             // nodeAt[p] is the node at position p (the inverse of order)
+   private double[] cost;            // cost[n] is the best path cost from the start to node n
+   private int[] parentEdge;         // parentEdge[n] is the last edge on that path, or -1
+   private int[] outHead, inHead;    // First edge leaving / entering each node, or -1
+   private int[] sources, targets;   // Edge k goes from sources[k] to targets[k]
+   private int[] words;              //   with label words[k] (a SymbolTable.shared() id)
+   private int[] amScores, lmScores; //   and scores amScores[k] and lmScores[k];
+   private int[] nextOut, nextIn;    //   nextOut[k] / nextIn[k] link the node's edge lists
+   private int[] visited;            // Marks for the reordering searches
+   private int visitStamp;           // visited[n] == visitStamp means n has been seen
+   private int[] pending;            // Binary min-heap on order[] of the nodes relax
+   private int numPending;           //   still has to rescan
+   private int frontier;             // The latest reachable node (see decode)
+   private boolean costsStale;       // Set when an edge got worse, see addEdge
+   
+   // OnlineLattice
+   // Pre-conditions:
+   //    - lmScale specifies how much lmScore should be weighted, as in
+   //      Lattice.decode: the overall weight for an edge is
+   //      amScore + lmScale * lmScore
+   // Post-conditions:
+   //    - An empty lattice is created. The first node added is the start node
+   public OnlineLattice(String utteranceID, double lmScale) {
+      this.utteranceID = utteranceID;
+      this.lmScale = lmScale;
+      nodeTimes = new double[16];
+      order = new int[16];
+      nodeAt = new int[16];
+      cost = new double[16];
+      parentEdge = new int[16];
+      outHead = new int[16];
+      inHead = new int[16];
+      visited = new int[16];
+      pending = new int[16];
+      sources = new int[16];
+      targets = new int[16];
+      words = new int[16];
+      amScores = new int[16];
+      lmScores = new int[16];
+      nextOut = new int[16];
+      nextIn = new int[16];
+   }
+   
+   // Accessors
+   
+   // getUtteranceID
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the utterance ID
+   public String getUtteranceID() {
+      return utteranceID;
+   }
+   
+   // getNumNodes
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the number of nodes added so far
+   public int getNumNodes() {
+      return numNodes;
+   }
+   
+   // getNumEdges
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the number of distinct (i,j) edges added so far
+   public int getNumEdges() {
+      return numEdges;
+   }
+   
+   // getCost
+   // Pre-conditions:
+   //    - node is a node number returned by addNode
+   // Post-conditions:
+   //    - Returns the cost of the best path from the start node to node
+   //      (POSITIVE_INFINITY if node cannot be reached yet)
+   public double getCost(int node) {
+      checkNode(node);
+      refreshCosts();
+      return cost[node];
+   }
+   
+   // addNode
+   // Pre-conditions:
+   //    - time is the time of the new node
+   // Post-conditions:
+   //    - A new node is added and its number is returned. Nodes are numbered
+   //      0, 1, 2, ... in the order they are added, and node 0 is the start
+   //    - The new node goes at the end of the topological order, since it
+   //      has no edges yet
+   //    - Amortized O(1): the backing arrays double when they fill up
+   public int addNode(double time) {
+      if (numNodes == nodeTimes.length) {
+         int capacity = numNodes * 2;
+         nodeTimes = Arrays.copyOf(nodeTimes, capacity);
+         order = Arrays.copyOf(order, capacity);
+         nodeAt = Arrays.copyOf(nodeAt, capacity);
+         cost = Arrays.copyOf(cost, capacity);
+         parentEdge = Arrays.copyOf(parentEdge, capacity);
+         outHead = Arrays.copyOf(outHead, capacity);
+         inHead = Arrays.copyOf(inHead, capacity);
+         visited = Arrays.copyOf(visited, capacity);
+      }
+      int node = numNodes++;
+      nodeTimes[node] = time;
+      order[node] = node;
+      nodeAt[node] = node;
+      cost[node] = (node == 0) ? 0 : Double.POSITIVE_INFINITY;
+      parentEdge[node] = -1;
+      outHead[node] = -1;
+      inHead[node] = -1;
+      visited[node] = 0;
+      return node;
+   }
+   
+   // addEdge
+   // Pre-conditions:
+   //    - from and to are node numbers returned by addNode
+   //    - word is the edge's label, amScore and lmScore its scores
+   // Post-conditions:
+   //    - The edge is added. As with a lattice file, adding a second (from,to)
+   //      edge replaces the first one
+   //    - The topological order is repaired if the edge points backwards in
+   //      it, visiting only the nodes between from and to in the order
+   //      (Pearce and Kelly's algorithm); an edge that points forwards, the
+   //      usual case for a recognizer, costs nothing extra
+   //    - Best path costs are lowered only where the edge improves them, so
+   //      an edge into a new node is O(1). A replacement that makes the best
+   //      edge into a node worse cannot be handled that way, so it marks the
+   //      costs stale and the next query recomputes them in O(V+E)
+   //    - Throws IllegalArgumentException if the edge would create a cycle,
+   //      in which case the lattice is left unchanged
+   public void addEdge(int from, int to, String word, int amScore, int lmScore) {
+      checkNode(from);
+      checkNode(to);
+      if (from == to)
+         throw new IllegalArgumentException("Error: edge " + from + " -> " + to + " is a self-loop");
+      int label = SymbolTable.shared().id(word);
+      
+      for (int k = outHead[from]; k >= 0; k = nextOut[k]) {
+         if (targets[k] == to) {
+            double oldScore = score(k);
+            words[k] = label;
+            amScores[k] = amScore;
+            lmScores[k] = lmScore;
+            if (score(k) > oldScore && parentEdge[to] == k)
+               costsStale = true;
+            else
+               relax(k);
+            return;
+         }
+      }
+      
+      if (order[to] < order[from])
+         reorder(from, to);
+      if (numEdges == sources.length) {
+         int capacity = numEdges * 2;
+         sources = Arrays.copyOf(sources, capacity);
+         targets = Arrays.copyOf(targets, capacity);
+         words = Arrays.copyOf(words, capacity);
+         amScores = Arrays.copyOf(amScores, capacity);
+         lmScores = Arrays.copyOf(lmScores, capacity);
+         nextOut = Arrays.copyOf(nextOut, capacity);
+         nextIn = Arrays.copyOf(nextIn, capacity);
+      }
+      int k = numEdges++;
+      sources[k] = from;
+      targets[k] = to;
+      words[k] = label;
+      amScores[k] = amScore;
+      lmScores[k] = lmScore;
+      nextOut[k] = outHead[from];
+      outHead[from] = k;
+      nextIn[k] = inHead[to];
+      inHead[to] = k;
+      relax(k);
+   }
+   
+   // decode
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns decode(node) for the latest node reachable from the start
+   //      node (the one with the greatest time, breaking ties by cost), which
+   //      is the best hypothesis for the audio received so far
+   public Hypothesis decode() {
+      if (numNodes == 0)
+         return new Hypothesis();
+      refreshCosts();
+      return decode(frontier);
+   }
+   
+   // decode
+   // Pre-conditions:
+   //    - node is a node number returned by addNode
+   // Post-conditions:
+   //    - A new Hypothesis object is returned that contains the shortest path
+   //      from the start node to node, as Lattice.decode would find it if node
+   //      were the end node (up to ties), or an empty Hypothesis if node
+   //      cannot be reached
+   //    - Only walks back along the path, since the costs are already known
+   public Hypothesis decode(int node) {
+      checkNode(node);
+      refreshCosts();
+      Hypothesis answer = new Hypothesis();
+      if (cost[node] == Double.POSITIVE_INFINITY)
+         return answer;
+      int length = 0;
+      for (int n = node; n != 0; n = sources[parentEdge[n]]) {
+         length++;
+      }
+      int[] path = new int[length];
+      for (int n = node; n != 0; n = sources[parentEdge[n]]) {
+         path[--length] = parentEdge[n];
+      }
+      for (int k : path) {
+         answer.addWord(SymbolTable.shared().word(words[k]), score(k));
+      }
+      return answer;
+   }
+   
+   // topologicalSort
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - A new int[] is returned with the maintained topological sort of the
+   //      nodes, as described for Lattice.topologicalSort
+   public int[] topologicalSort() {
+      return Arrays.copyOf(nodeAt, numNodes);
+   }
+   
+   // toLattice
+   // Pre-conditions:
+   //    - At least one node has been added
+   // Post-conditions:
+   //    - Returns toLattice(n) where n is the node decode() currently ends at
+   public Lattice toLattice() {
+      if (numNodes == 0)
+         throw new IllegalStateException("Error: the lattice has no nodes");
+      refreshCosts();
+      return toLattice(frontier);
+   }
+   
+   // toLattice
+   // Pre-conditions:
+   //    - endIdx is a node number returned by addNode
+   // Post-conditions:
+   //    - A new Lattice is returned with copies of the current nodes and
+   //      edges, node 0 as its start node and endIdx as its end node. Later
+   //      additions to this OnlineLattice do not change it
+   public Lattice toLattice(int endIdx) {
+      checkNode(endIdx);
+      return new Lattice(utteranceID, 0, endIdx, Arrays.copyOf(nodeTimes, numNodes),
+                         Arrays.copyOf(sources, numEdges), Arrays.copyOf(targets, numEdges),
+                         Arrays.copyOf(words, numEdges), Arrays.copyOf(amScores, numEdges),
+                         Arrays.copyOf(lmScores, numEdges), numEdges);
+   }
+   
+   // checkNode
+   // Returns node if it is a valid node number for this lattice
+   private int checkNode(int node) {
+      if (node < 0 || node >= numNodes)
+         throw new IllegalArgumentException("Error: node " + node + " has not been added");
+      return node;
+   }
+   
+   // score
+   // Returns the overall weight of edge k
+   private double score(int k) {
+      return amScores[k] + (lmScores[k] * lmScale);
+   }
+   
+   // relax
+   // Pre-conditions:
+   //    - Edge k has just been added or improved
+   // Post-conditions:
+   //    - If k gives a cheaper path into its target, the target's cost and
+   //      those of every node downstream of it are lowered. The nodes are
+   //      settled in topological order, so each is rescanned at most once
+   private void relax(int k) {
+      if (costsStale)
+         return;
+      if (!lower(k))
+         return;
+      int target = targets[k];
+      if (outHead[target] < 0)
+         return;
+      numPending = 0;
+      visitStamp++;
+      visited[target] = visitStamp;
+      push(target);
+      while (numPending > 0) {
+         int node = poll();
+         for (int e = outHead[node]; e >= 0; e = nextOut[e]) {
+            int next = targets[e];
+            if (lower(e) && outHead[next] >= 0 && visited[next] != visitStamp) {
+               visited[next] = visitStamp;
+               push(next);
+            }
+         }
+      }
+   }
+   
+   // push
+   // Adds node to the pending heap. Each node is pushed at most once per
+   // relax (visitStamp sees to that), so the heap never outgrows numNodes
+   private void push(int node) {
+      if (numPending == pending.length)
+         pending = Arrays.copyOf(pending, numPending * 2);
+      int index = numPending++;
+      while (index > 0) {
+         int parent = (index - 1) / 2;
+         if (order[pending[parent]] <= order[node])
+            break;
+         pending[index] = pending[parent];
+         index = parent;
+      }
+      pending[index] = node;
+   }
+   
+   // poll
+   // Removes and returns the pending node earliest in the topological order
+   private int poll() {
+      int top = pending[0];
+      int node = pending[--numPending];
+      int index = 0;
+      while (true) {
+         int child = 2 * index + 1;
+         if (child >= numPending)
+            break;
+         if (child + 1 < numPending && order[pending[child + 1]] < order[pending[child]])
+            child++;
+         if (order[pending[child]] >= order[node])
+            break;
+         pending[index] = pending[child];
+         index = child;
+      }
+      pending[index] = node;
+      return top;
+   }
+   
+   // lower
+   // Lowers the cost of edge k's target through k if that is cheaper, and
+   // returns whether it was
+   private boolean lower(int k) {
+      double base = cost[sources[k]];
+      if (base == Double.POSITIVE_INFINITY)
+         return false;
+      int node = targets[k];
+      if ( (score(k) + base) < cost[node]) {
+         cost[node] = score(k) + base;
+         parentEdge[node] = k;
+         advanceFrontier(node);
+         return true;
+      }
+      return false;
+   }
+   
+   // advanceFrontier
+   // Makes node the frontier if it is later than the current one, or as
+   // late and cheaper
+   private void advanceFrontier(int node) {
+      if (nodeTimes[node] > nodeTimes[frontier]
+          || (nodeTimes[node] == nodeTimes[frontier] && cost[node] < cost[frontier]))
+         frontier = node;
+   }
+   
+   // refreshCosts
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - If the costs are stale they are recomputed from scratch by relaxing
+   //      every edge in topological order, as Lattice.decode does
+   private void refreshCosts() {
+      if (!costsStale)
+         return;
+      costsStale = false;
+      Arrays.fill(cost, 0, numNodes, Double.POSITIVE_INFINITY);
+      Arrays.fill(parentEdge, 0, numNodes, -1);
+      cost[0] = 0;
+      frontier = 0;
+      for (int p = 0; p < numNodes; p++) {
+         for (int k = outHead[nodeAt[p]]; k >= 0; k = nextOut[k]) {
+            lower(k);
+         }
+      }
+   }
+   
+   // reorder
+   // Pre-conditions:
+   //    - An edge from -> to is about to be added, and order[to] < order[from]
+   // Post-conditions:
+   //    - The nodes reachable from to that come no later than from in the
+   //      order (forward) and the nodes that reach from and come after to
+   //      (backward) have been renumbered so that every backward node
+   //      precedes every forward node, reusing the same set of positions.
+   //      Nothing outside that window moves
+   //    - Throws IllegalArgumentException if from is reachable from to
+   private void reorder(int from, int to) {
+      int lower = order[to], upper = order[from];
+      long[] forward = search(to, upper, true, from);
+      long[] backward = search(from, lower, false, -1);
+      Arrays.sort(forward);
+      Arrays.sort(backward);
+      
+      int[] positions = new int[forward.length + backward.length];
+      int count = 0;
+      for (long entry : backward) {
+         positions[count++] = (int) (entry >>> 32);
+      }
+      for (long entry : forward) {
+         positions[count++] = (int) (entry >>> 32);
+      }
+      Arrays.sort(positions);
+      count = 0;
+      for (long entry : backward) {
+         place((int) entry, positions[count++]);
+      }
+      for (long entry : forward) {
+         place((int) entry, positions[count++]);
+      }
+   }
+   
+   // search
+   // Pre-conditions:
+   //    - bound is a position in the order
+   // Post-conditions:
+   //    - Returns the nodes reachable from node along out-edges (forward) or
+   //      in-edges (!forward) without leaving positions [0, bound] (forward)
+   //      or [bound, numNodes) (!forward), each packed as its position in
+   //      the high 32 bits and its node number in the low 32 bits
+   //    - Throws IllegalArgumentException if forbidden is reached
+   private long[] search(int node, int bound, boolean forward, int forbidden) {
+      visitStamp++;
+      int[] stack = new int[16];
+      long[] found = new long[16];
+      int depth = 0, count = 0;
+      stack[depth++] = node;
+      visited[node] = visitStamp;
+      while (depth > 0) {
+         int n = stack[--depth];
+         if (count == found.length)
+            found = Arrays.copyOf(found, count * 2);
+         found[count++] = ((long) order[n] << 32) | n;
+         int k = forward ? outHead[n] : inHead[n];
+         while (k >= 0) {
+            int m = forward ? targets[k] : sources[k];
+            if (m == forbidden)
+               throw new IllegalArgumentException("Error: edge " + forbidden + " -> " + node
+                                                  + " would create a cycle");
+            boolean inWindow = forward ? order[m] < bound : order[m] > bound;
+            if (inWindow && visited[m] != visitStamp) {
+               visited[m] = visitStamp;
+               if (depth == stack.length)
+                  stack = Arrays.copyOf(stack, depth * 2);
+               stack[depth++] = m;
+            }
+            k = forward ? nextOut[k] : nextIn[k];
+         }
+      }
+      return Arrays.copyOf(found, count);
+   }
+   
+   // place
+   // Puts node at position p of the topological order
+   private void place(int node, int p) {
+      order[node] = p;
+      nodeAt[p] = node;
+   }
+}
@@ -0,0 +1,188 @@
+/*
+* SymbolTable.java
+*
+* Maps words to dense int ids (0, 1, 2, ...) and back. Words can be looked up
+* straight from UTF-8 bytes, so a parser only allocates a String the first
+* time it sees a word. All methods are thread-safe: looking up a word that is
+* already in the table (and word(id)) takes no lock, only adding a new word
+* does. shared() returns a table that every Lattice interns its labels into
+*
+*/
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class SymbolTable {
+   private static final SymbolTable SHARED = new SymbolTable();
+   
+   // Readers do not lock, so a word is published by writing its entries
+   // first and size last: a reader that sees size > id (or an array written
+   // after that) also sees everything stored for id. The arrays are volatile
+   // because growing replaces them
+   private volatile int[] slots;       // Open-addressing hash table of id+1 (0 = empty)
+   private volatile byte[][] keys;     // keys[id] is the UTF-8 encoding of word id
+   private volatile int[] hashes;      // hashes[id] is the hash of keys[id]
+   private volatile String[] words;    // words[id] is word id
+   private volatile int size;          // Number of words in the table
+   
+   // SymbolTable
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - An empty table has been created
+   public SymbolTable() {
+      slots = new int[64];
+      keys = new byte[32][];
+      hashes = new int[32];
+      words = new String[32];
+      size = 0;
+   }
+   
+   // shared
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the process-wide table used for lattice labels
+   public static SymbolTable shared() {
+      return SHARED;
+   }
+   
+   // id
+   // Pre-conditions:
+   //    - word is non-null
+   // Post-conditions:
+   //    - Returns the id of word, adding it to the table if it is new
+   public int id(String word) {
+      byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+      return id(bytes, 0, bytes.length);
+   }
+   
+   // id
+   // Pre-conditions:
+   //    - bytes[offset .. offset+length-1] is the UTF-8 encoding of a word
+   // Post-conditions:
+   //    - Returns the id of the word, adding it to the table if it is new
+   //      (the bytes are copied, so the caller may reuse the array)
+   public int id(byte[] bytes, int offset, int length) {
+      int hash = hash(bytes, offset, length);
+      int id = lookup(bytes, offset, length, hash);
+      return (id >= 0) ? id : insert(bytes, offset, length, hash);
+   }
+   
+   // find
+   // Pre-conditions:
+   //    - word is non-null
+   // Post-conditions:
+   //    - Returns the id of word, or -1 if it is not in the table
+   //      (unlike id, this never adds a word)
+   public int find(String word) {
+      byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+      int hash = hash(bytes, 0, bytes.length);
+      int id = lookup(bytes, 0, bytes.length, hash);
+      if (id >= 0)
+         return id;
+      // The word may be being added right now, so ask again under the lock
+      synchronized (this) {
+         return lookup(bytes, 0, bytes.length, hash);
+      }
+   }
+   
+   // word
+   // Pre-conditions:
+   //    - 0 <= id < size()
+   // Post-conditions:
+   //    - Returns the word with the given id
+   public String word(int id) {
+      if (id < 0 || id >= size)
+         throw new IndexOutOfBoundsException("No symbol with id " + id);
+      return words[id];
+   }
+   
+   // size
+   // Pre-conditions:
+   //    - None
+   // Post-conditions:
+   //    - Returns the number of words in the table
+   public int size() {
+      return size;
+   }
+   
+   // lookup
+   // Returns the id of the word, or -1 if it was not found without locking
+   // (it is then either absent or being added by another thread)
+   private int lookup(byte[] bytes, int offset, int length, int hash) {
+      int published = size;
+      int[] table = slots;
+      int mask = table.length - 1;
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+         int entry = table[slot] - 1;
+         if (entry < 0 || entry >= published)
+            return -1;
+         if (hashes[entry] == hash && matches(keys[entry], bytes, offset, length))
+            return entry;
+      }
+   }
+   
+   // insert
+   // Adds the word unless another thread added it first, and returns its id
+   private synchronized int insert(byte[] bytes, int offset, int length, int hash) {
+      int mask = slots.length - 1;
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+         int entry = slots[slot] - 1;
+         if (entry < 0)
+            return add(bytes, offset, length, hash, slot);
+         if (hashes[entry] == hash && matches(keys[entry], bytes, offset, length))
+            return entry;
+      }
+   }
+   
+   private int add(byte[] bytes, int offset, int length, int hash, int slot) {
+      int id = size;
+      if (id == words.length) {
+         keys = Arrays.copyOf(keys, id * 2);
+         hashes = Arrays.copyOf(hashes, id * 2);
+         words = Arrays.copyOf(words, id * 2);
+      }
+      keys[id] = Arrays.copyOfRange(bytes, offset, offset + length);
+      hashes[id] = hash;
+      words[id] = new String(keys[id], StandardCharsets.UTF_8);
+      slots[slot] = id + 1;
+      if ((id + 1) * 2 > slots.length)
+         rehash(id + 1);
+      size = id + 1;
+      return id;
+   }
+   
+   // Builds the larger table completely before publishing it
+   private void rehash(int count) {
+      int[] table = new int[slots.length * 2];
+      int mask = table.length - 1;
+      for (int id = 0; id < count; id++) {
+         int slot = hashes[id] & mask;
+         while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+         }
+         table[slot] = id + 1;
+      }
+      slots = table;
+   }
+   
+   private static boolean matches(byte[] key, byte[] bytes, int offset, int length) {
+      if (key.length != length)
+         return false;
+      for (int i = 0; i < length; i++) {
+         if (key[i] != bytes[offset + i])
+            return false;
+      }
+      return true;
+   }
+   
+   // FNV-1a, with the high bits folded down since slots are picked by mask
+   private static int hash(byte[] bytes, int offset, int length) {
+      int h = 0x811c9dc5;
+      for (int i = 0; i < length; i++) {
+         h = (h ^ bytes[offset + i]) * 0x01000193;
+      }
+      return h ^ (h >>> 16);
+   }
+}
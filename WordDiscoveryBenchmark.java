@@ -0,0 +1,157 @@
+/*
+ * WordDiscoveryBenchmark.java
+ *
+ * Measures the throughput of many WordDiscoverySessions run at once on a
+ * shared ExecutorService, against the same sessions run one after another
+ * on a single thread. Every parallel result is checked against the
+ * sequential one, since the sessions must not interfere with each other
+ *
+ * Usage: java WordDiscoveryBenchmark threads sessions iterations countThreshold probabilityThreshold file1 [file2 ...]
+ *        java WordDiscoveryBenchmark threads sessions iterations countThreshold probabilityThreshold -synthetic tokens vocabulary [seed]
+ *
+ * Session i runs over file i mod #files. The second form instead gives each
+ * session its own generated corpus (see synthetic)
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class WordDiscoveryBenchmark {
+   private static final int WARMUP = 3;        // Untimed rounds of all sessions
+   private static final int REPETITIONS = 5;   // Timed rounds of all sessions
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 6) {
+         System.err.println("Usage: java WordDiscoveryBenchmark threads sessions iterations countThreshold probabilityThreshold file1 [file2 ...]");
+         System.err.println("       java WordDiscoveryBenchmark threads sessions iterations countThreshold probabilityThreshold -synthetic tokens vocabulary [seed]");
+         System.exit(1);
+      }
+      int threads = Integer.parseInt(args[0]);
+      int sessions = Integer.parseInt(args[1]);
+      final int iterations = Integer.parseInt(args[2]);
+      final int countThreshold = Integer.parseInt(args[3]);
+      final double probabilityThreshold = Double.parseDouble(args[4]);
+
+      final List<Corpus> corpora = new ArrayList<Corpus>();
+      if (args[5].equals("-synthetic") && args.length >= 8) {
+         long seed = (args.length > 8) ? Long.parseLong(args[8]) : 1;
+         for (int i = 0; i < sessions; i++) {
+            corpora.add(synthetic(Integer.parseInt(args[6]), Integer.parseInt(args[7]), seed + i));
+         }
+      } else {
+         for (int i = 5; i < args.length; i++) {
+            corpora.add(Wordifier.loadCorpus(args[i]));
+         }
+      }
+      long tokens = 0;
+      for (int i = 0; i < sessions; i++) {
+         tokens += corpora.get(i % corpora.size()).size();
+      }
+
+      List<Callable<Corpus>> tasks = new ArrayList<Callable<Corpus>>();
+      for (int i = 0; i < sessions; i++) {
+         final Corpus data = corpora.get(i % corpora.size());
+         tasks.add(new Callable<Corpus>() {
+            public Corpus call() {
+               return new WordDiscoverySession(data, iterations, countThreshold, probabilityThreshold).call();
+            }
+         });
+      }
+
+      ExecutorService single = Executors.newSingleThreadExecutor();
+      ExecutorService shared = Executors.newFixedThreadPool(threads);
+      try {
+         List<Corpus> expected = runAll(single, tasks);
+         for (int i = 0; i < WARMUP; i++) {
+            runAll(single, tasks);
+            check(expected, runAll(shared, tasks));
+         }
+         double sequential = time(single, tasks, null);
+         double parallel = time(shared, tasks, expected);
+         System.out.printf("%d sessions, %d tokens, %d iterations%n", sessions, tokens, iterations);
+         print("1 thread", sequential, sessions, tokens);
+         print(threads + " threads", parallel, sessions, tokens);
+         System.out.printf("%-12s %.2fx%n", "speedup", sequential / parallel);
+      } finally {
+         single.shutdown();
+         shared.shutdown();
+      }
+   }
+
+   // synthetic
+   // Pre-conditions:
+   //    - numTokens >= 0 and vocabulary >= 1
+   // Post-conditions:
+   //    - Returns a character-segmented corpus of about numTokens letters:
+   //      words from a made-up vocabulary of the given size (2 to 5 letters
+   //      each, Zipf frequencies) written one letter per token, with no word
+   //      boundaries, so there are words to discover
+   //    - The output depends only on the arguments, seed included
+   public static Corpus synthetic(int numTokens, int vocabulary, long seed) {
+      Random random = new Random(seed);
+      String[] words = new String[vocabulary];
+      double[] cumulative = new double[vocabulary];
+      double total = 0;
+      for (int r = 0; r < vocabulary; r++) {
+         StringBuilder word = new StringBuilder();
+         int length = 2 + random.nextInt(4);
+         for (int i = 0; i < length; i++) {
+            word.append((char) ('a' + random.nextInt(26)));
+         }
+         words[r] = word.toString();
+         total += 1.0 / (r + 1);
+         cumulative[r] = total;
+      }
+      Corpus corpus = new Corpus(new SymbolTable());
+      while (corpus.size() < numTokens) {
+         int r = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+         String word = words[Math.min(vocabulary - 1, (r < 0) ? -r - 1 : r)];
+         for (int i = 0; i < word.length(); i++) {
+            corpus.add(word.substring(i, i + 1));
+         }
+      }
+      return corpus;
+   }
+
+   // Runs every task on executor and returns their results, in order
+   private static List<Corpus> runAll(ExecutorService executor, List<Callable<Corpus>> tasks) throws Exception {
+      List<Corpus> results = new ArrayList<Corpus>();
+      for (Future<Corpus> result : executor.invokeAll(tasks)) {
+         results.add(result.get());
+      }
+      return results;
+   }
+
+   // Returns the mean time in nanoseconds to run every task on executor,
+   // checking the results against expected if it is not null
+   private static double time(ExecutorService executor, List<Callable<Corpus>> tasks, List<Corpus> expected) throws Exception {
+      long total = 0;
+      for (int i = 0; i < REPETITIONS; i++) {
+         long started = System.nanoTime();
+         List<Corpus> results = runAll(executor, tasks);
+         total += System.nanoTime() - started;
+         if (expected != null)
+            check(expected, results);
+      }
+      return (double) total / REPETITIONS;
+   }
+
+   private static void check(List<Corpus> expected, List<Corpus> results) {
+      for (int i = 0; i < expected.size(); i++) {
+         Corpus a = expected.get(i);
+         Corpus b = results.get(i);
+         boolean same = a.size() == b.size();
+         for (int j = 0; same && j < a.size(); j++) {
+            same = a.word(j).equals(b.word(j));
+         }
+         if (!same)
+            throw new IllegalStateException("session " + i + " gave a different result in parallel");
+      }
+   }
+
+   private static void print(String name, double nanos, int sessions, long tokens) {
+      System.out.printf("%-12s %10.1f ms  %8.1f sessions/s  %10.0f tokens/s%n",
+                        name, nanos / 1e6, sessions * 1e9 / nanos, tokens * 1e9 / nanos);
+   }
+}
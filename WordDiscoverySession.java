@@ -0,0 +1,152 @@
+/*
+ * WordDiscoverySession.java
+ *
+ * One run of Wordifier's word discovery over one corpus, with all of its
+ * state (the corpus, the bigram and unigram counts, the thresholds and the
+ * words found so far) held in the instance rather than in static fields.
+ * Separate sessions share nothing mutable except, if the caller chooses, a
+ * SymbolTable, which is safe to share, so any number of them can run at
+ * once, e.g. as Callables on one ExecutorService. The methods of a session
+ * are synchronized, so a session may also be handed between threads
+ *
+ */
+
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+
+public class WordDiscoverySession implements Callable<Corpus> {
+   private final BigramIndex index;         // The corpus and its counts
+   private final int countThreshold;        // As for Wordifier.findNewWords
+   private final double probabilityThreshold;
+   private final int iterations;            // Rounds run by call()
+   private final HashSet<String> discovered = new HashSet<String>();
+   private int rounds;                      // Rounds run so far
+   private boolean finished;                // Whether a round has found nothing
+
+   // WordDiscoverySession
+   // Preconditions:
+   //    - data is the Corpus representation of the data (it is not changed)
+   //    - iterations is the number of rounds call() runs
+   //    - countThreshold and probabilityThreshold are as for Wordifier.findNewWords
+   // Postconditions:
+   //    - A session is created with data counted and no rounds run
+   public WordDiscoverySession(Corpus data, int iterations, int countThreshold, double probabilityThreshold) {
+      this.index = new BigramIndex(data);
+      this.iterations = iterations;
+      this.countThreshold = countThreshold;
+      this.probabilityThreshold = probabilityThreshold;
+   }
+
+   // WordDiscoverySession
+   // Preconditions:
+   //    - textFilename is the name of a plaintext input file, the other
+   //      arguments are as above
+   // Postconditions:
+   //    - A session is created over the file, loaded with Wordifier.loadCorpus
+   //    - Throws UncheckedIOException if the file cannot be read
+   public WordDiscoverySession(String textFilename, int iterations, int countThreshold, double probabilityThreshold) {
+      this(Wordifier.loadCorpus(textFilename), iterations, countThreshold, probabilityThreshold);
+   }
+
+   // step
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - One round has been run: the bigrams that pass the thresholds have
+   //      been found and merged wherever they occur, left to right
+   //    - Returns the new words of the round (empty once a round finds none,
+   //      after which the session is finished and further steps do nothing)
+   public synchronized HashSet<String> step() {
+      if (finished)
+         return new HashSet<String>();
+      HashSet<String> newWords = index.findNewWords(countThreshold, probabilityThreshold);
+      if (newWords.isEmpty()) {
+         finished = true;
+         return newWords;
+      }
+      index.merge(newWords);
+      discovered.addAll(newWords);
+      rounds++;
+      return newWords;
+   }
+
+   // call
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Runs the remaining rounds, up to iterations in all, stopping early if
+   //      a round finds no new words, and returns the resegmented corpus,
+   //      the same one Wordifier.discoverWords would return
+   public synchronized Corpus call() {
+      while (rounds < iterations && !finished) {
+         step();
+      }
+      return index.toCorpus();
+   }
+
+   // getCorpus
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns a new Corpus with the data as segmented so far
+   public synchronized Corpus getCorpus() {
+      return index.toCorpus();
+   }
+
+   // getDiscoveredWords
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns a new HashSet with every word found by the rounds so far
+   public synchronized HashSet<String> getDiscoveredWords() {
+      return new HashSet<String>(discovered);
+   }
+
+   // getRounds
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns the number of rounds that have found and merged new words
+   public synchronized int getRounds() {
+      return rounds;
+   }
+
+   // isFinished
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns true if a round has found no new words
+   public synchronized boolean isFinished() {
+      return finished;
+   }
+
+   // getBigramProbability
+   // Preconditions:
+   //    - first and second are ids from the corpus's SymbolTable
+   // Postconditions:
+   //    - Returns the joint probability of the bigram in the current data
+   //      (its count over the total # bigrams), as convertCountsToProbabilities
+   //      computes it
+   public synchronized double getBigramProbability(int first, int second) {
+      return index.getCount(first, second) / (double) index.getTotal();
+   }
+
+   // getUnigramProbability
+   // Preconditions:
+   //    - id is an id from the corpus's SymbolTable
+   // Postconditions:
+   //    - Returns the "marginal probability" of the word in the current data
+   //      (its count over the total # bigrams)
+   public synchronized double getUnigramProbability(int id) {
+      return index.unigramCount(id) / (double) index.getTotal();
+   }
+
+   // getSymbols
+   // Preconditions:
+   //    - None
+   // Postconditions:
+   //    - Returns the SymbolTable the corpus's ids refer to
+   public SymbolTable getSymbols() {
+      return index.getSymbols();
+   }
+}
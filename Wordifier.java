@@ -19,51 +19,104 @@ import java.util.Arrays;
 import java.util.Map.Entry;
 import java.util.Iterator;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.Math;
 
 public class Wordifier {
 
-   static private int totalBigramCount = 0;       // keeps track of the total numbers of bigrams
-   static private LinkedList<String> initialData; // keeps track of the set of unigrams
+   static private final int SHARD_SIZE = 1 << 16;  // tokens counted by one parallel task
   
 
-   // Helper method for reading input from files
-   private static LinkedList<String> loaderUtil(LinkedList<String> list, String path) {
-      BufferedReader buffer;
+    // streamCorpus
+    // Preconditions:
+    //    - textFilename is the name of a plaintext input file
+    //    - chunkSize > 0
+    // Postconditions:
+    //    - The file has been read through a memory-mapped ByteScanner and split
+    //      on whitespace, every token has been interned in symbols, and the ids
+    //      have been handed to handler in order, at most chunkSize new ids at a
+    //      time (after the first chunk, each also carries the previous chunk's last id)
+    //    - Runs of whitespace separate tokens without producing empty ones
+    //    - Only one chunk of ids is held at a time, whatever the file's size
+    //    - Throws UncheckedIOException if the file cannot be read
+   public static void streamCorpus( String textFilename, SymbolTable symbols, int chunkSize, CorpusChunkHandler handler ) {
+      ByteScanner input = null;
       try{
-         String input;
-         buffer = new BufferedReader(new FileReader(path));
-
-         while ((input = buffer.readLine()) != null){
-            String[] parts = input.split("\\s");
-            list.addAll(Arrays.asList(parts));
+         input = new ByteScanner(textFilename);
+         int[] chunk = new int[chunkSize + 1];
+         int size = 0;
+         int from = 0;
+         while (input.next()){
+            chunk[size++] = input.tokenSymbol(symbols);
+            if (size - from == chunkSize) {
+               handler.chunk(chunk, from, size);
+               chunk[0] = chunk[size - 1];
+               size = from = 1;
+            }
          }
+         if (size > from)
+            handler.chunk(chunk, from, size);
       }
       catch(IOException e) {
-         System.out.println(e.getMessage());
-         System.out.println("Error: Unable to open file " + path);
-         System.exit(1);
+         throw new UncheckedIOException("Error: Unable to open file " + textFilename, e);
       }
-		return list;
-	}
+      finally {
+         if (input != null) {
+            try {
+               input.close();
+            } catch (IOException e) {
+               // Nothing useful to do; everything has already been read
+            }
+         }
+      }
+   }
 
     // loadSentences
     // Preconditions:
     //    - textFilename is the name of a plaintext input file
     // Postconditions:
     //  - A LinkedList<String> object is returned that contains
-    //    all of the words in the input file, in order
+    //    all of the words in the input file, in order (each distinct
+    //    word is a single shared String)
+    //  - Throws UncheckedIOException if the file cannot be read
    public static LinkedList<String> loadSentences( String textFilename ) {
-      LinkedList<String> data = new LinkedList<String>();
-      data = loaderUtil(data, textFilename);
+      final LinkedList<String> data = new LinkedList<String>();
+      final SymbolTable symbols = new SymbolTable();
+      streamCorpus(textFilename, symbols, SHARD_SIZE, new CorpusChunkHandler() {
+         public void chunk(int[] tokens, int from, int to) {
+            for (int i = from; i < to; i++) {
+               data.add(symbols.word(tokens[i]));
+            }
+         }
+      });
       return data;
 	}
 
+    // loadCorpus
+    // Preconditions:
+    //    - textFilename is the name of a plaintext input file
+    // Postconditions:
+    //  - A Corpus is returned that contains all of the words in the input file,
+    //    in order, split exactly as loadSentences splits them, as ids in a new
+    //    SymbolTable
+    //  - Throws UncheckedIOException if the file cannot be read
+   public static Corpus loadCorpus( String textFilename ) {
+      final Corpus data = new Corpus(new SymbolTable());
+      streamCorpus(textFilename, data.getSymbols(), SHARD_SIZE, new CorpusChunkHandler() {
+         public void chunk(int[] tokens, int from, int to) {
+            for (int i = from; i < to; i++) {
+               data.add(tokens[i]);
+            }
+         }
+      });
+      return data;
+   }
+
     // findNewWords
     // Preconditions:
     //    - bigramCounts maps bigrams* to the number of times the bigram appears in the data
@@ -86,6 +139,26 @@ public class Wordifier {
       return answer;
 	}
 
+    // findNewWords
+    // Preconditions:
+    //    - bigramCounts holds the counts of the data
+    //    - scores holds the bigram product score of each bigram, from getScores
+    //    - countThreshold is a threshold on the counts
+    //    - probabilityThreshold is a threshold on the bigram product score
+    // Postconditions:
+    //    - A HashSet is created and returned, containing the two words joined together
+    //      of every bigram whose count is >= countThreshold and whose score is
+    //      >= probabilityThreshold
+	public static HashSet<String> findNewWords( BigramCounts bigramCounts, double[] scores, int countThreshold, double probabilityThreshold ) {
+		HashSet<String> answer = new HashSet<String>();
+      SymbolTable symbols = bigramCounts.getSymbols();
+      for (int i = 0; i < bigramCounts.size(); i++) {
+         if (bigramCounts.count(i) >= countThreshold && scores[i] >= probabilityThreshold)
+            answer.add(symbols.word(bigramCounts.first(i)) + symbols.word(bigramCounts.second(i)));
+      }
+      return answer;
+	}
+
     // resegment
     // Preconditions:
     //    - previousData is the LinkedList representation of the data
@@ -123,6 +196,74 @@ public class Wordifier {
       return newData;
 	}
 
+    // resegment
+    // Preconditions:
+    //    - previousData is the Corpus representation of the data
+    //    - newWords is the HashSet containing the new words (after merging)
+    // Postconditions:
+    //    - A new Corpus is returned, sharing previousData's SymbolTable, in which
+    //      any pairs of words in the newWords set have been merged to a single
+    //      entry (merge from left to right), as in the LinkedList version;
+    //      previousData is unchanged
+    //    - Unlike the LinkedList version, a merge of the last two tokens does not
+    //      leave a copy of the last token behind
+   public static Corpus resegment( Corpus previousData, HashSet<String> newWords ) {
+      BigramCounts bigramCounts = new BigramCounts(previousData.getSymbols());
+      computeCounts(previousData, bigramCounts);
+      Corpus newData = previousData.copy();
+      resegmentInPlace(newData, mergeTable(bigramCounts, newWords));
+      return newData;
+   }
+
+    // mergeTable
+    // Preconditions:
+    //    - bigramCounts holds the counts of the data
+    //    - newWords is the HashSet containing the new words (after merging)
+    // Postconditions:
+    //    - A new map is returned from each bigram of the data whose two words joined
+    //      together are in newWords (packed as in BigramCounts) to the id of the
+    //      joined word, which is added to the SymbolTable if it is new
+    //    - Joined Strings are built once per distinct bigram, never per token
+   public static LongIntHashMap mergeTable( BigramCounts bigramCounts, HashSet<String> newWords ) {
+      SymbolTable symbols = bigramCounts.getSymbols();
+      LongIntHashMap merges = new LongIntHashMap(newWords.size());
+      for (int i = 0; i < bigramCounts.size(); i++) {
+         String combined = symbols.word(bigramCounts.first(i)) + symbols.word(bigramCounts.second(i));
+         if (newWords.contains(combined))
+            merges.put(BigramCounts.pack(bigramCounts.first(i), bigramCounts.second(i)), symbols.id(combined));
+      }
+      return merges;
+   }
+
+    // resegmentInPlace
+    // Preconditions:
+    //    - data is the Corpus representation of the data
+    //    - merges maps packed pairs of ids (see BigramCounts) to the id of the word
+    //      they merge into, as returned by mergeTable
+    // Postconditions:
+    //    - data has been resegmented in place: scanning left to right, each pair of
+    //      tokens in merges is replaced by its merged word, and the scan continues
+    //      after the pair, exactly as resegment merges
+    //    - One pass with a read and a write index over the token array; the write
+    //      index never passes the read index, so nothing is allocated
+   public static void resegmentInPlace( Corpus data, LongIntHashMap merges ) {
+      int[] tokens = data.tokens();
+      int size = data.size();
+      int read = 0, write = 0;
+      while (read < size - 1) {
+         int merged = merges.get(BigramCounts.pack(tokens[read], tokens[read+1]), -1);
+         if (merged >= 0) {
+            tokens[write++] = merged;
+            read += 2;
+         } else {
+            tokens[write++] = tokens[read++];
+         }
+      }
+      if (read < size)
+         tokens[write++] = tokens[read];
+      data.truncate(write);
+   }
+
     // computeCounts
     // Preconditions:
     //    - data is the LinkedList representation of the data
@@ -136,44 +277,191 @@ public class Wordifier {
          if(current != null) {
             var = current + " " + token;
             incrementHashMap(bigramCounts, var, 1);
-            totalBigramCount++;
          }
          current = token;
       }
-      initialData = data;
 		return;
 	}
 
+    // computeCounts
+    // Preconditions:
+    //    - data is the Corpus representation of the data
+    //    - bigramCounts is an empty HashMap that has already been created
+    // Postconditions:
+    //    - bigramCounts maps each bigram appearing in the data to the number of times it appears,
+    //      as the LinkedList version does
+    //    - The bigrams are counted as BigramCounts, so a bigram's String key is built once
+    //      per distinct bigram rather than once per occurrence
+	public static void computeCounts(Corpus data, HashMap<String,Integer> bigramCounts ) {
+      BigramCounts counts = new BigramCounts(data.getSymbols());
+      computeCounts(data, counts);
+      for (int i = 0; i < counts.size(); i++) {
+         incrementHashMap(bigramCounts, counts.toString(i), counts.count(i));
+      }
+	}
+
+    // computeCounts
+    // Preconditions:
+    //    - data is the Corpus representation of the data
+    //    - bigramCounts is an empty BigramCounts over data's SymbolTable
+    // Postconditions:
+    //    - bigramCounts holds the count of each bigram and each word appearing in the data
+    //    - No object is allocated per bigram: pairs of ids are counted in a primitive map
+	public static void computeCounts(Corpus data, BigramCounts bigramCounts ) {
+      bigramCounts.add(data.tokens(), 0, data.size());
+	}
+
+    // computeCounts
+    // Preconditions:
+    //    - textFilename is the name of a plaintext input file
+    //    - bigramCounts is an empty BigramCounts; the file's words are added
+    //      to its SymbolTable
+    // Postconditions:
+    //    - bigramCounts holds what computeCounts(loadCorpus(textFilename), ...)
+    //      would put there, but the file is counted as it is streamed, one
+    //      chunk of SHARD_SIZE ids at a time, so the corpus is never held in memory
+    //    - Throws UncheckedIOException if the file cannot be read
+	public static void computeCounts(String textFilename, final BigramCounts bigramCounts ) {
+      streamCorpus(textFilename, bigramCounts.getSymbols(), SHARD_SIZE, new CorpusChunkHandler() {
+         public void chunk(int[] tokens, int from, int to) {
+            bigramCounts.addShard(tokens, from, to);
+         }
+      });
+	}
+
+    // computeCounts
+    // Preconditions:
+    //    - data is the Corpus representation of the data
+    //    - bigramCounts is an empty BigramCounts over data's SymbolTable
+    //    - pool is the ForkJoinPool to count on
+    // Postconditions:
+    //    - bigramCounts holds exactly what the sequential computeCounts would put there,
+    //      numbering included
+    //    - The corpus is split into shards of SHARD_SIZE tokens that overlap by one token,
+    //      the bigrams of each shard are counted into its own BigramCounts by a task on
+    //      pool, and the shards are merged pairwise, left to right. The shards hold no
+    //      per-word arrays; the unigram counts are derived from the merged bigrams in
+    //      one final pass, so a merge costs only the bigrams the shards saw
+    //    - Nothing static is touched, so calls on different corpora may run concurrently
+	public static void computeCounts(Corpus data, BigramCounts bigramCounts, ForkJoinPool pool ) {
+      CountShards task = new CountShards(data.tokens(), 0, data.size(), data.getSymbols());
+      BigramCounts counts = pool.invoke(task);
+      if (data.size() > 0)
+         counts.countUnigramsFromBigrams(data.get(0));
+      bigramCounts.merge(counts);
+	}
+
+   // CountShards
+   // Counts the bigrams of tokens [from, to) (see BigramCounts.addShardBigrams), splitting the range in half
+   // until it is at most SHARD_SIZE tokens long
+   @SuppressWarnings("serial")
+   private static class CountShards extends RecursiveTask<BigramCounts> {
+      private final int[] tokens;
+      private final int from, to;
+      private final SymbolTable symbols;
+
+      CountShards(int[] tokens, int from, int to, SymbolTable symbols) {
+         this.tokens = tokens;
+         this.from = from;
+         this.to = to;
+         this.symbols = symbols;
+      }
+
+      protected BigramCounts compute() {
+         if (to - from <= SHARD_SIZE) {
+            BigramCounts counts = new BigramCounts(symbols);
+            counts.addShardBigrams(tokens, from, to);
+            return counts;
+         }
+         int middle = (from + to) >>> 1;
+         CountShards right = new CountShards(tokens, middle, to, symbols);
+         right.fork();
+         BigramCounts left = new CountShards(tokens, from, middle, symbols).compute();
+         left.merge(right.join());
+         return left;
+      }
+   }
+
+
     // convertCountsToProbabilities
     // Preconditions:
     //    - bigramCounts maps each bigram appearing in the data to the number of times it appears
     //    - bigramProbs is an empty HashMap that has already been created
     //    - unigramProbs is an empty HashMap that has already been created
     // Postconditions:
+    //    - As the version below, with the unigram counts worked out from bigramCounts:
+    //      every token but the first is the second word of exactly one bigram, and the
+    //      first token is the one word that starts more bigrams than it ends
+    //    - A HashMap does not keep the order of the bigrams, so if the data starts and
+    //      ends with the same word, no word starts more bigrams than it ends and that
+    //      word is counted once less than it appears
+	public static void convertCountsToProbabilities(HashMap<String,Integer> bigramCounts, HashMap<String,Double> bigramProbs, HashMap<String,Double> unigramProbs ) {
+      HashMap<String,Integer> unigramCounts = new HashMap<String,Integer>();
+      HashMap<String,Integer> firstCounts = new HashMap<String,Integer>();
+      for (Entry<String,Integer> entry : bigramCounts.entrySet()) {
+         String[] words = entry.getKey().split("\\s");
+         incrementHashMap(firstCounts, words[0], entry.getValue());
+         incrementHashMap(unigramCounts, words[1], entry.getValue());
+      }
+      for (Entry<String,Integer> entry : firstCounts.entrySet()) {
+         Integer secondCount = unigramCounts.get(entry.getKey());
+         if (entry.getValue() > ((secondCount == null) ? 0 : secondCount))
+            incrementHashMap(unigramCounts, entry.getKey(), 1);
+      }
+      convertCountsToProbabilities(bigramCounts, unigramCounts, bigramProbs, unigramProbs);
+	}
+
+    // convertCountsToProbabilities
+    // Preconditions:
+    //    - bigramCounts maps each bigram appearing in the data to the number of times it appears
+    //    - unigramCounts maps each word appearing in the data to the number of times it
+    //      appears, as returned by getVocabulary
+    //    - bigramProbs is an empty HashMap that has already been created
+    //    - unigramProbs is an empty HashMap that has already been created
+    // Postconditions:
     //    - bigramProbs maps bigrams to their joint probability
-    //        (where the joint probability of a bigram is the # times it appears over the total # bigrams)
+    //        (where the joint probability of a bigram is the # times it appears over the total # bigrams,
+    //        the total being taken from bigramCounts itself)
     //    - unigramProbs maps words to their "marginal probability"
     //        (i.e. the frequency of each word over the total # bigrams)
-	public static void convertCountsToProbabilities(HashMap<String,Integer> bigramCounts, HashMap<String,Double> bigramProbs, HashMap<String,Double> unigramProbs ) {
+	public static void convertCountsToProbabilities(HashMap<String,Integer> bigramCounts, HashMap<String,Integer> unigramCounts, HashMap<String,Double> bigramProbs, HashMap<String,Double> unigramProbs ) {
 		Set<String> bigramKeySet = new HashSet<String>();
       bigramKeySet = bigramCounts.keySet();
       double probability;
+      long totalBigramCount = 0;
+      for(int count : bigramCounts.values()) {
+         totalBigramCount += count;
+      }
       for(String s : bigramKeySet) {
          probability = bigramCounts.get(s);
          bigramProbs.put(s, probability / totalBigramCount);
       }
-      for(String s : initialData) {
-         if(!unigramProbs.containsKey(s)) {
-            unigramProbs.put(s, 1.0 / totalBigramCount);
-         }
-         else{
-            double temp2 = (unigramProbs.get(s) * totalBigramCount) + 1.0;
-            unigramProbs.put(s, temp2 / totalBigramCount);
-         }
+      for(Entry<String,Integer> unigram : unigramCounts.entrySet()) {
+         unigramProbs.put(unigram.getKey(), (double) unigram.getValue() / totalBigramCount);
       }
       return;
 	}
 
+    // convertCountsToProbabilities
+    // Preconditions:
+    //    - bigramCounts holds the counts of the data
+    //    - bigramProbs has one entry per distinct bigram (bigramCounts.size())
+    //    - unigramProbs has one entry per word id (bigramCounts.getSymbols().size())
+    // Postconditions:
+    //    - bigramProbs[i] is the joint probability of bigram number i
+    //        (the # times it appears over the total # bigrams)
+    //    - unigramProbs[id] is the "marginal probability" of word id
+    //        (the frequency of the word over the total # bigrams)
+	public static void convertCountsToProbabilities(BigramCounts bigramCounts, double[] bigramProbs, double[] unigramProbs ) {
+      double total = bigramCounts.getTotal();
+      for (int i = 0; i < bigramCounts.size(); i++) {
+         bigramProbs[i] = bigramCounts.count(i) / total;
+      }
+      for (int id = 0; id < unigramProbs.length; id++) {
+         unigramProbs[id] = bigramCounts.unigramCount(id) / total;
+      }
+	}
+
     // getScores
     // Preconditions:
     //    - bigramProbs maps bigrams to to their joint probability
@@ -201,6 +489,23 @@ public class Wordifier {
       return scores;
 	}
 
+    // getScores
+    // Preconditions:
+    //    - bigramCounts holds the counts of the data
+    //    - bigramProbs and unigramProbs were filled in by convertCountsToProbabilities
+    // Postconditions:
+    //    - A new array is returned whose i'th entry is the bigram product score
+    //      of bigram number i, P(w1,w2)/sqrt(P(w1)*P(w2)), as the HashMap version
+    //      computes it, with the two words taken from the packed ids
+	public static double[] getScores( BigramCounts bigramCounts, double[] bigramProbs, double[] unigramProbs ) {
+      double[] scores = new double[bigramCounts.size()];
+      for (int i = 0; i < scores.length; i++) {
+         double denominator = Math.sqrt(unigramProbs[bigramCounts.first(i)] * unigramProbs[bigramCounts.second(i)]);
+         scores[i] = bigramProbs[i] / denominator;
+      }
+      return scores;
+	}
+
     // getVocabulary
     // Preconditions:
     //    - data is a LinkedList representation of the data
@@ -215,29 +520,168 @@ public class Wordifier {
 		return vocabulary;
 	}
 
+    // getVocabulary
+    // Preconditions:
+    //    - data is a Corpus representation of the data
+    // Postconditions:
+    //    - A new HashMap is created and returned that maps words
+    //      to the number of times they appear in the data
+    //    - The words are counted by id in an array, and each distinct word is
+    //      put in the HashMap once
+	public static HashMap<String,Integer> getVocabulary( Corpus data ) {
+      int[] counts = new int[data.getSymbols().size()];
+      int[] tokens = data.tokens();
+      for (int i = 0; i < data.size(); i++) {
+         counts[tokens[i]]++;
+      }
+      HashMap<String,Integer> vocabulary = new HashMap<String, Integer>();
+      for (int id = 0; id < counts.length; id++) {
+         if (counts[id] > 0)
+            vocabulary.put(data.getSymbols().word(id), counts[id]);
+      }
+		return vocabulary;
+	}
+
+    // getVocabulary
+    // Preconditions:
+    //    - data is a Corpus representation of the data
+    //    - pool is the ForkJoinPool to count on
+    // Postconditions:
+    //    - Returns the same HashMap as getVocabulary(data), counting the shards of the
+    //      corpus in parallel as sparse lists of (id, count) and merging those, so the
+    //      work depends on the words each shard holds, not on the size of the vocabulary
+	public static HashMap<String,Integer> getVocabulary( Corpus data, ForkJoinPool pool ) {
+      int[][] counts = pool.invoke(new CountWords(data.tokens(), 0, data.size()));
+      HashMap<String,Integer> vocabulary = new HashMap<String, Integer>();
+      for (int i = 0; i < counts[0].length; i++) {
+         vocabulary.put(data.getSymbols().word(counts[0][i]), counts[1][i]);
+      }
+		return vocabulary;
+	}
+
+   // CountWords
+   // Counts the words in tokens [from, to) as a sparse list: the ids that appear,
+   // in increasing order, in result[0] and their counts in result[1]. A shard is
+   // sorted and run-length encoded, and two halves are merged as in a merge sort
+   @SuppressWarnings("serial")
+   private static class CountWords extends RecursiveTask<int[][]> {
+      private final int[] tokens;
+      private final int from, to;
+
+      CountWords(int[] tokens, int from, int to) {
+         this.tokens = tokens;
+         this.from = from;
+         this.to = to;
+      }
+
+      protected int[][] compute() {
+         if (to - from <= SHARD_SIZE) {
+            int[] ids = Arrays.copyOfRange(tokens, from, to);
+            Arrays.sort(ids);
+            int[] counts = new int[ids.length];
+            int size = 0;
+            for (int i = 0; i < ids.length; i++) {
+               if (size > 0 && ids[size - 1] == ids[i]) {
+                  counts[size - 1]++;
+               } else {
+                  ids[size] = ids[i];
+                  counts[size++] = 1;
+               }
+            }
+            return new int[][] { Arrays.copyOf(ids, size), Arrays.copyOf(counts, size) };
+         }
+         int middle = (from + to) >>> 1;
+         CountWords right = new CountWords(tokens, middle, to);
+         right.fork();
+         int[][] left = new CountWords(tokens, from, middle).compute();
+         return merge(left, right.join());
+      }
+
+      // Adds two sparse lists of counts
+      private static int[][] merge(int[][] left, int[][] right) {
+         int[] ids = new int[left[0].length + right[0].length];
+         int[] counts = new int[ids.length];
+         int i = 0, j = 0, size = 0;
+         while (i < left[0].length || j < right[0].length) {
+            if (j == right[0].length || (i < left[0].length && left[0][i] < right[0][j])) {
+               ids[size] = left[0][i];
+               counts[size++] = left[1][i++];
+            } else if (i == left[0].length || right[0][j] < left[0][i]) {
+               ids[size] = right[0][j];
+               counts[size++] = right[1][j++];
+            } else {
+               ids[size] = left[0][i];
+               counts[size++] = left[1][i++] + right[1][j++];
+            }
+         }
+         return new int[][] { Arrays.copyOf(ids, size), Arrays.copyOf(counts, size) };
+      }
+   }
+
+    // discoverWords
+    // Preconditions:
+    //    - data is a Corpus representation of the data
+    //    - iterations is the number of rounds of merging to run
+    //    - countThreshold and probabilityThreshold are as for findNewWords
+    // Postconditions:
+    //    - Runs iterations rounds of computeCounts, convertCountsToProbabilities,
+    //      getScores, findNewWords and resegment, stopping early if a round finds
+    //      no new words, and returns the final resegmented Corpus
+    //    - The counts are made once, in a BigramIndex, and after that each round
+    //      only updates the counts around the places it merges, so a round costs
+    //      time in proportion to its merges rather than to the corpus
+	public static Corpus discoverWords( Corpus data, int iterations, int countThreshold, double probabilityThreshold ) {
+      return new WordDiscoverySession(data, iterations, countThreshold, probabilityThreshold).call();
+	}
+
+    // discoverWords
+    // Preconditions:
+    //    - As above, and pool is the ForkJoinPool to count on (or null to count on
+    //      the calling thread)
+    // Postconditions:
+    //    - Returns the same Corpus as discoverWords without a pool, but recounts
+    //      the whole corpus every round, in parallel shards
+    //    - data is copied once and the copy is resegmented in place every round,
+    //      so the loop never holds more than two copies of the corpus
+	public static Corpus discoverWords( Corpus data, int iterations, int countThreshold, double probabilityThreshold, ForkJoinPool pool ) {
+      data = data.copy();
+      for (int round = 0; round < iterations; round++) {
+         BigramCounts bigramCounts = new BigramCounts(data.getSymbols());
+         if (pool == null)
+            computeCounts(data, bigramCounts);
+         else
+            computeCounts(data, bigramCounts, pool);
+         double[] bigramProbs = new double[bigramCounts.size()];
+         double[] unigramProbs = new double[data.getSymbols().size()];
+         convertCountsToProbabilities(bigramCounts, bigramProbs, unigramProbs);
+         double[] scores = getScores(bigramCounts, bigramProbs, unigramProbs);
+         HashSet<String> newWords = findNewWords(bigramCounts, scores, countThreshold, probabilityThreshold);
+         if (newWords.isEmpty())
+            break;
+         resegmentInPlace(data, mergeTable(bigramCounts, newWords));
+      }
+      return data;
+	}
+
     // loadDictionary
     // Preconditions:
     //    - dictionaryFilename is the name of a dictionary file
     //      the dictionary has one word per line
     // Postconditions:
     //    - A new HashSet is created and returned that contains
-    //      all unique words appearing in the dictionary
+    //      all unique words appearing in the dictionary, read with the
+    //      same memory-mapped scanner as loadCorpus
+    //    - Throws UncheckedIOException if the file cannot be read
 	public static HashSet<String> loadDictionary( String dictionaryFilename ) {
-		HashSet<String> dictionaryWords = new HashSet<String>();
-      try{
-         String input;
-         BufferedReader buffer = new BufferedReader(new FileReader(dictionaryFilename));
-
-         while ((input = buffer.readLine()) != null){
-            String[] parts = input.split("\\s");
-            dictionaryWords.addAll(Arrays.asList(parts));
+		final HashSet<String> dictionaryWords = new HashSet<String>();
+      final SymbolTable symbols = new SymbolTable();
+      streamCorpus(dictionaryFilename, symbols, SHARD_SIZE, new CorpusChunkHandler() {
+         public void chunk(int[] tokens, int from, int to) {
+            for (int i = from; i < to; i++) {
+               dictionaryWords.add(symbols.word(tokens[i]));
+            }
          }
-      }
-      catch(IOException e) {
-         System.out.println(e.getMessage());
-         System.out.println("Error: Unable to open file " + dictionaryFilename);
-         System.exit(1);
-      }
+      });
 		return dictionaryWords;
    }
 
@@ -0,0 +1,59 @@
+/*
+* DefaultPackage.java
+*
+* The lattice classes live in the default package, which code in a named
+* package cannot refer to, and JMH will not generate benchmarks in the
+* default package. So the benchmarks reach those classes through method
+* handles. A handle kept in a static final field is a constant to the JIT,
+* which inlines the call just as if it were written out directly
+*
+*/
+
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+final class DefaultPackage {
+   private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+   private DefaultPackage() {
+   }
+
+   // method
+   // Pre-conditions:
+   //    - className names a class in the default package that has a
+   //      method name taking exactly parameters (it may be package-private)
+   // Post-conditions:
+   //    - Returns a handle onto that method with every reference type,
+   //      the receiver's included, erased to Object; primitives are kept
+   static MethodHandle method(String className, String name, Class<?>... parameters) {
+      try {
+         Method method = Class.forName(className).getDeclaredMethod(name, parameters);
+         method.setAccessible(true);
+         MethodHandle handle = LOOKUP.unreflect(method);
+         return handle.asType(handle.type().erase());
+      } catch (ReflectiveOperationException e) {
+         throw new IllegalStateException("Cannot find " + className + "." + name, e);
+      }
+   }
+
+   // constructor
+   // Pre-conditions:
+   //    - className names a class in the default package with a constructor
+   //      taking exactly parameters
+   // Post-conditions:
+   //    - Returns a handle onto that constructor, erased as for method
+   static MethodHandle constructor(String className, Class<?>... parameters) {
+      try {
+         Constructor<?> constructor = Class.forName(className).getDeclaredConstructor(parameters);
+         constructor.setAccessible(true);
+         MethodHandle handle = LOOKUP.unreflectConstructor(constructor);
+         return handle.asType(handle.type().erase());
+      } catch (ReflectiveOperationException e) {
+         throw new IllegalStateException("Cannot find a constructor of " + className, e);
+      }
+   }
+}
@@ -0,0 +1,225 @@
+/*
+* LatticeJmhBenchmark.java
+*
+* JMH benchmarks for Lattice parsing, loading, decoding, sorting, path
+* counting, pruning, queries and output. Each trial works on a synthetic
+* lattice from LatticeBenchmark.writeSynthetic, so the same parameters
+* always give the same lattice. Every benchmark returns its result, hands
+* it to a Blackhole or writes it out (printSortedHits to a null stream,
+* writeAsDot to a temporary file), so the JIT cannot drop the work that
+* made it. Run with mvn -Pjmh verify, which adds the gc profiler so each
+* benchmark also reports its allocation rate
+*
+*/
+
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatticeJmhBenchmark {
+   private static final double LM_SCALE = 10.0;
+   private static final String QUERY_WORD = "-silence-";
+   private static final int NUM_SCALES = 100;     // Size of the lmScale sweep
+   private static final double PRUNE_BEAM = 2000;  // Beam for the pruning cases
+   private static final long MODULUS = 1000000007L;
+
+   private static final MethodHandle WRITE_SYNTHETIC = DefaultPackage.method("LatticeBenchmark", "writeSynthetic",
+         String.class, String.class, int.class, double.class, int.class, double.class, long.class);
+   private static final MethodHandle NEW_LATTICE = DefaultPackage.constructor("Lattice", String.class);
+   private static final MethodHandle OPEN_MAPPED = DefaultPackage.method("Lattice", "openMapped", String.class);
+   private static final MethodHandle SAVE_AS_BINARY = DefaultPackage.method("Lattice", "saveAsBinary", String.class);
+   private static final MethodHandle DECODE = DefaultPackage.method("Lattice", "decode", double.class);
+   private static final MethodHandle DECODE_SWEEP = DefaultPackage.method("Lattice", "decodeSweep", double[].class);
+   private static final MethodHandle KAHN_SORT = DefaultPackage.method("Lattice", "kahnSort");
+   private static final MethodHandle COUNT_ALL_PATHS = DefaultPackage.method("Lattice", "countAllPaths");
+   private static final MethodHandle COUNT_ALL_PATHS_EXACT = DefaultPackage.method("Lattice", "countAllPathsExact");
+   private static final MethodHandle COUNT_ALL_PATHS_LOG = DefaultPackage.method("Lattice", "countAllPathsLog");
+   private static final MethodHandle COUNT_ALL_PATHS_MOD = DefaultPackage.method("Lattice", "countAllPathsMod", long.class);
+   private static final MethodHandle PRUNE = DefaultPackage.method("Lattice", "prune", double.class, double.class);
+   private static final MethodHandle UNIQUE_WORDS_AT_TIME = DefaultPackage.method("Lattice", "uniqueWordsAtTime", double.class);
+   private static final MethodHandle SORTED_HIT_TIMES = DefaultPackage.method("Lattice", "sortedHitTimes", String.class);
+   private static final MethodHandle PRINT_SORTED_HITS = DefaultPackage.method("Lattice", "printSortedHits", String.class);
+   private static final MethodHandle TO_STRING = DefaultPackage.method("Lattice", "toString");
+   private static final MethodHandle WRITE_AS_DOT = DefaultPackage.method("Lattice", "writeAsDot", String.class);
+   private static final MethodHandle EDGE_POSTERIORS = DefaultPackage.method("Lattice", "edgePosteriors",
+         double.class, double.class);
+
+   @Param({ "200", "2000" })
+   public int numNodes;
+
+   @Param({ "4" })
+   public double density;
+
+   @Param({ "500" })
+   public int vocabulary;
+
+   // Exponent of the Zipf label distribution: 0 is uniform, 1 is close to
+   // real transcripts, where -silence- and a few function words dominate
+   @Param({ "0.0", "1.0" })
+   public double zipf;
+
+   private File text, binary, dot;
+   private Object lattice, pruned;
+   private double[] queryTimes;
+   private double[] scales;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      text = File.createTempFile("jmh", ".lat");
+      binary = File.createTempFile("jmh", ".latb");
+      dot = File.createTempFile("jmh", ".dot");
+      WRITE_SYNTHETIC.invokeExact((Object) text.getPath(), (Object) "jmh", numNodes, density, vocabulary, zipf, 1L);
+      lattice = (Object) NEW_LATTICE.invokeExact((Object) text.getPath());
+      SAVE_AS_BINARY.invokeExact(lattice, (Object) binary.getPath());
+      pruned = (Object) PRUNE.invokeExact(lattice, LM_SCALE, PRUNE_BEAM);
+      double[] hits = (double[]) (Object) SORTED_HIT_TIMES.invokeExact(lattice, (Object) QUERY_WORD);
+      queryTimes = new double[16];
+      for (int q = 0; q < queryTimes.length && hits.length > 0; q++) {
+         queryTimes[q] = hits[(int) ((long) q * hits.length / queryTimes.length)];
+      }
+      scales = new double[NUM_SCALES];
+      for (int s = 0; s < NUM_SCALES; s++) {
+         scales[s] = 1.0 + 0.25 * s;
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      text.delete();
+      binary.delete();
+      dot.delete();
+   }
+
+   @Benchmark
+   public Object parse() throws Throwable {
+      return (Object) NEW_LATTICE.invokeExact((Object) text.getPath());
+   }
+
+   @Benchmark
+   public Object openMapped() throws Throwable {
+      return (Object) OPEN_MAPPED.invokeExact((Object) binary.getPath());
+   }
+
+   @Benchmark
+   public Object decode() throws Throwable {
+      return (Object) DECODE.invokeExact(lattice, LM_SCALE);
+   }
+
+   // The old way to sweep lmScale: one decode per scale
+   @Benchmark
+   public void decodeLoop(Blackhole sink) throws Throwable {
+      for (double scale : scales) {
+         sink.consume((Object) DECODE.invokeExact(lattice, scale));
+      }
+   }
+
+   @Benchmark
+   public Object decodeSweep() throws Throwable {
+      return (Object) DECODE_SWEEP.invokeExact(lattice, (Object) scales);
+   }
+
+   // Sorts from scratch each time; topologicalSort would return the cached order
+   @Benchmark
+   public Object topologicalSort() throws Throwable {
+      return (Object) KAHN_SORT.invokeExact(lattice);
+   }
+
+   @Benchmark
+   public Object countAllPaths() throws Throwable {
+      return (Object) COUNT_ALL_PATHS.invokeExact(lattice);
+   }
+
+   // The old way to count paths: a BigInteger for every node
+   @Benchmark
+   public Object countAllPathsExact() throws Throwable {
+      return (Object) COUNT_ALL_PATHS_EXACT.invokeExact(lattice);
+   }
+
+   @Benchmark
+   public double countAllPathsLog() throws Throwable {
+      return (double) COUNT_ALL_PATHS_LOG.invokeExact(lattice);
+   }
+
+   @Benchmark
+   public long countAllPathsMod() throws Throwable {
+      return (long) COUNT_ALL_PATHS_MOD.invokeExact(lattice, MODULUS);
+   }
+
+   @Benchmark
+   public Object prune() throws Throwable {
+      return (Object) PRUNE.invokeExact(lattice, LM_SCALE, PRUNE_BEAM);
+   }
+
+   // Compare with decode to see what pruning saves
+   @Benchmark
+   public Object decodePruned() throws Throwable {
+      return (Object) DECODE.invokeExact(pruned, LM_SCALE);
+   }
+
+   @Benchmark
+   public void uniqueWordsAtTime(Blackhole sink) throws Throwable {
+      for (double time : queryTimes) {
+         sink.consume((Object) UNIQUE_WORDS_AT_TIME.invokeExact(lattice, time));
+      }
+   }
+
+   @Benchmark
+   public Object sortedHitTimes() throws Throwable {
+      return (Object) SORTED_HIT_TIMES.invokeExact(lattice, (Object) QUERY_WORD);
+   }
+
+   // Prints to a null stream; see NullOut
+   @Benchmark
+   public void printSortedHits(NullOut out) throws Throwable {
+      PRINT_SORTED_HITS.invokeExact(lattice, (Object) QUERY_WORD);
+   }
+
+   @Benchmark
+   public Object toText() throws Throwable {
+      return (Object) TO_STRING.invokeExact(lattice);
+   }
+
+   @Benchmark
+   public void writeAsDot() throws Throwable {
+      WRITE_AS_DOT.invokeExact(lattice, (Object) dot.getPath());
+   }
+
+   @Benchmark
+   public Object edgePosteriors() throws Throwable {
+      return (Object) EDGE_POSTERIORS.invokeExact(lattice, LM_SCALE, 1.0);
+   }
+
+   // NullOut
+   // Points System.out at a stream that discards everything for each
+   // iteration of a benchmark that prints, so the printing is measured but
+   // the output goes nowhere
+   @State(Scope.Thread)
+   public static class NullOut {
+      private PrintStream stdout;
+
+      @Setup(Level.Iteration)
+      public void discard() {
+         stdout = System.out;
+         System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+      }
+
+      @TearDown(Level.Iteration)
+      public void restore() {
+         System.setOut(stdout);
+      }
+   }
+}
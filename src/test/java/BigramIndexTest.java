@@ -0,0 +1,122 @@
+/*
+* BigramIndexTest.java
+*
+* Checks that a BigramIndex, updated merge by merge, always holds the
+* corpus and the counts, and finds the new words, that resegmenting and
+* recounting from scratch with Wordifier would give
+*
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+
+public class BigramIndexTest {
+   private static final int COUNT_THRESHOLD = 2;
+   private static final double PROBABILITY_THRESHOLD = 0.05;
+
+   // corpus
+   // Returns a corpus of numWords words of WordifierTest.characters text
+   static Corpus corpus(int numWords, long seed) {
+      return Corpus.fromList(Arrays.asList(WordifierTest.characters(numWords, seed).trim().split("\\s+")),
+                             new SymbolTable());
+   }
+
+   // recount
+   // Returns the counts of data, made from scratch
+   static BigramCounts recount(Corpus data) {
+      BigramCounts counts = new BigramCounts(data.getSymbols());
+      Wordifier.computeCounts(data, counts);
+      return counts;
+   }
+
+   // newWords
+   // Returns the new words Wordifier finds in data, counted from scratch
+   static HashSet<String> newWords(Corpus data, int countThreshold, double probabilityThreshold) {
+      BigramCounts counts = recount(data);
+      double[] bigramProbs = new double[counts.size()];
+      double[] unigramProbs = new double[data.getSymbols().size()];
+      Wordifier.convertCountsToProbabilities(counts, bigramProbs, unigramProbs);
+      double[] scores = Wordifier.getScores(counts, bigramProbs, unigramProbs);
+      return Wordifier.findNewWords(counts, scores, countThreshold, probabilityThreshold);
+   }
+
+   // assertMatchesRecount
+   // Checks every count in index against a recount of data
+   static void assertMatchesRecount(Corpus data, BigramIndex index) {
+      BigramCounts counts = recount(data);
+      assertEquals(data.size(), index.numTokens());
+      assertEquals(counts.getTotal(), index.getTotal());
+      int numWords = data.getSymbols().size();
+      for (int first = 0; first < numWords; first++) {
+         assertEquals(counts.unigramCount(first), index.unigramCount(first));
+         for (int second = 0; second < numWords; second++) {
+            assertEquals(counts.getCount(first, second), index.getCount(first, second));
+         }
+      }
+   }
+
+   @Test
+   public void countsStayEqualToARecountAfterEveryRound() {
+      Corpus data = corpus(3000, 11);
+      BigramIndex index = new BigramIndex(data);
+      assertMatchesRecount(data, index);
+
+      data = data.copy();
+      int round = 0;
+      for (; round < 8; round++) {
+         HashSet<String> newWords = newWords(data, COUNT_THRESHOLD, PROBABILITY_THRESHOLD);
+         if (newWords.isEmpty())
+            break;
+         int before = data.size();
+         Wordifier.resegmentInPlace(data, Wordifier.mergeTable(recount(data), newWords));
+
+         assertEquals(before - data.size(), index.merge(newWords));
+         assertEquals(data.toList(), index.toCorpus().toList());
+         assertMatchesRecount(data, index);
+      }
+      assertTrue(round >= 3);
+   }
+
+   @Test
+   public void heapFindsTheSameNewWordsAsWordifier() {
+      Corpus data = corpus(3000, 12);
+      BigramIndex index = new BigramIndex(data);
+      data = data.copy();
+      double[] probabilityThresholds = { 0.0, 0.02, 0.05, 0.1, 0.3, 1.0 };
+      for (int round = 0; round < 6; round++) {
+         // The same count threshold as the last call of the round before,
+         // so the heap is updated rather than rebuilt
+         for (double probabilityThreshold : probabilityThresholds) {
+            assertEquals(newWords(data, COUNT_THRESHOLD, probabilityThreshold),
+                         index.findNewWords(COUNT_THRESHOLD, probabilityThreshold));
+         }
+         for (int countThreshold : new int[] { 0, 1, 5, 20 }) {
+            for (double probabilityThreshold : probabilityThresholds) {
+               assertEquals(newWords(data, countThreshold, probabilityThreshold),
+                            index.findNewWords(countThreshold, probabilityThreshold));
+            }
+         }
+         HashSet<String> newWords = index.findNewWords(COUNT_THRESHOLD, PROBABILITY_THRESHOLD);
+         assertEquals(newWords(data, COUNT_THRESHOLD, PROBABILITY_THRESHOLD), newWords);
+         if (newWords.isEmpty())
+            break;
+         Wordifier.resegmentInPlace(data, Wordifier.mergeTable(recount(data), newWords));
+         index.merge(newWords);
+      }
+   }
+
+   @Test
+   public void mergesOverlappingPairsLeftToRight() {
+      Corpus data = Corpus.fromList(Arrays.asList("a", "a", "a", "b", "a", "a"), new SymbolTable());
+      BigramIndex index = new BigramIndex(data);
+
+      assertEquals(3, index.merge(new HashSet<String>(Arrays.asList("aa", "ab"))));
+      assertEquals(Arrays.asList("aa", "ab", "aa"), index.toCorpus().toList());
+      assertEquals(0, index.merge(new HashSet<String>(Arrays.asList("zz"))));
+      assertMatchesRecount(index.toCorpus(), index);
+   }
+}
@@ -0,0 +1,102 @@
+/*
+* ByteScannerTest.java
+*
+* Checks that ByteScanner splits and parses tokens exactly as the
+* java.util.Scanner / String.split, Integer.parseInt and Double.parseDouble
+* code it replaced did, whatever the size of its mapped window
+*
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ByteScannerTest {
+   @TempDir
+   Path temp;
+
+   private String write(String text) throws IOException {
+      Path file = temp.resolve("tokens.txt");
+      Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+      return file.toString();
+   }
+
+   private static List<String> tokens(String filename, int windowSize) throws IOException {
+      List<String> tokens = new ArrayList<String>();
+      ByteScanner input = new ByteScanner(filename, windowSize);
+      try {
+         while (input.next()) {
+            tokens.add(input.tokenString());
+         }
+      } finally {
+         input.close();
+      }
+      return tokens;
+   }
+
+   @Test
+   public void splitsOnWhitespaceAcrossWindows() throws IOException {
+      String text = "  id utt1\n\tnode 0 0.00\r\nedge 0 1 café -12 7\u001f日本  \n\n";
+      String filename = write(text);
+      List<String> expected = new ArrayList<String>(Arrays.asList(text.trim().split("[\\s\u001c-\u001f]+")));
+      for (int windowSize : new int[] { 1, 2, 3, 7, 64, 1 << 20 }) {
+         assertEquals(expected, tokens(filename, windowSize), "window " + windowSize);
+      }
+   }
+
+   @Test
+   public void emptyAndBlankFilesHaveNoTokens() throws IOException {
+      assertEquals(new ArrayList<String>(), tokens(write(""), 4));
+      assertEquals(new ArrayList<String>(), tokens(write(" \n\t "), 4));
+   }
+
+   @Test
+   public void parsesNumbersAsTheJdkDoes() throws IOException {
+      String[] ints = { "0", "-0", "+5", "42", "-2147483648", "2147483647" };
+      String[] doubles = { "0.00", "12.34", "-0.5", "+3", "1e3", "0.1", "123456789012345678.5", ".5", "7." };
+      ByteScanner input = new ByteScanner(write(String.join(" ", ints) + " " + String.join(" ", doubles)), 5);
+      try {
+         for (String value : ints) {
+            assertTrue(input.next());
+            assertEquals(Integer.parseInt(value), input.tokenAsInt(), value);
+         }
+         for (String value : doubles) {
+            assertTrue(input.next());
+            assertEquals(Double.parseDouble(value), input.tokenAsDouble(), 0.0, value);
+         }
+         assertFalse(input.next());
+      } finally {
+         input.close();
+      }
+   }
+
+   @Test
+   public void rejectsWhatParseIntRejects() throws IOException {
+      for (String value : new String[] { "abc", "-", "2147483648", "-2147483649", "1.5" }) {
+         ByteScanner input = new ByteScanner(write(value), 8);
+         try {
+            assertTrue(input.next());
+            assertThrows(NumberFormatException.class, input::tokenAsInt, value);
+         } finally {
+            input.close();
+         }
+      }
+   }
+
+   @Test
+   public void failsToOpenWithoutLeavingAScanner() throws IOException {
+      String filename = write("a b");
+      assertThrows(IllegalArgumentException.class, () -> new ByteScanner(filename, 0));
+      assertThrows(FileNotFoundException.class, () -> new ByteScanner(temp.resolve("missing").toString()));
+   }
+}
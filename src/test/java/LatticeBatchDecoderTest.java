@@ -0,0 +1,77 @@
+/*
+* LatticeBatchDecoderTest.java
+*
+* Checks that LatticeBatchDecoder gives the same results as decoding each
+* lattice on its own, in utterance-ID order, whatever order the files finish
+*
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LatticeBatchDecoderTest {
+   private static final double LM_SCALE = 10.0;
+
+   @TempDir
+   Path temp;
+
+   @Test
+   public void decodesEveryLatticeInUtteranceOrder() throws Exception {
+      List<String> filenames = new ArrayList<String>();
+      StringBuilder expected = new StringBuilder();
+      // Written in reverse so the file order is not the utterance order
+      for (int i = 7; i >= 0; i--) {
+         String filename = temp.resolve("lattice" + i + ".lat").toString();
+         LatticeBenchmark.writeSynthetic(filename, "utt" + i, 100 + 50 * i, 3, 40, 1.0, i);
+         filenames.add(filename);
+      }
+      for (int i = 0; i <= 7; i++) {
+         Lattice lattice = new Lattice(filenames.get(7 - i));
+         expected.append("utt" + i + " " + lattice.decode(LM_SCALE) + System.lineSeparator());
+      }
+      Path bad = temp.resolve("bad.lat");
+      Files.write(bad, "id broken\nstart 0\n".getBytes(StandardCharsets.UTF_8));
+      filenames.add(3, bad.toString());
+
+      LatticeBatchDecoder decoder = new LatticeBatchDecoder(LM_SCALE, 3, 2);
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      PrintStream stderr = System.err;
+      System.setErr(new PrintStream(new ByteArrayOutputStream()));
+      LatticeBatchDecoder.Stats stats;
+      try {
+         stats = decoder.decodeAll(filenames, new PrintStream(output, true));
+      } finally {
+         System.setErr(stderr);
+         decoder.shutdown();
+      }
+      assertEquals(expected.toString(), output.toString());
+      assertEquals(8, stats.lattices);
+      assertEquals(1, stats.failures);
+   }
+
+   @Test
+   public void listsDirectoriesInNameOrder() throws Exception {
+      Path dir = Files.createDirectory(temp.resolve("lattices"));
+      Files.write(dir.resolve("b.lat"), new byte[0]);
+      Files.write(dir.resolve("a.lat"), new byte[0]);
+      Path list = temp.resolve("list.txt");
+      Files.write(list, ("x.lat\n\n  y.lat  \n").getBytes(StandardCharsets.UTF_8));
+      List<String> expected = new ArrayList<String>();
+      expected.add(dir.resolve("a.lat").toString());
+      expected.add(dir.resolve("b.lat").toString());
+      expected.add("x.lat");
+      expected.add("y.lat");
+      expected.add("z.lat");
+      assertEquals(expected, LatticeBatchDecoder.listInputs(new String[] { dir.toString(), "@" + list, "z.lat" }));
+   }
+}
@@ -0,0 +1,92 @@
+/*
+* LatticeMetricsTest.java
+*
+* Checks that LatticeMetrics counts each instrumented phase, passes it to
+* the listeners with the lattice's ID and size, and records nothing while
+* it is off. The metrics are process-wide, so every test leaves them off,
+* empty and with no listeners
+*
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class LatticeMetricsTest {
+   private static final double LM_SCALE = 10.0;
+
+   private final LatticeMetrics metrics = LatticeMetrics.get();
+   private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+   private final LatticeListener listener = new LatticeListener() {
+      public void phaseCompleted(LatticeMetrics.Phase phase, String utteranceID, long nanos,
+                                 int numNodes, int numEdges) {
+         assertTrue(nanos >= 0);
+         events.add(phase + " " + utteranceID + " " + numNodes + " " + numEdges);
+      }
+   };
+
+   @BeforeEach
+   public void setUp() {
+      metrics.setEnabled(false);
+      metrics.reset();
+      LatticeMetrics.addListener(listener);
+   }
+
+   @AfterEach
+   public void tearDown() {
+      LatticeMetrics.removeListener(listener);
+      metrics.setEnabled(false);
+      metrics.reset();
+   }
+
+   @Test
+   public void countsPhasesAndCallsListeners() throws Exception {
+      metrics.setEnabled(true);
+      Lattice lattice = new Lattice(LatticeTest.resource("sample.lat"));
+      lattice.decode(LM_SCALE);
+      lattice.decode(LM_SCALE);
+
+      assertEquals(1, metrics.getCount(LatticeMetrics.Phase.PARSE));
+      assertEquals(2, metrics.getCount(LatticeMetrics.Phase.DECODE));
+      assertEquals(2, metrics.getDecodeCount());
+      assertEquals(12, metrics.getNodesProcessed("DECODE"));
+      assertEquals(18, metrics.getEdgesProcessed("DECODE"));
+      assertEquals("sample", metrics.getSlowestUtterance("DECODE"));
+      assertTrue(metrics.getMeanMicros(LatticeMetrics.Phase.DECODE) > 0);
+      assertTrue(metrics.getPercentileMicros(LatticeMetrics.Phase.DECODE, 99)
+                 <= metrics.getMaxMicros("DECODE"));
+      assertEquals(0, metrics.getCount(LatticeMetrics.Phase.RESCORE));
+
+      assertEquals(1, Collections.frequency(events, "PARSE sample 6 9"));
+      assertEquals(2, Collections.frequency(events, "DECODE sample 6 9"));
+   }
+
+   @Test
+   public void recordsNothingWhenDisabled() throws Exception {
+      Lattice lattice = new Lattice(LatticeTest.resource("sample.lat"));
+      lattice.decode(LM_SCALE);
+
+      for (LatticeMetrics.Phase phase : LatticeMetrics.Phase.values()) {
+         assertEquals(0, metrics.getCount(phase));
+         assertEquals(0, metrics.getMeanMicros(phase));
+      }
+      assertEquals("", metrics.toString());
+      assertTrue(events.isEmpty());
+   }
+
+   @Test
+   public void removedListenerIsNotCalled() throws Exception {
+      LatticeMetrics.removeListener(listener);
+      metrics.setEnabled(true);
+      new Lattice(LatticeTest.resource("sample.lat")).decode(LM_SCALE);
+
+      assertEquals(1, metrics.getCount(LatticeMetrics.Phase.DECODE));
+      assertTrue(events.isEmpty());
+   }
+}
@@ -0,0 +1,560 @@
+/*
+* LatticeTest.java
+*
+* Checks Lattice against the hand-checked lattice in sample.lat and against
+* synthetic lattices from LatticeBenchmark.writeSynthetic
+*
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LatticeTest {
+   private static final double[] SCALES = { 0.0, 0.5, 1.0, 5.0, 20.0 };
+
+   @TempDir
+   Path temp;
+
+   // resource
+   // Returns the path of a file in src/test/resources
+   static String resource(String name) throws Exception {
+      return new File(LatticeTest.class.getResource("/" + name).toURI()).getPath();
+   }
+
+   // synthetic
+   // Writes a synthetic lattice (see LatticeBenchmark.writeSynthetic) under
+   // temp and returns its path
+   private String synthetic(int numNodes, double density, long seed) throws IOException {
+      String filename = temp.resolve("synthetic" + seed + ".lat").toString();
+      LatticeBenchmark.writeSynthetic(filename, "synthetic" + seed, numNodes, density, 50, 1.0, seed);
+      return filename;
+   }
+
+   private static void assertSameHypothesis(Hypothesis expected, Hypothesis actual) {
+      assertEquals(expected.toString(), actual.toString());
+      assertEquals(expected.getScore(), actual.getScore(), 1e-9);
+   }
+
+   @Test
+   public void decodeSweepMatchesDecodeAtEveryScale() throws Exception {
+      for (String filename : new String[] { resource("sample.lat"), synthetic(300, 3, 1), synthetic(300, 3, 2) }) {
+         Lattice lattice = new Lattice(filename);
+         Hypothesis[] sweep = lattice.decodeSweep(SCALES);
+         assertEquals(SCALES.length, sweep.length);
+         for (int s = 0; s < SCALES.length; s++) {
+            assertSameHypothesis(lattice.decode(SCALES[s]), sweep[s]);
+         }
+      }
+   }
+
+   // fibonacci
+   // Returns a lattice of numNodes nodes in which node i has edges to i+1
+   // and i+2, so it has F(numNodes) start-to-end paths (F(1) = F(2) = 1)
+   private static Lattice fibonacci(int numNodes) {
+      double[] times = new double[numNodes];
+      int[] sources = new int[2 * numNodes];
+      int[] targets = new int[2 * numNodes];
+      int[] words = new int[2 * numNodes];
+      int[] scores = new int[2 * numNodes];
+      int count = 0;
+      for (int i = 0; i < numNodes; i++) {
+         times[i] = i * 0.01;
+         for (int j = i + 1; j <= i + 2 && j < numNodes; j++) {
+            sources[count] = i;
+            targets[count] = j;
+            words[count] = SymbolTable.shared().id("w");
+            count++;
+         }
+      }
+      return new Lattice("fibonacci" + numNodes, 0, numNodes - 1, times, sources, targets, words,
+                         scores, scores, count);
+   }
+
+   @Test
+   public void countAllPathsMatchesBigIntegerCountAroundOverflow() {
+      // F(92) is the largest Fibonacci number below 2^63
+      assertEquals(BigInteger.valueOf(7540113804746346429L), fibonacci(92).countAllPaths());
+      assertEquals(new BigInteger("12200160415121876738"), fibonacci(93).countAllPaths());
+      BigInteger modulus = BigInteger.valueOf(1000000007L);
+      for (int numNodes = 88; numNodes <= 100; numNodes++) {
+         Lattice lattice = fibonacci(numNodes);
+         BigInteger exact = lattice.countAllPathsExact();
+         assertEquals(exact, lattice.countAllPaths(), "numNodes " + numNodes);
+         assertEquals(exact.mod(modulus).longValue(), lattice.countAllPathsMod(1000000007L));
+         assertEquals(Math.log(exact.doubleValue()), lattice.countAllPathsLog(), 1e-9);
+      }
+   }
+
+   @Test
+   public void countAllPathsMatchesBigIntegerCountOnSyntheticLattices() throws Exception {
+      for (long seed = 1; seed <= 3; seed++) {
+         Lattice lattice = new Lattice(synthetic(400, 4, seed));
+         assertEquals(lattice.countAllPathsExact(), lattice.countAllPaths());
+      }
+      Lattice sample = new Lattice(resource("sample.lat"));
+      assertEquals(BigInteger.valueOf(8), sample.countAllPaths());
+   }
+
+   @Test
+   public void binaryRoundTripKeepsTheLattice() throws Exception {
+      for (String filename : new String[] { resource("sample.lat"), synthetic(300, 3, 4) }) {
+         Lattice lattice = new Lattice(filename);
+         String binary = temp.resolve("round.latb").toString();
+         lattice.saveAsBinary(binary);
+         Lattice mapped = Lattice.openMapped(binary);
+         assertEquals(lattice.toString(), mapped.toString());
+         assertEquals(lattice.getNumEdges(), mapped.getNumEdges());
+         assertSameHypothesis(lattice.decode(10.0), mapped.decode(10.0));
+      }
+   }
+
+   // Bytes in a binary lattice's header (see the format notes in Lattice)
+   private static final int HEADER_BYTES = 48;
+
+   // corruptBinary
+   // Saves sample.lat as a binary lattice, lets change rewrite its bytes and
+   // returns the path of the result
+   private String corruptBinary(java.util.function.Consumer<ByteBuffer> change) throws Exception {
+      String binary = temp.resolve("corrupt.latb").toString();
+      new Lattice(resource("sample.lat")).saveAsBinary(binary);
+      ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(temp.resolve("corrupt.latb")))
+                                   .order(ByteOrder.LITTLE_ENDIAN);
+      change.accept(bytes);
+      Files.write(temp.resolve("corrupt.latb"), bytes.array());
+      return binary;
+   }
+
+   // Returns the byte position of row offset i in a binary lattice
+   private static int offsetPosition(ByteBuffer bytes, int i) {
+      int numNodes = bytes.getInt(8);
+      int numWords = bytes.getInt(32);
+      int times = HEADER_BYTES + 4 * numWords + bytes.getInt(36) + bytes.getInt(40);
+      times = (times + 7) & ~7;
+      return times + 8 * numNodes + 4 * i;
+   }
+
+   // Returns the byte position of edge k's target, or with section 1 its label
+   private static int edgePosition(ByteBuffer bytes, int section, int k) {
+      int numNodes = bytes.getInt(8);
+      int edges = bytes.getInt(16);
+      return offsetPosition(bytes, numNodes + 1) + 4 * (section * edges + k);
+   }
+
+   private static void assertRejected(String binary) {
+      assertThrows(IllegalArgumentException.class, () -> Lattice.openMapped(binary));
+   }
+
+   @Test
+   public void openMappedRejectsOffsetsThatGoBackwards() throws Exception {
+      assertRejected(corruptBinary(bytes -> {
+         int position = offsetPosition(bytes, 2);
+         bytes.putInt(position, bytes.getInt(offsetPosition(bytes, 1)) - 1);
+      }));
+   }
+
+   @Test
+   public void openMappedRejectsOffsetsOutOfRange() throws Exception {
+      assertRejected(corruptBinary(bytes -> bytes.putInt(offsetPosition(bytes, 3), 1000)));
+      assertRejected(corruptBinary(bytes -> bytes.putInt(offsetPosition(bytes, 0), 1)));
+   }
+
+   @Test
+   public void openMappedRejectsEdgeTargetsOutOfRange() throws Exception {
+      assertRejected(corruptBinary(bytes -> bytes.putInt(edgePosition(bytes, 0, 2), bytes.getInt(8))));
+      assertRejected(corruptBinary(bytes -> bytes.putInt(edgePosition(bytes, 0, 0), -1)));
+   }
+
+   @Test
+   public void openMappedRejectsLabelsOutOfRange() throws Exception {
+      assertRejected(corruptBinary(bytes -> bytes.putInt(edgePosition(bytes, 1, 4), bytes.getInt(32))));
+   }
+
+   @Test
+   public void openMappedRejectsBadLabelLengths() throws Exception {
+      assertRejected(corruptBinary(bytes -> bytes.putInt(HEADER_BYTES, bytes.getInt(40) + 1)));
+   }
+
+   @Test
+   public void openMappedRejectsTruncatedFiles() throws Exception {
+      String binary = corruptBinary(bytes -> { });
+      byte[] whole = Files.readAllBytes(temp.resolve("corrupt.latb"));
+      Files.write(temp.resolve("corrupt.latb"), java.util.Arrays.copyOf(whole, whole.length - 4));
+      assertRejected(binary);
+   }
+
+   // formattedText
+   // Returns the lattice file at filename with each node time rewritten by
+   // String.format("%.2f") in the default locale, which is what toString
+   // wrote before it was streamed
+   private static String formattedText(String filename) throws IOException {
+      StringBuilder text = new StringBuilder();
+      for (String line : Files.readAllLines(new File(filename).toPath(), StandardCharsets.UTF_8)) {
+         String[] fields = line.split(" ");
+         if (fields[0].equals("node"))
+            line = "node " + fields[1] + " " + String.format("%.2f", Double.parseDouble(fields[2]));
+         text.append(line).append('\n');
+      }
+      return text.toString();
+   }
+
+   @Test
+   public void textOutputMatchesStringFormatInEveryLocale() throws Exception {
+      Locale saved = Locale.getDefault();
+      Locale[] locales = { Locale.ROOT, Locale.US, Locale.GERMANY, Locale.FRANCE, Locale.forLanguageTag("ar-EG") };
+      try {
+         for (String filename : new String[] { resource("sample.lat"), synthetic(200, 2, 5) }) {
+            for (Locale locale : locales) {
+               Locale.setDefault(locale);
+               Lattice lattice = new Lattice(filename);
+               String expected = formattedText(filename);
+               assertEquals(expected, lattice.toString(), locale.toString());
+               
+               String savedFile = temp.resolve("saved.lat").toString();
+               lattice.saveAsFile(savedFile);
+               // Byte for byte what PrintStream.println(toString()) wrote, with
+               // anything the default charset cannot encode replaced
+               assertArrayEquals((expected + System.lineSeparator()).getBytes(Charset.defaultCharset()),
+                                 Files.readAllBytes(temp.resolve("saved.lat")), locale.toString());
+            }
+         }
+      } finally {
+         Locale.setDefault(saved);
+      }
+   }
+
+   @Test
+   public void savedFileReadsBackAsTheSameLattice() throws Exception {
+      Lattice lattice = new Lattice(synthetic(300, 3, 6));
+      String saved = temp.resolve("saved.lat").toString();
+      lattice.saveAsFile(saved);
+      assertEquals(lattice.toString(), new Lattice(saved).toString());
+      assertEquals(new String(Files.readAllBytes(new File(resource("sample.lat")).toPath()), StandardCharsets.UTF_8),
+                   new Lattice(resource("sample.lat")).toString());
+   }
+
+   // printedHits
+   // Returns what printSortedHits(word) prints
+   private static String printedHits(Lattice lattice, String word) {
+      PrintStream stdout = System.out;
+      ByteArrayOutputStream printed = new ByteArrayOutputStream();
+      System.setOut(new PrintStream(printed, true));
+      try {
+         lattice.printSortedHits(word);
+      } finally {
+         System.setOut(stdout);
+      }
+      return printed.toString();
+   }
+
+   @Test
+   public void printSortedHitsSortsTheFormattedTimes() throws Exception {
+      Lattice lattice = new Lattice(resource("sample.lat"));
+      // Midpoints 4, 6 and 14: sorted as text, as the original did
+      assertEquals(String.format("%.2f %.2f %.2f ", 14.0, 4.0, 6.0), printedHits(lattice, "the"));
+      assertEquals(String.format("%.2f %.2f ", 18.0, 2.0), printedHits(lattice, "-silence-"));
+      assertEquals("", printedHits(lattice, "dog"));
+      assertArrayEquals(new double[] { 4.0, 6.0, 14.0 }, lattice.sortedHitTimes("the"));
+   }
+
+   @Test
+   public void uniqueWordsAtTimeFindsEveryOverlappingEdge() throws Exception {
+      Lattice lattice = new Lattice(resource("sample.lat"));
+      assertEquals(new java.util.HashSet<String>(Arrays.asList("-silence-", "the", "a")),
+                   lattice.uniqueWordsAtTime(4.0));
+      assertEquals(new java.util.HashSet<String>(Arrays.asList("a", "cat", "cab")),
+                   lattice.uniqueWordsAtTime(10.0));
+      assertTrue(lattice.uniqueWordsAtTime(25.0).isEmpty());
+   }
+
+   @Test
+   public void edgesAreKeptInTargetOrderWithTheLastDuplicateWinning() throws Exception {
+      Path file = temp.resolve("duplicates.lat");
+      Files.write(file, ("id dup\nstart 0\nend 2\nnumNodes 3\nnumEdges 4\n"
+                         + "node 0 0.00\nnode 1 0.50\nnode 2 1.00\n"
+                         + "edge 0 2 far 10 1\nedge 1 2 b 5 2\nedge 0 1 a 3 4\nedge 0 2 near 7 8\n")
+                        .getBytes(StandardCharsets.UTF_8));
+      Lattice lattice = new Lattice(file.toString());
+      assertEquals(3, lattice.getNumNodes());
+      assertEquals("id dup\nstart 0\nend 2\nnumNodes 3\nnumEdges 4\n"
+                   + String.format("node 0 %.2f\nnode 1 %.2f\nnode 2 %.2f\n", 0.0, 0.5, 1.0)
+                   + "edge 0 1 a 3 4\nedge 0 2 near 7 8\nedge 1 2 b 5 2\n", lattice.toString());
+   }
+
+   @Test
+   public void parseRejectsBadLattices() throws Exception {
+      String header = "id bad\nstart 0\nend 1\nnumNodes 2\nnumEdges 1\nnode 0 0.00\nnode 1 1.00\n";
+      String[] bodies = { "edge 0 2 a 1 1\n", "edge 0 1 a x 1\n", "edge 0 1 a 1\n", "vertex 0 1 a 1 1\n" };
+      for (String body : bodies) {
+         Path file = temp.resolve("bad.lat");
+         Files.write(file, (header + body).getBytes(StandardCharsets.UTF_8));
+         assertThrows(IllegalArgumentException.class, () -> new Lattice(file.toString()), body);
+      }
+      assertThrows(java.io.UncheckedIOException.class, () -> new Lattice(temp.resolve("missing.lat").toString()));
+   }
+
+   @Test
+   public void decodeFindsTheCheapestPath() throws Exception {
+      Lattice lattice = new Lattice(resource("sample.lat"));
+      // Worked out by hand: at lmScale 1 "cab" is cheapest, at 20 its lmScore
+      // makes "a sat" win
+      Hypothesis low = lattice.decode(1.0);
+      assertEquals("-silence- the cab -silence-", low.toString());
+      assertEquals(655.0, low.getScore(), 1e-9);
+      Hypothesis high = lattice.decode(20.0);
+      assertEquals("-silence- a sat", high.toString());
+      assertEquals(1300.0, high.getScore(), 1e-9);
+   }
+
+   @Test
+   public void decodeReturnsAnEmptyHypothesisWhenTheEndIsUnreachable() {
+      int word = SymbolTable.shared().id("w");
+      Lattice lattice = new Lattice("split", 0, 2, new double[] { 0, 1, 2 }, new int[] { 0 }, new int[] { 1 },
+                                    new int[] { word }, new int[] { 1 }, new int[] { 1 }, 1);
+      assertEquals("", lattice.decode(1.0).toString());
+      assertEquals(BigInteger.ZERO, lattice.countAllPaths());
+   }
+
+   @Test
+   public void topologicalSortPutsEveryEdgeForward() throws Exception {
+      for (String filename : new String[] { resource("sample.lat"), synthetic(300, 3, 7) }) {
+         Lattice lattice = new Lattice(filename);
+         int[] order = lattice.topologicalSort();
+         int[] position = new int[order.length];
+         for (int i = 0; i < order.length; i++) {
+            position[order[i]] = i;
+         }
+         String[] lines = lattice.toString().split("\n");
+         for (String line : lines) {
+            String[] fields = line.split(" ");
+            if (fields[0].equals("edge"))
+               assertTrue(position[Integer.parseInt(fields[1])] < position[Integer.parseInt(fields[2])], line);
+         }
+         assertArrayEquals(order, lattice.kahnSort());
+         order[0] = -1;
+         assertNotEquals(-1, lattice.topologicalSort()[0], "the cached order must not be handed out");
+      }
+   }
+
+   // allPathScores
+   // Returns the score under lmScale of every start-to-end path of lattice,
+   // in ascending order, found by brute force from its text form
+   private static double[] allPathScores(Lattice lattice, double lmScale) {
+      String[] lines = lattice.toString().split("\n");
+      int start = Integer.parseInt(lines[1].split(" ")[1]);
+      int end = Integer.parseInt(lines[2].split(" ")[1]);
+      List<double[]> edges = new ArrayList<double[]>();
+      for (String line : lines) {
+         String[] fields = line.split(" ");
+         if (fields[0].equals("edge"))
+            edges.add(new double[] { Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                                     Double.parseDouble(fields[4]) + lmScale * Double.parseDouble(fields[5]) });
+      }
+      List<Double> scores = new ArrayList<Double>();
+      collectPaths(edges, start, end, 0, scores);
+      double[] answer = new double[scores.size()];
+      for (int i = 0; i < answer.length; i++) {
+         answer[i] = scores.get(i);
+      }
+      Arrays.sort(answer);
+      return answer;
+   }
+
+   private static void collectPaths(List<double[]> edges, int node, int end, double cost, List<Double> scores) {
+      if (node == end) {
+         scores.add(cost);
+         return;
+      }
+      for (double[] edge : edges) {
+         if ((int) edge[0] == node)
+            collectPaths(edges, (int) edge[1], end, cost + edge[2], scores);
+      }
+   }
+
+   @Test
+   public void nBestYieldsEveryPathInScoreOrder() throws Exception {
+      for (String filename : new String[] { resource("sample.lat"), synthetic(20, 1.6, 8) }) {
+         Lattice lattice = new Lattice(filename);
+         double[] expected = allPathScores(lattice, 2.0);
+         List<Double> actual = new ArrayList<Double>();
+         Iterator<Hypothesis> paths = lattice.nBest(expected.length + 5, 2.0);
+         while (paths.hasNext()) {
+            actual.add(paths.next().getScore());
+         }
+         assertEquals(expected.length, actual.size());
+         for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual.get(i), 1e-9);
+         }
+         assertEquals(lattice.decode(2.0).getScore(), actual.get(0), 1e-9);
+      }
+   }
+
+   @Test
+   public void nBestStopsAtN() throws Exception {
+      Iterator<Hypothesis> paths = new Lattice(resource("sample.lat")).nBest(3, 1.0);
+      for (int i = 0; i < 3; i++) {
+         assertTrue(paths.hasNext());
+         paths.next();
+      }
+      assertFalse(paths.hasNext());
+      assertThrows(java.util.NoSuchElementException.class, paths::next);
+   }
+
+   // bruteForcePosteriors
+   // Returns the posterior of each edge of lattice (in toString order) by
+   // summing exp(-acousticScale * score) over every path through it
+   private static double[] bruteForcePosteriors(Lattice lattice, double lmScale, double acousticScale) {
+      String[] lines = lattice.toString().split("\n");
+      int start = Integer.parseInt(lines[1].split(" ")[1]);
+      int end = Integer.parseInt(lines[2].split(" ")[1]);
+      List<double[]> edges = new ArrayList<double[]>();
+      for (String line : lines) {
+         String[] fields = line.split(" ");
+         if (fields[0].equals("edge"))
+            edges.add(new double[] { Double.parseDouble(fields[1]), Double.parseDouble(fields[2]),
+                                     Double.parseDouble(fields[4]) + lmScale * Double.parseDouble(fields[5]) });
+      }
+      double[] through = new double[edges.size()];
+      double total = sumPaths(edges, start, end, 0, new ArrayList<Integer>(), through, acousticScale);
+      for (int k = 0; k < through.length; k++) {
+         through[k] /= total;
+      }
+      return through;
+   }
+
+   private static double sumPaths(List<double[]> edges, int node, int end, double cost, List<Integer> path,
+                                  double[] through, double acousticScale) {
+      if (node == end) {
+         double weight = Math.exp(-acousticScale * cost);
+         for (int k : path) {
+            through[k] += weight;
+         }
+         return weight;
+      }
+      double total = 0;
+      for (int k = 0; k < edges.size(); k++) {
+         if ((int) edges.get(k)[0] == node) {
+            path.add(k);
+            total += sumPaths(edges, (int) edges.get(k)[1], end, cost + edges.get(k)[2], path, through, acousticScale);
+            path.remove(path.size() - 1);
+         }
+      }
+      return total;
+   }
+
+   @Test
+   public void edgePosteriorsMatchBruteForce() throws Exception {
+      for (String filename : new String[] { resource("sample.lat"), synthetic(20, 1.6, 9) }) {
+         Lattice lattice = new Lattice(filename);
+         double[] expected = bruteForcePosteriors(lattice, 1.0, 0.01);
+         assertArrayEquals(expected, lattice.edgePosteriors(1.0, 0.01), 1e-9);
+      }
+   }
+
+   @Test
+   public void confusionNetworkFollowsTheBestPath() throws Exception {
+      Lattice lattice = new Lattice(resource("sample.lat"));
+      ConfusionNetwork network = lattice.confusionNetwork(1.0, 0.01);
+      double[] boundaries = { 0, 4, 8, 16, 20 };      // Nodes 0 1 2 4 5 of the decode(1.0) path
+      assertEquals(boundaries.length - 1, network.getNumSlots());
+      for (int t = 0; t < network.getNumSlots(); t++) {
+         assertEquals(boundaries[t], network.getStartTime(t));
+         assertEquals(boundaries[t + 1], network.getEndTime(t));
+         double[] posteriors = network.getPosteriors(t);
+         double sum = 0;
+         for (int j = 0; j < posteriors.length; j++) {
+            sum += posteriors[j];
+            if (j > 0)
+               assertTrue(posteriors[j - 1] >= posteriors[j]);
+         }
+         assertEquals(1.0, sum, 1e-6);
+      }
+      assertEquals("cab", network.getWords(2)[0]);
+   }
+
+   @Test
+   public void pruneBeamKeepsThePathsWithinTheBeam() throws Exception {
+      Lattice lattice = new Lattice(resource("sample.lat"));
+      Lattice best = lattice.pruneBeam(1.0, 0);
+      assertArrayEquals(new double[] { 655.0 }, allPathScores(best, 1.0), 1e-9);
+      assertSameHypothesis(lattice.decode(1.0), best.decode(1.0));
+      
+      double[] all = allPathScores(lattice, 1.0);
+      double[] withinBeam = allPathScores(lattice.pruneBeam(1.0, 100), 1.0);
+      int expected = 0;
+      for (double score : all) {
+         if (score <= all[0] + 100)
+            expected++;
+      }
+      // Every path within the beam survives; a path outside it may too, if
+      // each of its edges is on some path within the beam
+      assertTrue(withinBeam.length >= expected && withinBeam.length <= all.length);
+      assertArrayEquals(Arrays.copyOf(all, expected), Arrays.copyOf(withinBeam, expected), 1e-9);
+      assertArrayEquals(all, allPathScores(lattice.pruneBeam(1.0, Double.POSITIVE_INFINITY), 1.0), 1e-9);
+   }
+
+   @Test
+   public void removeSilenceKeepsTheBestScore() throws Exception {
+      Lattice lattice = new Lattice(resource("sample.lat"));
+      Hypothesis withoutSilence = lattice.removeSilence(1.0).decode(1.0);
+      // Silence into the end node is kept, the rest is folded into its neighbours
+      assertEquals("the cab -silence-", withoutSilence.toString());
+      assertEquals(655.0, withoutSilence.getScore(), 1e-9);
+   }
+
+   @Test
+   public void minimizeKeepsEveryPath() throws Exception {
+      for (long seed = 10; seed <= 12; seed++) {
+         Lattice lattice = new Lattice(synthetic(18, 1.8, seed));
+         Lattice smaller = lattice.minimize();
+         assertTrue(smaller.getNumNodes() <= lattice.getNumNodes());
+         assertArrayEquals(allPathScores(lattice, 3.0), allPathScores(smaller, 3.0), 1e-9);
+      }
+   }
+
+   @Test
+   public void pruneKeepsTheDecodeScore() throws Exception {
+      for (long seed = 13; seed <= 15; seed++) {
+         Lattice lattice = new Lattice(synthetic(400, 4, seed));
+         Lattice pruned = lattice.prune(10.0, 2000);
+         assertTrue(pruned.getNumEdges() <= lattice.getNumEdges());
+         assertEquals(lattice.decode(10.0).getScore(), pruned.decode(10.0).getScore(), 1e-6);
+      }
+   }
+
+   @Test
+   public void idQueriesMatchTheWordQueries() throws Exception {
+      Lattice lattice = new Lattice(synthetic(300, 3, 16));
+      SymbolTable symbols = SymbolTable.shared();
+      for (double time = 0; time < 3.1; time += 0.137) {
+         java.util.HashSet<String> words = new java.util.HashSet<String>();
+         for (int id : lattice.uniqueWordIdsAtTime(time)) {
+            assertTrue(words.add(symbols.word(id)), "ids must be distinct");
+         }
+         assertEquals(lattice.uniqueWordsAtTime(time), words);
+      }
+      for (String word : new String[] { "-silence-", "w1", "w7" }) {
+         assertArrayEquals(lattice.sortedHitTimes(word), lattice.sortedHitTimes(symbols.find(word)));
+      }
+      assertEquals(0, lattice.sortedHitTimes(-1).length);
+      assertEquals(0, lattice.sortedHitTimes("no-such-word").length);
+   }
+}
@@ -0,0 +1,76 @@
+/*
+* NgramModelTest.java
+*
+* Checks NgramModel's back-off against probabilities worked out by hand
+* from the trigram model in tiny.arpa
+*
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class NgramModelTest {
+   private static final float DELTA = 1e-5f;
+
+   private NgramModel model;
+   private int a, b, c;
+
+   @BeforeEach
+   public void setUp() throws Exception {
+      model = new NgramModel(new File(getClass().getResource("/tiny.arpa").toURI()).getPath());
+      a = model.find("a");
+      b = model.find("b");
+      c = model.find("c");
+   }
+
+   @Test
+   public void loadsEveryOrder() {
+      assertEquals(3, model.getOrder());
+      assertEquals(9, model.getNumNgrams());
+   }
+
+   @Test
+   public void usesTheLongestNgramThatExists() {
+      long history = model.extend(model.startHistory(), a);
+      assertEquals(-0.2f, model.logProb(history, b), DELTA);              // <s> a b
+      assertEquals(-0.4f, model.logProb(model.startHistory(), a), DELTA); // <s> a
+   }
+
+   @Test
+   public void backsOffOnceFromTheStartHistory() {
+      // No "<s> c" bigram: bow(<s>) + p(c), with <s> a one-word history
+      assertEquals(-0.5f + -1.2f, model.logProb(model.startHistory(), c), DELTA);
+   }
+
+   @Test
+   public void backsOffThroughEveryContext() {
+      // No "<s> a c" or "a c": bow(<s> a) + bow(a) + p(c)
+      long history = model.extend(model.startHistory(), a);
+      assertEquals(-0.1f + -0.3f + -1.2f, model.logProb(history, c), DELTA);
+   }
+
+   @Test
+   public void backsOffOnceFromAShortenedHistory() {
+      // extend drops <s> because "<s> c" is not in the model, leaving "c"
+      long history = model.extend(model.startHistory(), c);
+      assertEquals(-0.25f + -0.7f, model.logProb(history, a), DELTA);
+   }
+
+   @Test
+   public void scoresTheEndOfSentence() {
+      long history = model.extend(model.extend(model.startHistory(), a), b);
+      // No "a b </s>": bow(a b) + p(</s> | b)
+      assertEquals(-0.15f + -0.6f, model.endLogProb(history), DELTA);
+   }
+
+   @Test
+   public void unknownWordsGetTheFloor() {
+      assertEquals(-1, model.find("zebra"));
+      assertEquals(NgramModel.UNKNOWN_LOGPROB, model.logProb(model.startHistory(), -1), DELTA);
+      assertEquals(0, model.extend(model.startHistory(), -1));
+   }
+}
@@ -0,0 +1,102 @@
+/*
+* OnlineLatticeTest.java
+*
+* Checks that OnlineLattice's incrementally maintained order and costs
+* match what Lattice computes from scratch over the same edges, after
+* every single addition
+*
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class OnlineLatticeTest {
+   private static final double LM_SCALE = 2.0;
+
+   // assertMatchesOffline
+   // Checks every node's online cost, and the topological order, against
+   // a Lattice frozen from the same edges
+   private static void assertMatchesOffline(OnlineLattice online) {
+      int[] order = online.topologicalSort();
+      int[] position = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+         position[order[i]] = i;
+      }
+      for (int n = 0; n < online.getNumNodes(); n++) {
+         Lattice offline = online.toLattice(n);
+         double cost = online.getCost(n);
+         if (offline.countAllPaths().equals(BigInteger.ZERO)) {
+            assertEquals(Double.POSITIVE_INFINITY, cost, "node " + n);
+         } else {
+            assertEquals(offline.decode(LM_SCALE).getScore(), cost, 1e-9, "node " + n);
+            assertEquals(cost, online.decode(n).getScore(), 1e-9, "node " + n);
+         }
+      }
+      for (String line : online.toLattice(0).toString().split("\n")) {
+         String[] fields = line.split(" ");
+         if (fields[0].equals("edge"))
+            assertTrue(position[Integer.parseInt(fields[1])] < position[Integer.parseInt(fields[2])], line);
+      }
+   }
+
+   @Test
+   public void keepsCostsAndOrderAsEdgesArrive() {
+      Random random = new Random(42);
+      for (int trial = 0; trial < 5; trial++) {
+         OnlineLattice online = new OnlineLattice("online" + trial, LM_SCALE);
+         int numNodes = 25;
+         // Edges follow a hidden order, so they never make a cycle, but they
+         // often point backwards in the order the nodes were added
+         int[] rank = new int[numNodes];
+         for (int n = 0; n < numNodes; n++) {
+            online.addNode(0.01 * n);
+            rank[n] = (n == 0) ? -1 : random.nextInt(1000);
+         }
+         for (int e = 0; e < 80; e++) {
+            int a = random.nextInt(numNodes), b = random.nextInt(numNodes);
+            if (a == b)
+               continue;
+            int from = (rank[a] < rank[b]) ? a : b;
+            int to = (from == a) ? b : a;
+            online.addEdge(from, to, "w" + random.nextInt(5), random.nextInt(100), random.nextInt(20));
+            assertMatchesOffline(online);
+         }
+      }
+   }
+
+   @Test
+   public void replacingTheBestEdgeWithAWorseOneRaisesTheCost() {
+      OnlineLattice online = new OnlineLattice("replace", 1.0);
+      for (int n = 0; n < 3; n++) {
+         online.addNode(n);
+      }
+      online.addEdge(0, 1, "a", 1, 0);
+      online.addEdge(1, 2, "b", 1, 0);
+      online.addEdge(0, 2, "c", 5, 0);
+      assertEquals(2.0, online.getCost(2));
+      online.addEdge(0, 1, "a", 10, 0);
+      assertEquals(5.0, online.getCost(2));
+      assertEquals("c", online.decode(2).toString());
+      assertEquals(3, online.getNumEdges());
+      assertMatchesOffline(online);
+   }
+
+   @Test
+   public void rejectsCyclesAndLeavesTheLatticeUnchanged() {
+      OnlineLattice online = new OnlineLattice("cycle", 1.0);
+      for (int n = 0; n < 3; n++) {
+         online.addNode(n);
+      }
+      online.addEdge(0, 1, "a", 1, 0);
+      online.addEdge(1, 2, "b", 1, 0);
+      assertThrows(IllegalArgumentException.class, () -> online.addEdge(2, 0, "c", 1, 0));
+      assertThrows(IllegalArgumentException.class, () -> online.addEdge(1, 1, "c", 1, 0));
+      assertEquals(2, online.getNumEdges());
+      assertEquals("a b", online.decode().toString());
+      assertMatchesOffline(online);
+   }
+}
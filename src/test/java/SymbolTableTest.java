@@ -0,0 +1,85 @@
+/*
+* SymbolTableTest.java
+*
+* Checks SymbolTable's dense ids, its byte and String lookups, and that
+* threads interning the same words at once all agree on their ids
+*
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+public class SymbolTableTest {
+   @Test
+   public void givesDenseIdsThatRoundTrip() {
+      SymbolTable symbols = new SymbolTable();
+      String[] words = { "the", "cat", "café", "日本", "" };
+      for (int i = 0; i < words.length; i++) {
+         assertEquals(i, symbols.id(words[i]));
+      }
+      for (int i = 0; i < words.length; i++) {
+         assertEquals(i, symbols.id(words[i]));
+         assertEquals(i, symbols.find(words[i]));
+         assertEquals(words[i], symbols.word(i));
+         byte[] bytes = ("  " + words[i] + " ").getBytes(StandardCharsets.UTF_8);
+         assertEquals(i, symbols.id(bytes, 2, bytes.length - 3));
+      }
+      assertEquals(words.length, symbols.size());
+      assertEquals(-1, symbols.find("dog"));
+      assertEquals(words.length, symbols.size());
+   }
+
+   @Test
+   public void growsPastItsFirstArrays() {
+      SymbolTable symbols = new SymbolTable();
+      for (int i = 0; i < 10000; i++) {
+         assertEquals(i, symbols.id("w" + i));
+      }
+      for (int i = 0; i < 10000; i++) {
+         assertEquals("w" + i, symbols.word(i));
+         assertEquals(i, symbols.find("w" + i));
+      }
+   }
+
+   @Test
+   public void threadsAgreeOnIds() throws Exception {
+      final SymbolTable symbols = new SymbolTable();
+      ExecutorService pool = Executors.newFixedThreadPool(4);
+      try {
+         List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+         for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            results.add(pool.submit(new Callable<int[]>() {
+               public int[] call() {
+                  int[] ids = new int[5000];
+                  for (int i = 0; i < ids.length; i++) {
+                     // Each thread goes through the words in a different order
+                     int w = (i * 7 + offset * 1250) % ids.length;
+                     ids[w] = symbols.id("w" + w);
+                  }
+                  return ids;
+               }
+            }));
+         }
+         int[] first = results.get(0).get();
+         for (Future<int[]> result : results) {
+            assertArrayEquals(first, result.get());
+         }
+         assertEquals(5000, symbols.size());
+         for (int w = 0; w < first.length; w++) {
+            assertEquals("w" + w, symbols.word(first[w]));
+         }
+      } finally {
+         pool.shutdown();
+      }
+   }
+}
@@ -0,0 +1,146 @@
+/*
+* WordDiscoverySessionTest.java
+*
+* Checks that WordDiscoverySession, and Wordifier.discoverWords which runs
+* one, find the same words and return the same corpus as the version that
+* recounts every round and as the original LinkedList<String> pipeline,
+* and that sessions on different corpora can run at the same time
+*
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WordDiscoverySessionTest {
+   private static final int ITERATIONS = 6;
+   private static final int COUNT_THRESHOLD = 2;
+   private static final double PROBABILITY_THRESHOLD = 0.05;
+
+   @TempDir
+   Path temp;
+
+   // discoverWords
+   // The original pipeline on LinkedLists and HashMaps, run for iterations
+   // rounds or until a round finds no new words. A merge of the last two
+   // tokens leaves a copy of the last one behind in resegment, which is
+   // dropped here so the rounds after it count the same data
+   static LinkedList<String> discoverWords(LinkedList<String> data, int iterations) {
+      for (int round = 0; round < iterations; round++) {
+         HashMap<String,Integer> bigramCounts = new HashMap<String,Integer>();
+         Wordifier.computeCounts(data, bigramCounts);
+         HashMap<String,Double> bigramProbs = new HashMap<String,Double>();
+         HashMap<String,Double> unigramProbs = new HashMap<String,Double>();
+         Wordifier.convertCountsToProbabilities(bigramCounts, Wordifier.getVocabulary(data), bigramProbs, unigramProbs);
+         HashMap<String,Double> scores = Wordifier.getScores(bigramProbs, unigramProbs);
+         HashSet<String> newWords = Wordifier.findNewWords(bigramCounts, scores, COUNT_THRESHOLD, PROBABILITY_THRESHOLD);
+         if (newWords.isEmpty())
+            break;
+         int length = String.join("", data).length();
+         data = Wordifier.resegment(new LinkedList<String>(data), newWords);
+         if (String.join("", data).length() > length)
+            data.removeLast();
+      }
+      return data;
+   }
+
+   @Test
+   public void sessionMatchesRecountingAndLinkedListPipelines() {
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try {
+         for (long seed = 20; seed < 24; seed++) {
+            Corpus data = BigramIndexTest.corpus(3000, seed);
+            List<String> original = data.toList();
+            List<String> expected = discoverWords(data.toList(), ITERATIONS);
+
+            Corpus discovered = Wordifier.discoverWords(data, ITERATIONS, COUNT_THRESHOLD, PROBABILITY_THRESHOLD);
+            assertEquals(expected, discovered.toList());
+            assertEquals(expected, Wordifier.discoverWords(data, ITERATIONS, COUNT_THRESHOLD, PROBABILITY_THRESHOLD,
+                                                           pool).toList());
+            assertEquals(expected, Wordifier.discoverWords(data, ITERATIONS, COUNT_THRESHOLD, PROBABILITY_THRESHOLD,
+                                                           null).toList());
+            assertEquals(original, data.toList());
+            assertTrue(discovered.size() < data.size());
+         }
+      } finally {
+         pool.shutdown();
+      }
+   }
+
+   @Test
+   public void stepsRecordEachRound() throws Exception {
+      Path text = temp.resolve("text.txt");
+      Files.write(text, WordifierTest.characters(3000, 25).getBytes(StandardCharsets.UTF_8));
+      WordDiscoverySession session = new WordDiscoverySession(text.toString(), ITERATIONS,
+                                                              COUNT_THRESHOLD, PROBABILITY_THRESHOLD);
+      Corpus data = Wordifier.loadCorpus(text.toString());
+      assertEquals(data.toList(), session.getCorpus().toList());
+
+      HashSet<String> all = new HashSet<String>();
+      HashSet<String> newWords = session.step();
+      assertFalse(newWords.isEmpty());
+      all.addAll(newWords);
+      assertEquals(1, session.getRounds());
+      assertFalse(session.isFinished());
+      assertEquals(all, session.getDiscoveredWords());
+
+      // The probabilities are those of the data after the first round
+      Corpus current = session.getCorpus();
+      BigramCounts counts = BigramIndexTest.recount(current);
+      double[] bigramProbs = new double[counts.size()];
+      double[] unigramProbs = new double[current.getSymbols().size()];
+      Wordifier.convertCountsToProbabilities(counts, bigramProbs, unigramProbs);
+      for (int i = 0; i < counts.size(); i++) {
+         assertEquals(bigramProbs[i], session.getBigramProbability(counts.first(i), counts.second(i)), 1e-15);
+      }
+      for (int id = 0; id < unigramProbs.length; id++) {
+         assertEquals(unigramProbs[id], session.getUnigramProbability(id), 1e-15);
+      }
+
+      while (!session.isFinished()) {
+         all.addAll(session.step());
+      }
+      assertEquals(all, session.getDiscoveredWords());
+      assertTrue(session.step().isEmpty());
+      int rounds = session.getRounds();
+      assertEquals(session.getCorpus().toList(), session.call().toList());
+      assertEquals(rounds, session.getRounds());
+      assertEquals(Wordifier.discoverWords(data, rounds, COUNT_THRESHOLD, PROBABILITY_THRESHOLD, null).toList(),
+                   session.getCorpus().toList());
+   }
+
+   @Test
+   public void concurrentSessionsMatchSequentialSessions() throws Exception {
+      List<WordDiscoverySession> sessions = new ArrayList<WordDiscoverySession>();
+      List<List<String>> expected = new ArrayList<List<String>>();
+      for (long seed = 30; seed < 38; seed++) {
+         Corpus data = BigramIndexTest.corpus(3000, seed);
+         sessions.add(new WordDiscoverySession(data, ITERATIONS, COUNT_THRESHOLD, PROBABILITY_THRESHOLD));
+         expected.add(new WordDiscoverySession(data, ITERATIONS, COUNT_THRESHOLD, PROBABILITY_THRESHOLD)
+                      .call().toList());
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+         List<Future<Corpus>> results = executor.invokeAll(sessions);
+         for (int i = 0; i < results.size(); i++) {
+            assertEquals(expected.get(i), results.get(i).get().toList());
+         }
+      } finally {
+         executor.shutdown();
+      }
+   }
+}
@@ -0,0 +1,295 @@
+/*
+* WordifierTest.java
+*
+* Checks the Corpus, BigramCounts and parallel versions of the Wordifier
+* steps against the original LinkedList<String> and HashMap versions, on
+* character-segmented text made from a small made-up vocabulary
+*
+*/
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WordifierTest {
+   private static final String[] WORDS = { "the", "cat", "sat", "on", "mat", "a", "dog", "ran", "to", "it",
+                                           "and", "then", "slept", "under", "tree", "bird", "sang" };
+
+   @TempDir
+   Path temp;
+
+   // characters
+   // Returns numWords words drawn from WORDS with the given seed, written a
+   // character at a time with spaces between them, ten words to a line
+   static String characters(int numWords, long seed) {
+      Random random = new Random(seed);
+      StringBuilder text = new StringBuilder();
+      for (int w = 0; w < numWords; w++) {
+         String word = WORDS[random.nextInt(WORDS.length)];
+         for (int c = 0; c < word.length(); c++) {
+            text.append(word.charAt(c)).append(' ');
+         }
+         if (w % 10 == 9)
+            text.append('\n');
+      }
+      return text.toString();
+   }
+
+   // write
+   // Writes text under temp and returns its path
+   String write(String name, String text) throws Exception {
+      Path path = temp.resolve(name);
+      Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+      return path.toString();
+   }
+
+   @Test
+   public void loadCorpusMatchesLoadSentences() throws Exception {
+      String filename = write("text.txt", characters(2000, 1));
+      LinkedList<String> sentences = Wordifier.loadSentences(filename);
+      Corpus corpus = Wordifier.loadCorpus(filename);
+
+      assertEquals(sentences.size(), corpus.size());
+      assertEquals(sentences, corpus.toList());
+      assertEquals(Wordifier.getVocabulary(sentences), Wordifier.getVocabulary(corpus));
+      assertEquals(sentences, Corpus.fromList(sentences, new SymbolTable()).toList());
+   }
+
+   @Test
+   public void bigramCountsMatchHashMapPipeline() throws Exception {
+      String filename = write("text.txt", characters(3000, 2));
+      LinkedList<String> sentences = Wordifier.loadSentences(filename);
+      Corpus corpus = Wordifier.loadCorpus(filename);
+
+      HashMap<String,Integer> expectedCounts = new HashMap<String,Integer>();
+      Wordifier.computeCounts(sentences, expectedCounts);
+      HashMap<String,Double> expectedBigramProbs = new HashMap<String,Double>();
+      HashMap<String,Double> expectedUnigramProbs = new HashMap<String,Double>();
+      Wordifier.convertCountsToProbabilities(expectedCounts, Wordifier.getVocabulary(sentences),
+                                             expectedBigramProbs, expectedUnigramProbs);
+      HashMap<String,Double> expectedScores = Wordifier.getScores(expectedBigramProbs, expectedUnigramProbs);
+
+      HashMap<String,Integer> corpusCounts = new HashMap<String,Integer>();
+      Wordifier.computeCounts(corpus, corpusCounts);
+      assertEquals(expectedCounts, corpusCounts);
+
+      BigramCounts counts = new BigramCounts(corpus.getSymbols());
+      Wordifier.computeCounts(corpus, counts);
+      assertEquals(expectedCounts.size(), counts.size());
+      assertEquals(sentences.size() - 1, counts.getTotal());
+      double[] bigramProbs = new double[counts.size()];
+      double[] unigramProbs = new double[corpus.getSymbols().size()];
+      Wordifier.convertCountsToProbabilities(counts, bigramProbs, unigramProbs);
+      double[] scores = Wordifier.getScores(counts, bigramProbs, unigramProbs);
+      for (int i = 0; i < counts.size(); i++) {
+         String bigram = counts.toString(i);
+         assertEquals(expectedCounts.get(bigram).intValue(), counts.count(i), bigram);
+         assertEquals(expectedBigramProbs.get(bigram), bigramProbs[i], 1e-15, bigram);
+         assertEquals(expectedScores.get(bigram), scores[i], 1e-12, bigram);
+      }
+      for (int id = 0; id < unigramProbs.length; id++) {
+         assertEquals(expectedUnigramProbs.get(corpus.getSymbols().word(id)), unigramProbs[id], 1e-15);
+      }
+
+      assertFalse(Wordifier.findNewWords(counts, scores, 5, 0.05).isEmpty());
+      for (int countThreshold : new int[] { 1, 5, 20 }) {
+         for (double probabilityThreshold : new double[] { 0.01, 0.05, 0.2 }) {
+            assertEquals(Wordifier.findNewWords(expectedCounts, expectedScores, countThreshold, probabilityThreshold),
+                         Wordifier.findNewWords(counts, scores, countThreshold, probabilityThreshold));
+         }
+      }
+   }
+
+   @Test
+   public void unigramsAreWorkedOutFromTheBigrams() throws Exception {
+      LinkedList<String> sentences = Wordifier.loadSentences(write("text.txt", characters(2000, 7)));
+      sentences.addFirst("x");
+      HashMap<String,Integer> bigramCounts = new HashMap<String,Integer>();
+      Wordifier.computeCounts(sentences, bigramCounts);
+      HashMap<String,Double> expectedBigramProbs = new HashMap<String,Double>();
+      HashMap<String,Double> expectedUnigramProbs = new HashMap<String,Double>();
+      Wordifier.convertCountsToProbabilities(bigramCounts, Wordifier.getVocabulary(sentences),
+                                             expectedBigramProbs, expectedUnigramProbs);
+      HashMap<String,Double> bigramProbs = new HashMap<String,Double>();
+      HashMap<String,Double> unigramProbs = new HashMap<String,Double>();
+      Wordifier.convertCountsToProbabilities(bigramCounts, bigramProbs, unigramProbs);
+
+      assertEquals(expectedBigramProbs, bigramProbs);
+      assertEquals(expectedUnigramProbs, unigramProbs);
+
+      // Starting and ending with the same word: that word is one short
+      bigramCounts.clear();
+      Wordifier.computeCounts(new LinkedList<String>(Arrays.asList("a", "b", "a")), bigramCounts);
+      unigramProbs.clear();
+      Wordifier.convertCountsToProbabilities(bigramCounts, new HashMap<String,Double>(), unigramProbs);
+      assertEquals(0.5, unigramProbs.get("a"));
+      assertEquals(0.5, unigramProbs.get("b"));
+   }
+
+   @Test
+   public void countingAFileMatchesCountingItsCorpus() throws Exception {
+      String filename = write("text.txt", characters(3000, 3));
+      Corpus corpus = Wordifier.loadCorpus(filename);
+      BigramCounts expected = new BigramCounts(corpus.getSymbols());
+      Wordifier.computeCounts(corpus, expected);
+      BigramCounts streamed = new BigramCounts(new SymbolTable());
+      Wordifier.computeCounts(filename, streamed);
+
+      assertSameCounts(expected, streamed);
+   }
+
+   @Test
+   public void parallelCountsMatchSequentialCounts() throws Exception {
+      // Long enough for several shards of SHARD_SIZE tokens
+      Corpus corpus = Wordifier.loadCorpus(write("text.txt", characters(80000, 4)));
+      assertTrue(corpus.size() > 3 * 65536);
+      Corpus empty = new Corpus(new SymbolTable());
+      ForkJoinPool pool = new ForkJoinPool(4);
+      try {
+         for (Corpus data : new Corpus[] { corpus, empty }) {
+            BigramCounts sequential = new BigramCounts(data.getSymbols());
+            Wordifier.computeCounts(data, sequential);
+            BigramCounts parallel = new BigramCounts(data.getSymbols());
+            Wordifier.computeCounts(data, parallel, pool);
+
+            assertEquals(sequential.size(), parallel.size());
+            assertEquals(sequential.getTotal(), parallel.getTotal());
+            for (int i = 0; i < sequential.size(); i++) {
+               assertEquals(sequential.first(i), parallel.first(i));
+               assertEquals(sequential.second(i), parallel.second(i));
+               assertEquals(sequential.count(i), parallel.count(i));
+            }
+            for (int id = 0; id < data.getSymbols().size(); id++) {
+               assertEquals(sequential.unigramCount(id), parallel.unigramCount(id));
+            }
+            assertEquals(Wordifier.getVocabulary(data), Wordifier.getVocabulary(data, pool));
+         }
+      } finally {
+         pool.shutdown();
+      }
+   }
+
+   @Test
+   public void resegmentMergesLeftToRight() {
+      HashSet<String> newWords = new HashSet<String>(Arrays.asList("BC", "GH", "CD"));
+      Corpus corpus = Corpus.fromList(Arrays.asList("A B C D E F G H I".split(" ")), new SymbolTable());
+      Corpus merged = Wordifier.resegment(corpus, newWords);
+
+      assertEquals(Arrays.asList("A", "BC", "D", "E", "F", "GH", "I"), merged.toList());
+      assertEquals(9, corpus.size());
+      assertEquals(merged.toList(), Wordifier.resegment(corpus.toList(), newWords));
+
+      // A merge of the last two tokens: the LinkedList version leaves the last one behind
+      Corpus ending = Corpus.fromList(Arrays.asList("A", "G", "H"), new SymbolTable());
+      assertEquals(Arrays.asList("A", "GH"), Wordifier.resegment(ending, newWords).toList());
+      assertEquals(Arrays.asList("A", "GH", "H"), Wordifier.resegment(ending.toList(), newWords));
+   }
+
+   @Test
+   public void resegmentInPlaceMatchesLinkedListResegment() throws Exception {
+      String filename = write("text.txt", characters(3000, 5));
+      Corpus corpus = Wordifier.loadCorpus(filename);
+      for (double probabilityThreshold : new double[] { 0.02, 0.05, 0.1, 0.3 }) {
+         BigramCounts counts = new BigramCounts(corpus.getSymbols());
+         Wordifier.computeCounts(corpus, counts);
+         double[] bigramProbs = new double[counts.size()];
+         double[] unigramProbs = new double[corpus.getSymbols().size()];
+         Wordifier.convertCountsToProbabilities(counts, bigramProbs, unigramProbs);
+         HashSet<String> newWords = Wordifier.findNewWords(counts, Wordifier.getScores(counts, bigramProbs, unigramProbs),
+                                                           2, probabilityThreshold);
+
+         LinkedList<String> expected = Wordifier.resegment(corpus.toList(), newWords);
+         Corpus inPlace = corpus.copy();
+         Wordifier.resegmentInPlace(inPlace, Wordifier.mergeTable(counts, newWords));
+         if (inPlace.size() == expected.size() - 1)
+            expected.removeLast();
+         assertEquals(expected, inPlace.toList());
+         assertEquals(expected, Wordifier.resegment(corpus, newWords).toList());
+      }
+   }
+
+   @Test
+   public void streamCorpusSplitsLikeStringSplit() throws Exception {
+      String text = "  \t" + characters(500, 6).replace("a t", "a\t\tt").replace("\n", "\r\n")
+                    + " é ü 漢 字 \f x\u000By \n\n";
+      String filename = write("text.txt", text);
+      List<String> expected = Arrays.asList(text.trim().split("\\s+"));
+      for (int chunkSize : new int[] { 1, 2, 7, 1 << 16 }) {
+         final SymbolTable symbols = new SymbolTable();
+         final List<String> streamed = new ArrayList<String>();
+         final int[] previous = { -1 };
+         Wordifier.streamCorpus(filename, symbols, chunkSize, new CorpusChunkHandler() {
+            public void chunk(int[] tokens, int from, int to) {
+               assertTrue(to - from <= chunkSize && to > from);
+               if (from > 0)
+                  assertEquals(previous[0], tokens[from - 1]);
+               for (int i = from; i < to; i++) {
+                  streamed.add(symbols.word(tokens[i]));
+               }
+               previous[0] = tokens[to - 1];
+            }
+         });
+         assertEquals(expected, streamed, "chunkSize " + chunkSize);
+      }
+      assertEquals(expected, Wordifier.loadSentences(filename));
+      assertEquals(expected, Wordifier.loadCorpus(filename).toList());
+      assertEquals(new HashSet<String>(expected), Wordifier.loadDictionary(filename));
+   }
+
+   @Test
+   public void loadsEmptyAndMissingFiles() throws Exception {
+      String empty = write("empty.txt", " \n\t\n");
+      assertEquals(0, Wordifier.loadCorpus(empty).size());
+      assertTrue(Wordifier.loadSentences(empty).isEmpty());
+      assertTrue(Wordifier.loadDictionary(empty).isEmpty());
+
+      String missing = temp.resolve("missing.txt").toString();
+      assertThrows(UncheckedIOException.class, () -> Wordifier.loadCorpus(missing));
+      assertThrows(UncheckedIOException.class, () -> Wordifier.loadDictionary(missing));
+   }
+
+   // assertSameCounts
+   // Checks that actual holds the same bigrams and words, with the same
+   // counts, as expected, comparing the words rather than the ids
+   static void assertSameCounts(BigramCounts expected, BigramCounts actual) {
+      assertEquals(expected.size(), actual.size());
+      assertEquals(expected.getTotal(), actual.getTotal());
+      SymbolTable symbols = actual.getSymbols();
+      for (int i = 0; i < expected.size(); i++) {
+         int first = symbols.find(expected.getSymbols().word(expected.first(i)));
+         int second = symbols.find(expected.getSymbols().word(expected.second(i)));
+         assertEquals(expected.count(i), actual.getCount(first, second), expected.toString(i));
+      }
+      for (int id = 0; id < expected.getSymbols().size(); id++) {
+         assertEquals(expected.unigramCount(id), actual.unigramCount(symbols.find(expected.getSymbols().word(id))));
+      }
+   }
+
+   @Test
+   public void corpusCopiesAreIndependent() {
+      Corpus corpus = Corpus.fromList(Arrays.asList("a", "b", "a"), new SymbolTable());
+      Corpus copy = corpus.copy();
+      copy.add("c");
+
+      assertSame(corpus.getSymbols(), copy.getSymbols());
+      assertEquals(3, corpus.size());
+      assertEquals(4, copy.size());
+      assertEquals(corpus.get(0), corpus.get(2));
+      assertEquals("c", copy.word(3));
+      assertThrows(IndexOutOfBoundsException.class, () -> corpus.get(3));
+   }
+}